@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**ABSTRACT CLASS: ABSTRACT SPLITTABLE RANDOM GENERATOR
+ * Implements the methods of RandomGenerator using the methods nextLong and nextInt
+ * Subclasses are to implement nextLong, setSeed(long) and split. By default nextInt uses the
+ * upper 32 bits of nextLong, subclasses producing 32 bits at a time should override it
+ *
+ * Random Gaussians are generated in pairs using the Box-Muller transform, the second of the pair
+ * is kept for the next call. Subclasses should call clearGaussian when their state is set, so that
+ * a pair is not shared between streams
+ */
+public abstract class AbstractSplittableRandomGenerator implements SplittableRandomGenerator {
+
+  static protected final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L; //increment of SplitMix64
+
+  //second of the pair of random Gaussian, NaN if there is none
+  protected double nextGaussian = Double.NaN;
+
+  /**CONSTRUCTOR
+   */
+  public AbstractSplittableRandomGenerator() {
+  }
+
+  /**IMPLEMENTED: SET SEED
+   * Seed the generator using an int, same as setSeed((long) seed)
+   */
+  @Override
+  public void setSeed(int seed) {
+    this.setSeed((long) seed);
+  }
+
+  /**IMPLEMENTED: SET SEED
+   * Seed the generator using an int [], the ints are mixed into one long
+   */
+  @Override
+  public void setSeed(int [] seed) {
+    long mixedSeed = seed.length;
+    for (int i=0; i<seed.length; i++) {
+      mixedSeed = mix64(mixedSeed + GOLDEN_GAMMA) ^ (seed[i] & 0xffffffffL);
+    }
+    this.setSeed(mixedSeed);
+  }
+
+  /**IMPLEMENTED: NEXT INT
+   * @return Uniformly distributed 32 bits, the upper 32 bits of nextLong
+   */
+  @Override
+  public int nextInt() {
+    return (int) (this.nextLong() >>> 32);
+  }
+
+  /**IMPLEMENTED: NEXT INT
+   * @param n Upper bound, must be positive
+   * @return Uniformly distributed integer in [0, n)
+   */
+  @Override
+  public int nextInt(int n) {
+    if (n <= 0) {
+      throw new IllegalArgumentException("n must be positive");
+    }
+    //n is a power of 2, use the top bits
+    if ((n & -n) == n) {
+      return (int) ((n * (long) (this.nextInt() >>> 1)) >> 31);
+    }
+    //reject the values at the top which would cause a bias
+    int bits;
+    int value;
+    do {
+      bits = this.nextInt() >>> 1;
+      value = bits % n;
+    } while (bits - value + (n-1) < 0);
+    return value;
+  }
+
+  /**IMPLEMENTED: NEXT BOOLEAN
+   */
+  @Override
+  public boolean nextBoolean() {
+    return this.nextInt() < 0;
+  }
+
+  /**IMPLEMENTED: NEXT FLOAT
+   * @return Uniformly distributed in [0, 1), using 24 bits
+   */
+  @Override
+  public float nextFloat() {
+    return (this.nextInt() >>> 8) * 0x1.0p-24f;
+  }
+
+  /**IMPLEMENTED: NEXT DOUBLE
+   * @return Uniformly distributed in [0, 1), using 53 bits
+   */
+  @Override
+  public double nextDouble() {
+    return (this.nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**IMPLEMENTED: NEXT GAUSSIAN
+   * @return Standard Gaussian random variable
+   */
+  @Override
+  public double nextGaussian() {
+    double gaussian;
+    if (Double.isNaN(this.nextGaussian)) {
+      //Box-Muller, 1-nextDouble() is in (0, 1] so that the log is finite
+      double angle = 2 * Math.PI * this.nextDouble();
+      double radius = Math.sqrt(-2 * Math.log(1.0 - this.nextDouble()));
+      gaussian = radius * Math.cos(angle);
+      this.nextGaussian = radius * Math.sin(angle);
+    } else {
+      gaussian = this.nextGaussian;
+      this.nextGaussian = Double.NaN;
+    }
+    return gaussian;
+  }
+
+  /**IMPLEMENTED: NEXT BYTES
+   * @param bytes Filled with random bytes
+   */
+  @Override
+  public void nextBytes(byte [] bytes) {
+    int i = 0;
+    while (i < bytes.length) {
+      long bits = this.nextLong();
+      for (int n = Math.min(bytes.length - i, 8); n > 0; n--) {
+        bytes[i++] = (byte) bits;
+        bits >>>= 8;
+      }
+    }
+  }
+
+  /**METHOD: CLEAR GAUSSIAN
+   * Discard the second of the pair of random Gaussian, to be called when the state is set
+   */
+  protected void clearGaussian() {
+    this.nextGaussian = Double.NaN;
+  }
+
+  /**FUNCTION: MIX 64
+   * Mixing function of the SplitMix64 generator, used to expand seeds into states
+   * @param z Value to mix
+   * @return Mixed value
+   */
+  protected static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+}
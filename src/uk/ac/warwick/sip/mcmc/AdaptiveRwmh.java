@@ -16,7 +16,7 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.simple.SimpleMatrix;
 
@@ -26,13 +26,46 @@ import org.ejml.simple.SimpleMatrix;
  * The adaptive procedure is as follows
  *   -2*this.getNDim()-1 initial steps are homogeneous
  *   -Afterwards the proposal covariance is then a scale of the chain sample covariance
+ *
+ * The cholesky decomposition of the adaptive proposal covariance is done in full only at the first
+ * adaptive step. Afterwards it is kept in step with the chain sample covariance using a rank one
+ * update in the method updateStatistics, costing O(nDim^2) rather than O(nDim^3) for each step.
+ * As a result, the small constant added to the diagonal is scaled with the chain sample covariance
+ * after the first adaptive step, ie it decays with the number of steps
+ *
+ * The proposal can instead be adapted at scheduled steps only, see the enum AdaptationSchedule and
+ * the method setAdaptationSchedule. The proposal is then decomposed in full at the scheduled steps
+ * and the cached cholesky is reused between them. The adaptation can be stopped after a number of
+ * steps using the method setNStepStopAdaptive, the proposal is then fixed
  */
 public class AdaptiveRwmh extends RandomWalkMetropolisHastings{
 
+  /**ENUM: ADAPTATION SCHEDULE
+   * When the proposal covariance is adapted
+   *   -EVERY_STEP: every step, using rank one updates of the cholesky, O(nDim^2) per step
+   *   -PERIODIC: every adaptationPeriod steps, O(nDim^3) at each of these steps
+   *   -GEOMETRIC: at steps spaced geometrically, each gap is adaptationRatio times longer than the
+   *       previous gap, O(nDim^3) at each of these steps
+   */
+  public enum AdaptationSchedule {
+    EVERY_STEP, PERIODIC, GEOMETRIC
+  }
+
   protected int nStepTillAdaptive; //number of regular MH steps till use adaptive method
   //small constant to be added to the diagional of the proposal covairnace in adaptive steps
   private double e;
   protected boolean isAdaptive = true; //user selected, if the chain is adaptive or not
+  //cholesky of the adaptive proposal covariance, updated with the chain sample covariance
+  //null before the first adaptive step
+  protected SimpleMatrix adaptiveProposalChol;
+  private double [] cholUpdateVector; //workspace for the rank one update
+  //when the proposal covariance is adapted
+  protected AdaptationSchedule adaptationSchedule = AdaptationSchedule.EVERY_STEP;
+  protected int adaptationPeriod = 100; //number of steps between adaptations, for PERIODIC
+  protected double adaptationRatio = 2.0; //ratio of consecutive gaps, for GEOMETRIC
+  protected int nextAdaptationStep; //step of the next adaptation, for GEOMETRIC
+  //number of steps after which the proposal covariance is no longer adapted
+  protected int nStepStopAdaptive = Integer.MAX_VALUE;
 
   /**CONSTRUCTOR
    * Does random walk Metropolis Hastings with adaptive proposal covariance
@@ -42,7 +75,7 @@ public class AdaptiveRwmh extends RandomWalkMetropolisHastings{
    * @param rng See superclass RandomWalkMetropolisHastings
    */
   public AdaptiveRwmh(TargetDistribution target, int chainLength, SimpleMatrix proposalCovariance,
-      MersenneTwister rng ){
+      RandomGenerator rng ){
     //call constructors and assign member variables
     super(target, chainLength, proposalCovariance, rng);
     this.nStepTillAdaptive = 2*this.getNDim()-1; //default value
@@ -61,6 +94,15 @@ public class AdaptiveRwmh extends RandomWalkMetropolisHastings{
     //shallow copy member variables
     this.nStepTillAdaptive = chain.nStepTillAdaptive;
     this.e = chain.e;
+    //deep copy, the cholesky is updated in place, see the method updateAdaptiveProposalChol
+    if (chain.adaptiveProposalChol != null) {
+      this.adaptiveProposalChol = new SimpleMatrix(chain.adaptiveProposalChol);
+    }
+    this.adaptationSchedule = chain.adaptationSchedule;
+    this.adaptationPeriod = chain.adaptationPeriod;
+    this.adaptationRatio = chain.adaptationRatio;
+    this.nextAdaptationStep = chain.nextAdaptationStep;
+    this.nStepStopAdaptive = chain.nStepStopAdaptive;
   }
 
   /**METHOD: SET IS ADAPTIVE
@@ -98,16 +140,158 @@ public class AdaptiveRwmh extends RandomWalkMetropolisHastings{
    * @param currentStep Column vector of the current step of the MCMC, to be modified
    */
   public void adaptiveStep(SimpleMatrix currentPosition) {
+    this.adaptProposal();
+    //do a Metropolis-Hastings step with this proposal covariance
+    this.proposalCovarianceChol = this.adaptiveProposalChol;
+    this.metropolisHastingsStep(currentPosition);
+  }
+
+  /**METHOD: ADAPT PROPOSAL
+   * Decompose the adaptive proposal covariance in full at the first adaptive step and at the
+   * scheduled steps, see AdaptationSchedule. With EVERY_STEP, the cholesky is otherwise kept up to
+   * date by updateStatistics
+   * If a decomposition is unsuccessful, the previous cholesky is kept, if there is one. Otherwise
+   * adaptiveProposalChol is left null and decomposing is attempted again at the next step
+   */
+  protected void adaptProposal() {
+    boolean isDecompose;
+    if (this.adaptiveProposalChol == null) {
+      isDecompose = true;
+    } else if (this.nStep >= this.nStepStopAdaptive) {
+      isDecompose = false;
+    } else {
+      switch (this.adaptationSchedule) {
+        case PERIODIC:
+          isDecompose = (this.nStep - this.nStepTillAdaptive) % this.adaptationPeriod == 0;
+          break;
+        case GEOMETRIC:
+          isDecompose = this.nStep >= this.nextAdaptationStep;
+          break;
+        default:
+          isDecompose = false;
+          break;
+      }
+    }
+    if (isDecompose) {
+      SimpleMatrix proposalChol = this.getAdaptiveProposalChol();
+      if (proposalChol != null) {
+        this.adaptiveProposalChol = proposalChol;
+        //the next gap is adaptationRatio times the number of steps since adapting began
+        int nStepAdapted = this.nStep - this.nStepTillAdaptive;
+        this.nextAdaptationStep = this.nStep + Math.max(1,
+            (int) Math.ceil(nStepAdapted * (this.adaptationRatio - 1)));
+      }
+    }
+  }
+
+  /**METHOD: GET ADAPTIVE PROPOSAL CHOL
+   * Decompose the adaptive proposal covariance in full, this is the chain sample covariance scaled
+   * so that it is optimal for targetting Normal, with a small element added to the diagonal
+   * @return Cholesky of the adaptive proposal covariance, null if unsuccessful
+   */
+  protected SimpleMatrix getAdaptiveProposalChol() {
     //get the chain covariance and scale it so that it is optimial for targetting Normal
+    this.updateChainCovariance();
     SimpleMatrix proposalCovariance = new SimpleMatrix(this.chainCovariance);
-    CommonOps_DDRM.scale(Math.pow(2.38, 2)/this.getNDim(), proposalCovariance.getDDRM());
+    CommonOps_DDRM.scale(this.getAdaptiveScale(), proposalCovariance.getDDRM());
     //add a small diagonal element to make the chain covariance full rank
     SimpleMatrix diagElement = SimpleMatrix.identity(this.getNDim());
     CommonOps_DDRM.scale(this.e, diagElement.getDDRM());
     CommonOps_DDRM.addEquals(proposalCovariance.getDDRM(), diagElement.getDDRM());
-    //do a Metropolis-Hastings step with this proposal covariance
-    this.proposalCovarianceChol = Global.cholesky(proposalCovariance);
-    this.metropolisHastingsStep(currentPosition);
+    return Global.cholesky(proposalCovariance);
+  }
+
+  /**METHOD: GET ADAPTIVE SCALE
+   * @return Scale of the chain sample covariance which is optimal for targetting Normal
+   */
+  protected double getAdaptiveScale() {
+    return Math.pow(2.38, 2)/this.getNDim();
+  }
+
+  /**OVERRIDE: UPDATE STATISTICS
+   * Also updates the cholesky of the adaptive proposal covariance, if it has been decomposed, so
+   * that it stays a scale of the chain sample covariance
+   * This is only done for the schedule EVERY_STEP and until the adaptation is stopped
+   * @param x The new position column vector of the chain, after the MCMC step(s)
+   */
+  @Override
+  protected void updateStatistics(SimpleMatrix x) {
+    super.updateStatistics(x);
+    if (this.adaptiveProposalChol != null
+        && this.adaptationSchedule == AdaptationSchedule.EVERY_STEP
+        && this.nStep < this.nStepStopAdaptive) {
+      this.updateAdaptiveProposalChol();
+    }
+  }
+
+  /**OVERRIDE: SET STATISTICS POLICY
+   * The adaptation requires the chain covariance, so only the policy COVARIANCE is allowed
+   * @param statisticsPolicy COVARIANCE, the default
+   */
+  @Override
+  public void setStatisticsPolicy(StatisticsPolicy statisticsPolicy) {
+    if (statisticsPolicy != StatisticsPolicy.COVARIANCE) {
+      throw new IllegalArgumentException("AdaptiveRwmh requires the chain covariance");
+    }
+    super.setStatisticsPolicy(statisticsPolicy);
+  }
+
+  /**METHOD: UPDATE ADAPTIVE PROPOSAL CHOL
+   * Rank one update of the cholesky of the adaptive proposal covariance, to be called after the
+   * chain sample sum of squares has been updated
+   * With n samples and d the difference between the new sample and the previous mean, the sum of
+   * squares increases by (n-1)/n * d*d^T and the covariance divisor from n-2 to n-1. Thus the
+   * proposal covariance is scaled by (n-2)/(n-1) and scale/n * d*d^T is added
+   */
+  protected void updateAdaptiveProposalChol() {
+    int nDim = this.getNDim();
+    if (this.cholUpdateVector == null) {
+      this.cholUpdateVector = new double[nDim];
+    }
+    double n = (double) (this.nStep+1);
+    CommonOps_DDRM.scale(Math.sqrt((n-2) / (n-1)), this.adaptiveProposalChol.getDDRM());
+    System.arraycopy(this.meanDifference, 0, this.cholUpdateVector, 0, nDim);
+    Global.choleskyRankOneUpdate(this.adaptiveProposalChol, this.getAdaptiveScale() / n,
+        this.cholUpdateVector);
+  }
+
+  /**METHOD: SET ADAPTATION SCHEDULE
+   * Set when the proposal covariance is adapted, to be called before running the chain
+   * @param adaptationSchedule See the enum AdaptationSchedule
+   */
+  public void setAdaptationSchedule(AdaptationSchedule adaptationSchedule) {
+    this.adaptationSchedule = adaptationSchedule;
+  }
+
+  /**METHOD: SET ADAPTATION PERIOD
+   * Set the number of steps between adaptations for the schedule PERIODIC
+   * @param adaptationPeriod Number of steps between adaptations, at least 1
+   */
+  public void setAdaptationPeriod(int adaptationPeriod) {
+    if (adaptationPeriod < 1) {
+      throw new IllegalArgumentException("adaptationPeriod must be at least 1");
+    }
+    this.adaptationPeriod = adaptationPeriod;
+  }
+
+  /**METHOD: SET ADAPTATION RATIO
+   * Set the ratio of consecutive gaps between adaptations for the schedule GEOMETRIC
+   * @param adaptationRatio Ratio of consecutive gaps, more than 1
+   */
+  public void setAdaptationRatio(double adaptationRatio) {
+    if (!(adaptationRatio > 1)) {
+      throw new IllegalArgumentException("adaptationRatio must be more than 1");
+    }
+    this.adaptationRatio = adaptationRatio;
+  }
+
+  /**METHOD: SET N STEP STOP ADAPTIVE
+   * Set the number of steps after which the proposal covariance is no longer adapted, eg the
+   * warm up, afterwards the last adaptive proposal is used
+   * @param nStepStopAdaptive Number of steps after which the proposal is fixed
+   */
+  public void setNStepStopAdaptive(int nStepStopAdaptive) {
+    this.nStepStopAdaptive = nStepStopAdaptive;
   }
 
   /**METHOD: SET DIAG
@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**INTERFACE: ARRAY TARGET
+ * Evaluates the target distribution using double [] column vectors supplied by the caller, so
+ * that no objects are instantiated for each evaluation
+ * The samplers use these methods when evaluating the target in their leap frog steps and
+ * acceptance steps
+ *
+ * Adapters:
+ *   -TargetDistribution implements this interface, by default the double [] are wrapped as
+ *       SimpleMatrix objects and passed to the SimpleMatrix methods. NormalDistribution and
+ *       UniformDistribution implement the double [] methods directly
+ *   -ArrayTargetDistribution wraps an ArrayTarget as a TargetDistribution so that it can be
+ *       given to the samplers
+ */
+public interface ArrayTarget {
+
+  /**METHOD: GET N DIM
+   * @return The number of dimensions this target has
+   */
+  public int getNDim();
+
+  /**METHOD: GET POTENTIAL
+   * Evaluate the -ln pdf + some constant
+   * @param x Where to evaluate the potential, of length nDim, not modified
+   * @return The evaluation of the potential at x + some constant
+   */
+  public double getPotential(double [] x);
+
+  /**METHOD: GET D POTENTIAL
+   * Evaluate the differential of -ln pdf
+   * @param x Where to evaluate the potential gradient, of length nDim, not modified
+   * @param dPotential Overwritten with the potential gradient at x, of length nDim
+   */
+  public void getDPotential(double [] x, double [] dPotential);
+
+  /**METHOD: GET POTENTIAL AND D POTENTIAL
+   * Evaluate the potential and its gradient at x in one call
+   * By default, this calls getDPotential and getPotential
+   * @param x Where to evaluate the potential and its gradient, of length nDim, not modified
+   * @param dPotential Overwritten with the potential gradient at x, of length nDim
+   * @return The evaluation of the potential at x + some constant
+   */
+  public default double getPotentialAndDPotential(double [] x, double [] dPotential) {
+    this.getDPotential(x, dPotential);
+    return this.getPotential(x);
+  }
+
+  /**METHOD: GET PDF
+   * Evaluate the probability density function at x up to a constant
+   * By default, this is exp(-potential)
+   * @param x Where to evaluate the pdf, of length nDim, not modified
+   * @return The evaluation of the pdf at x up to a constant
+   */
+  public default double getPdf(double [] x) {
+    return Math.exp(-this.getPotential(x));
+  }
+
+}
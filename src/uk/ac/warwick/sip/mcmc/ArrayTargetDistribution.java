@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**CLASS: ARRAY TARGET DISTRIBUTION
+ * Adapter which wraps an ArrayTarget as a TargetDistribution so that it can be given to the
+ * samplers. The double [] methods are passed straight to the ArrayTarget, the SimpleMatrix methods
+ * pass the underlying double [] of the column vectors
+ */
+public class ArrayTargetDistribution extends TargetDistribution {
+
+  protected ArrayTarget arrayTarget; //the wrapped target
+
+  /**CONSTRUCTOR
+   * @param arrayTarget Target to wrap
+   */
+  public ArrayTargetDistribution(ArrayTarget arrayTarget) {
+    super(arrayTarget.getNDim());
+    this.arrayTarget = arrayTarget;
+  }
+
+  /**IMPLEMENTED: GET PDF
+   * See ArrayTarget.getPdf
+   */
+  @Override
+  public double getPdf(SimpleMatrix x) {
+    return this.arrayTarget.getPdf(x.getDDRM().getData());
+  }
+
+  /**IMPLEMENTED: GET POTENTIAL
+   * See ArrayTarget.getPotential
+   */
+  @Override
+  public double getPotential(SimpleMatrix x) {
+    return this.arrayTarget.getPotential(x.getDDRM().getData());
+  }
+
+  /**IMPLEMENTED: GET D POTENTIAL
+   * See ArrayTarget.getDPotential
+   */
+  @Override
+  public SimpleMatrix getDPotential(SimpleMatrix x) {
+    SimpleMatrix dPotential = new SimpleMatrix(this.nDim, 1);
+    this.arrayTarget.getDPotential(x.getDDRM().getData(), dPotential.getDDRM().getData());
+    return dPotential;
+  }
+
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * See ArrayTarget.getPotentialAndDPotential
+   */
+  @Override
+  public double getPotentialAndDPotential(SimpleMatrix x, SimpleMatrix dPotential) {
+    return this.arrayTarget.getPotentialAndDPotential(x.getDDRM().getData(),
+        dPotential.getDDRM().getData());
+  }
+
+  /**OVERRIDE: GET PDF
+   * See ArrayTarget.getPdf
+   */
+  @Override
+  public double getPdf(double [] x) {
+    return this.arrayTarget.getPdf(x);
+  }
+
+  /**OVERRIDE: GET POTENTIAL
+   * See ArrayTarget.getPotential
+   */
+  @Override
+  public double getPotential(double [] x) {
+    return this.arrayTarget.getPotential(x);
+  }
+
+  /**OVERRIDE: GET D POTENTIAL
+   * See ArrayTarget.getDPotential
+   */
+  @Override
+  public void getDPotential(double [] x, double [] dPotential) {
+    this.arrayTarget.getDPotential(x, dPotential);
+  }
+
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * See ArrayTarget.getPotentialAndDPotential
+   */
+  @Override
+  public double getPotentialAndDPotential(double [] x, double [] dPotential) {
+    return this.arrayTarget.getPotentialAndDPotential(x, dPotential);
+  }
+
+}
@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**CLASS: AUTOCORRELATION
+ * Calculates the sample autocorrelation function of a chain using the fast Fourier transform
+ * The chain is centred and copied into a zero padded buffer, the length of the buffer is a power of
+ * two and at least twice the length of the chain so that the circular convolution does not wrap
+ * around. The power spectrum is then transformed back to give the sum of lagged products for all
+ * lags in O(n log n) time.
+ *
+ * How to use: instantiate with the maximum length of the chains to be investigated, then call
+ * calculate for each chain. The buffers are reused for each call so that no memory is allocated
+ * per lag or per call. The acf can then be obtained using getAcf or used in getEfficiency.
+ */
+public class Autocorrelation {
+
+  //length of the padded buffers, a power of two
+  protected int nPad;
+  //buffers for the real and imaginary parts of the fourier transform
+  //after calling calculate, real contains the acf for each lag
+  protected double [] real;
+  protected double [] imaginary;
+  //twiddle factors, cos and sin of 2 pi k / nPad for k = 0, 1, ..., nPad/2 - 1
+  protected double [] cosTable;
+  protected double [] sinTable;
+  //length of the chain used in the latest call of calculate
+  protected int n = 0;
+
+  /**CONSTRUCTOR
+   * Allocate the padded buffers and twiddle factors
+   * @param maxLength Maximum length of the chain to be investigated
+   */
+  public Autocorrelation(int maxLength) {
+    //the padded length is the smallest power of two which is at least 2*maxLength
+    this.nPad = 1;
+    while (this.nPad < 2*maxLength) {
+      this.nPad <<= 1;
+    }
+    this.real = new double[this.nPad];
+    this.imaginary = new double[this.nPad];
+    this.cosTable = new double[this.nPad/2];
+    this.sinTable = new double[this.nPad/2];
+    for (int i=0; i<this.nPad/2; i++) {
+      double angle = 2*Math.PI*((double) i)/((double) this.nPad);
+      this.cosTable[i] = Math.cos(angle);
+      this.sinTable[i] = Math.sin(angle);
+    }
+  }
+
+  /**METHOD: CALCULATE
+   * Calculate the sample autocorrelation function for all lags 0, 1, ..., n-1
+   * The chain is read from the array chain at index offset, offset + stride, offset + 2*stride,
+   * ..., this allows a column of a row major design matrix to be read without copying it
+   * @param chain Array containing the chain
+   * @param offset Index of the first element of the chain
+   * @param stride Distance between consecutive elements of the chain
+   * @param n Length of the chain, must not be more than the maxLength in the constructor
+   */
+  public void calculate(double [] chain, int offset, int stride, int n) {
+    this.n = n;
+    //work out the sample mean
+    double mean = 0;
+    for (int i=0; i<n; i++) {
+      mean += chain[offset + i*stride];
+    }
+    mean /= (double) n;
+    //copy the centred chain into the buffer and pad it with zeros
+    for (int i=0; i<n; i++) {
+      this.real[i] = chain[offset + i*stride] - mean;
+    }
+    for (int i=n; i<this.nPad; i++) {
+      this.real[i] = 0.0;
+    }
+    for (int i=0; i<this.nPad; i++) {
+      this.imaginary[i] = 0.0;
+    }
+
+    //fourier transform, then work out the power spectrum
+    this.transform(false);
+    for (int i=0; i<this.nPad; i++) {
+      this.real[i] = this.real[i]*this.real[i] + this.imaginary[i]*this.imaginary[i];
+      this.imaginary[i] = 0.0;
+    }
+    //inverse fourier transform, real now contains nPad * S_x_xLag for each lag
+    this.transform(true);
+
+    //normalise the acf, the factor nPad cancels out
+    double sxx = this.real[0];
+    for (int i=1; i<n; i++) {
+      this.real[i] /= sxx;
+    }
+    this.real[0] = 1.0;
+  }
+
+  /**METHOD: CALCULATE
+   * Calculate the sample autocorrelation function for all lags 0, 1, ..., chain.length-1
+   * @param chain Array containing the chain
+   */
+  public void calculate(double [] chain) {
+    this.calculate(chain, 0, 1, chain.length);
+  }
+
+  /**METHOD: GET ACF
+   * Call the method calculate prior to calling this method
+   * @param nLag The maximum lag to be obtained - 1
+   * @return The acf at lag 0, 1, 2, ..., nLag-1
+   */
+  public double [] getAcf(int nLag) {
+    double [] acf = new double[nLag];
+    System.arraycopy(this.real, 0, acf, 0, nLag);
+    return acf;
+  }
+
+  /**METHOD: GET EFFICIENCY
+   * Call the method calculate prior to calling this method
+   * Calculates the efficiency of the chain using the acf up to lag maxLag - 1
+   * The acf is summed up to lag k, where k is the first odd integer such that
+   * acf(k+1)+acf(k+2) is negative (Geyer, 1992)
+   * @param maxLag Number of lags which may be used, at most the length of the chain
+   * @return efficiency
+   */
+  public double getEfficiency(int maxLag) {
+    //find k which is odd and first integer for acf(k+1)+acf(k+2) to be negative
+    boolean foundK = false; //indicate if a k has been found
+    int k = 1; //initial value is 1
+    //while k hasn't been found
+    while (!foundK) {
+      //if acf(k+2) cannot be evaluated, then k has been found
+      if (k+2 >= maxLag) {
+        foundK = true;
+      //test if acf(k+1) + acf(k+2) is negative, if so k has been found
+      } else if ( (this.real[k+1] + this.real[k+2]) < 0) {
+        foundK = true;
+      }
+      //increment through all off k
+      k += 2;
+    }
+    //do not sum beyond the largest lag available
+    if (k > maxLag-1) {
+      k = maxLag-1;
+    }
+    //sum all the acf up to and including lag k
+    double sumAcf = 0.0;
+    for (int i=1; i<=k; i++) {
+      sumAcf += this.real[i];
+    }
+    return 1/(1+2*sumAcf);
+  }
+
+  /**METHOD: TRANSFORM
+   * In place radix-2 fast Fourier transform of the buffers real and imaginary
+   * The inverse transform is not scaled by 1/nPad
+   * @param isInverse true to do the inverse transform
+   */
+  protected void transform(boolean isInverse) {
+    //bit reversal permutation
+    for (int i=1, j=0; i<this.nPad; i++) {
+      int bit = this.nPad >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      if (i < j) {
+        double temp = this.real[i];
+        this.real[i] = this.real[j];
+        this.real[j] = temp;
+        temp = this.imaginary[i];
+        this.imaginary[i] = this.imaginary[j];
+        this.imaginary[j] = temp;
+      }
+    }
+    //butterflies, the sign of the twiddle factor depends on the direction of the transform
+    double sign = isInverse ? 1.0 : -1.0;
+    for (int length=2; length<=this.nPad; length<<=1) {
+      int halfLength = length >> 1;
+      int tableStep = this.nPad / length;
+      for (int start=0; start<this.nPad; start+=length) {
+        for (int i=0; i<halfLength; i++) {
+          double wReal = this.cosTable[i*tableStep];
+          double wImaginary = sign * this.sinTable[i*tableStep];
+          int even = start + i;
+          int odd = even + halfLength;
+          double oddReal = this.real[odd]*wReal - this.imaginary[odd]*wImaginary;
+          double oddImaginary = this.real[odd]*wImaginary + this.imaginary[odd]*wReal;
+          this.real[odd] = this.real[even] - oddReal;
+          this.imaginary[odd] = this.imaginary[even] - oddImaginary;
+          this.real[even] += oddReal;
+          this.imaginary[even] += oddImaginary;
+        }
+      }
+    }
+  }
+
+}
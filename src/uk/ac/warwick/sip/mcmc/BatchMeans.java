@@ -0,0 +1,180 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.util.Arrays;
+
+/**CLASS: BATCH MEANS
+ * Online estimate of the Monte Carlo error of the mean of a chain, using batch means, for all
+ * dimensions at once
+ * The samples are added one at a time and summed into batches. A fixed number of batches, nBatch,
+ * is kept. When they are all full, adjacent pairs of batches are merged, halving the number of
+ * batches and doubling the batch size. There are then between nBatch/2 and nBatch full batches,
+ * so with nBatch about 2*sqrt(n) for n samples, the memory used is O(sqrt(n)) for each dimension
+ * and the number of batches is about sqrt(n), as in Mcmc.calculateMonteCarloError
+ * The mean and variance of each dimension are updated using Welford's method
+ *
+ * How to use: instantiate with the number of dimensions and batches, call add for each sample.
+ * The Monte Carlo error can be obtained at any time using getMonteCarloError.
+ */
+public class BatchMeans {
+
+  protected int nDim; //number of dimensions
+  protected int nBatch; //maximum number of batches, even
+  protected int batchSize = 1; //number of samples in each full batch
+  protected int nFullBatch = 0; //number of full batches
+  //sum of the samples in each full batch, batch iBatch and dimension i at iBatch*nDim + i
+  protected double [] batchSum;
+  protected double [] partialSum; //sum of the samples in the batch being filled
+  protected int nPartial = 0; //number of samples in the batch being filled
+
+  protected long nSample = 0; //number of samples added
+  protected double [] mean; //mean of all samples added
+  protected double [] sumSquares; //sum of squared differences from the mean of all samples added
+
+  /**CONSTRUCTOR
+   * @param nDim Number of dimensions
+   * @param nBatch Maximum number of batches, at least 2, rounded up to an even number
+   */
+  public BatchMeans(int nDim, int nBatch) {
+    if (nBatch < 2) {
+      throw new IllegalArgumentException("nBatch must be at least 2");
+    }
+    this.nDim = nDim;
+    this.nBatch = nBatch + (nBatch % 2);
+    this.batchSum = new double[this.nBatch * nDim];
+    this.partialSum = new double[nDim];
+    this.mean = new double[nDim];
+    this.sumSquares = new double[nDim];
+  }
+
+  /**METHOD: ADD
+   * Add a sample, merge adjacent pairs of batches if all batches are full
+   * @param x Sample to add, not modified
+   */
+  public void add(double [] x) {
+    this.nSample++;
+    double n = (double) this.nSample;
+    for (int i=0; i<this.nDim; i++) {
+      double difference = x[i] - this.mean[i];
+      this.mean[i] += difference / n;
+      this.sumSquares[i] += difference * (x[i] - this.mean[i]);
+      this.partialSum[i] += x[i];
+    }
+    this.nPartial++;
+
+    //the batch being filled is full, move it to the full batches
+    if (this.nPartial == this.batchSize) {
+      System.arraycopy(this.partialSum, 0, this.batchSum, this.nFullBatch * this.nDim,
+          this.nDim);
+      Arrays.fill(this.partialSum, 0.0);
+      this.nPartial = 0;
+      this.nFullBatch++;
+      //all batches are full, merge adjacent pairs
+      if (this.nFullBatch == this.nBatch) {
+        for (int iBatch=0; iBatch<this.nBatch/2; iBatch++) {
+          for (int i=0; i<this.nDim; i++) {
+            this.batchSum[iBatch*this.nDim + i] = this.batchSum[2*iBatch*this.nDim + i]
+                + this.batchSum[(2*iBatch+1)*this.nDim + i];
+          }
+        }
+        this.nFullBatch = this.nBatch / 2;
+        this.batchSize *= 2;
+      }
+    }
+  }
+
+  /**METHOD: GET MONTE CARLO ERROR
+   * Monte Carlo error of the mean of each dimension, using the full batches, the samples in the
+   * batch being filled are not used
+   * With b batch means y_j of size m and n = b*m, the squared error is
+   * sum_j m (y_j - mean)^2 / (b n)
+   * @return Monte Carlo error for each dimension, NaN if there are fewer than 2 full batches
+   */
+  public double [] getMonteCarloError() {
+    double [] monteCarloError = new double[this.nDim];
+    if (this.nFullBatch < 2) {
+      Arrays.fill(monteCarloError, Double.NaN);
+      return monteCarloError;
+    }
+    double nFullBatch = (double) this.nFullBatch;
+    double batchSize = (double) this.batchSize;
+    for (int i=0; i<this.nDim; i++) {
+      //mean of the samples in the full batches
+      double fullMean = 0;
+      for (int iBatch=0; iBatch<this.nFullBatch; iBatch++) {
+        fullMean += this.batchSum[iBatch*this.nDim + i];
+      }
+      fullMean /= nFullBatch * batchSize;
+      double sumSquaresBatch = 0;
+      for (int iBatch=0; iBatch<this.nFullBatch; iBatch++) {
+        double residual = this.batchSum[iBatch*this.nDim + i] / batchSize - fullMean;
+        sumSquaresBatch += residual * residual;
+      }
+      monteCarloError[i] = Math.sqrt(sumSquaresBatch / (nFullBatch * nFullBatch));
+    }
+    return monteCarloError;
+  }
+
+  /**METHOD: GET VARIANCE
+   * @return Bias corrected variance of all the samples added, for each dimension
+   */
+  public double [] getVariance() {
+    double [] variance = new double[this.nDim];
+    for (int i=0; i<this.nDim; i++) {
+      variance[i] = this.sumSquares[i] / ((double) (this.nSample - 1));
+    }
+    return variance;
+  }
+
+  /**METHOD: GET DIFFERENCE LN ERROR
+   * Calculate ln(std) - ln(monte carlo error) of all the samples added, see
+   * Mcmc.getDifferenceLnError
+   * @return Array of ln(std) - ln(monte carlo error), an entry for each dimension
+   */
+  public double [] getDifferenceLnError() {
+    double [] variance = this.getVariance();
+    double [] monteCarloError = this.getMonteCarloError();
+    double [] differenceLnError = new double[this.nDim];
+    for (int i=0; i<this.nDim; i++) {
+      differenceLnError[i] = 0.5 * Math.log(variance[i]) - Math.log(monteCarloError[i]);
+    }
+    return differenceLnError;
+  }
+
+  /**METHOD: GET N SAMPLE
+   * @return Number of samples added
+   */
+  public long getNSample() {
+    return this.nSample;
+  }
+
+  /**METHOD: GET N FULL BATCH
+   * @return Number of full batches, between nBatch/2 and nBatch once nBatch/2 batches are filled
+   */
+  public int getNFullBatch() {
+    return this.nFullBatch;
+  }
+
+  /**METHOD: GET BATCH SIZE
+   * @return Number of samples in each full batch
+   */
+  public int getBatchSize() {
+    return this.batchSize;
+  }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.nio.DoubleBuffer;
+
+/**CLASS: BLOCKED CHAIN STORE
+ * Keeps all the samples of a chain in a column major format, so that the samples of a dimension
+ * are contiguous and can be read without copying them, eg by getAcf, calculateMonteCarloError,
+ * GelmanRubinF and MultiChainDiagnostics
+ * The samples are appended, as rows, to a small row major block of fixed size. When the block is
+ * full, it is sealed: it is transposed into the columns and the block is reused. A block of
+ * DEFAULT_BLOCK_SIZE elements fits in the cache, so the transpose is cheap and appending a sample
+ * is a single copy. Any partially filled block is sealed when flush is called, eg at the end of
+ * Mcmc.run, or before the columns are read.
+ * The columns have space for capacity samples, eg the chain length, this is doubled if more
+ * samples are received
+ *
+ * How to use: give it to a chain using Mcmc.setChainStore. Read a dimension using getColumn, or
+ * getColumnArray and getColumnOffset, sample i of dimension j is at
+ * getColumnArray()[getColumnOffset(j) + i].
+ * Not thread safe, the methods which read the columns seal the block first, so seal it and get
+ * the column array on one thread before sharing it with other threads.
+ */
+public class BlockedChainStore implements ChainStore {
+
+  //default number of elements in a block, a block of doubles is then 256 kB
+  static public final int DEFAULT_BLOCK_SIZE = 32768;
+
+  protected int nDim; //number of dimensions of each sample
+  protected int nBlockSample; //number of samples in a block
+  protected int capacity; //number of samples the columns have space for
+  //sealed samples in a column major format, sample i of dimension j is at j*capacity + i
+  protected double [] columnArray;
+  protected int nSealed = 0; //number of samples in columnArray
+  //samples nSealed, nSealed+1, ..., nSample-1 in a row major format
+  protected double [] block;
+  protected int nSample = 0; //number of samples received
+
+  /**CONSTRUCTOR
+   * The number of samples in a block is chosen so that a block has about DEFAULT_BLOCK_SIZE
+   * elements
+   * @param nDim number of dimensions of each sample
+   * @param capacity number of samples to allocate space for, eg the chain length
+   */
+  public BlockedChainStore(int nDim, int capacity) {
+    this(nDim, capacity, Math.max(1, DEFAULT_BLOCK_SIZE / nDim));
+  }
+
+  /**CONSTRUCTOR
+   * @param nDim number of dimensions of each sample
+   * @param capacity number of samples to allocate space for, eg the chain length
+   * @param nBlockSample number of samples in a block
+   */
+  public BlockedChainStore(int nDim, int capacity, int nBlockSample) {
+    this.nDim = nDim;
+    this.nBlockSample = nBlockSample;
+    this.capacity = Math.max(capacity, 1);
+    this.columnArray = new double[nDim * this.capacity];
+    this.block = new double[nDim * nBlockSample];
+  }
+
+  /**IMPLEMENTED: ADD SAMPLE
+   * Copy the sample to the end of the block, seal the block if it is full
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   */
+  @Override
+  public void addSample(double [] sample) {
+    System.arraycopy(sample, 0, this.block, (this.nSample - this.nSealed)*this.nDim, this.nDim);
+    this.nSample++;
+    if (this.nSample - this.nSealed == this.nBlockSample) {
+      this.seal();
+    }
+  }
+
+  /**IMPLEMENTED: FLUSH
+   * Seal the samples in the block, if any
+   */
+  @Override
+  public void flush() {
+    this.seal();
+  }
+
+  /**METHOD: SEAL
+   * Transpose the samples in the block into the columns, doubling the capacity if needed, the
+   * block is then empty
+   */
+  public void seal() {
+    int nRow = this.nSample - this.nSealed;
+    if (nRow == 0) {
+      return;
+    }
+    //double the capacity, copying the sealed part of each column
+    if (this.nSample > this.capacity) {
+      int capacity = Math.max(2*this.capacity, this.nSample);
+      double [] columnArray = new double[this.nDim * capacity];
+      for (int i=0; i<this.nDim; i++) {
+        System.arraycopy(this.columnArray, i*this.capacity, columnArray, i*capacity,
+            this.nSealed);
+      }
+      this.capacity = capacity;
+      this.columnArray = columnArray;
+    }
+    //transpose, the block is in the cache so only the writes are sequential
+    for (int i=0; i<this.nDim; i++) {
+      int columnIndex = i*this.capacity + this.nSealed;
+      for (int iRow=0; iRow<nRow; iRow++) {
+        this.columnArray[columnIndex + iRow] = this.block[iRow*this.nDim + i];
+      }
+    }
+    this.nSealed = this.nSample;
+  }
+
+  /**IMPLEMENTED: GET N SAMPLE
+   * @return Number of samples received
+   */
+  @Override
+  public int getNSample() {
+    return this.nSample;
+  }
+
+  /**METHOD: GET COLUMN
+   * Zero copy, read only view of the samples of a dimension, the block is sealed first
+   * @param nDim Which dimension to view
+   * @return DoubleBuffer of the samples of the dimension, each element correspond to a sample
+   */
+  public DoubleBuffer getColumn(int nDim) {
+    this.seal();
+    return DoubleBuffer.wrap(this.columnArray, this.getColumnOffset(nDim), this.nSample).slice()
+        .asReadOnlyBuffer();
+  }
+
+  /**METHOD: GET COLUMN ARRAY
+   * The array containing the samples in a column major format, the block is sealed first
+   * The array is replaced if the capacity is doubled, so call this again after adding samples
+   * @return Array where sample i of dimension j is at getColumnOffset(j) + i, not a copy
+   */
+  public double [] getColumnArray() {
+    this.seal();
+    return this.columnArray;
+  }
+
+  /**METHOD: GET COLUMN OFFSET
+   * @param nDim Which dimension
+   * @return Index of the first sample of the dimension in getColumnArray()
+   */
+  public int getColumnOffset(int nDim) {
+    return nDim * this.capacity;
+  }
+
+  /**IMPLEMENTED: GET CHAIN
+   * @return double array of the samples received, row major
+   */
+  @Override
+  public double [] getChain() {
+    this.seal();
+    double [] chain = new double[this.nSample*this.nDim];
+    for (int i=0; i<this.nDim; i++) {
+      int columnIndex = i*this.capacity;
+      for (int iSample=0; iSample<this.nSample; iSample++) {
+        chain[iSample*this.nDim + i] = this.columnArray[columnIndex + iSample];
+      }
+    }
+    return chain;
+  }
+
+  /**IMPLEMENTED: GET CHAIN (of a specific dimension)
+   * @param nDim Which dimension to extract from the chain
+   * @return double array of the chain, each element correspond to a sample
+   */
+  @Override
+  public double [] getChain(int nDim) {
+    this.seal();
+    double [] chain = new double[this.nSample];
+    System.arraycopy(this.columnArray, this.getColumnOffset(nDim), chain, 0, this.nSample);
+    return chain;
+  }
+
+}
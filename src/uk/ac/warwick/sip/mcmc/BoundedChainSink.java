@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**CLASS: BOUNDED CHAIN SINK
+ * Keeps only the most recent samples of a chain in a ring buffer of fixed capacity, older samples
+ * are overwritten. Useful for monitoring a long chain, eg the end of the chain, with bounded memory
+ */
+public class BoundedChainSink implements ChainSink {
+
+  protected int nDim; //number of dimensions of each sample
+  protected int capacity; //maximum number of samples kept
+  protected int nSample = 0; //number of samples received, including the overwritten ones
+  protected double [] buffer; //ring buffer of samples in a row major format
+
+  /**CONSTRUCTOR
+   * @param nDim number of dimensions of each sample
+   * @param capacity maximum number of samples to keep
+   */
+  public BoundedChainSink(int nDim, int capacity) {
+    this.nDim = nDim;
+    this.capacity = capacity;
+    this.buffer = new double[nDim * capacity];
+  }
+
+  /**IMPLEMENTED: ADD SAMPLE
+   * Copy the sample into the ring buffer, overwriting the oldest sample if full
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   */
+  @Override
+  public void addSample(double [] sample) {
+    int index = this.nSample % this.capacity;
+    System.arraycopy(sample, 0, this.buffer, index*this.nDim, this.nDim);
+    this.nSample++;
+  }
+
+  /**IMPLEMENTED: FLUSH
+   * Nothing to do, the samples are already in memory
+   */
+  @Override
+  public void flush() {
+    //do nothing
+  }
+
+  /**METHOD: GET N SAMPLE
+   * @return Number of samples received, including the ones which have been overwritten
+   */
+  public int getNSample() {
+    return this.nSample;
+  }
+
+  /**METHOD: GET N KEPT
+   * @return Number of samples currently kept
+   */
+  public int getNKept() {
+    return Math.min(this.nSample, this.capacity);
+  }
+
+  /**METHOD: GET CHAIN
+   * @return double array of the samples kept, oldest first, row major
+   */
+  public double [] getChain() {
+    int nKept = this.getNKept();
+    double [] chain = new double[nKept*this.nDim];
+    //index of the oldest sample in the ring buffer
+    int start = this.nSample - nKept;
+    for (int i=0; i<nKept; i++) {
+      int index = (start + i) % this.capacity;
+      System.arraycopy(this.buffer, index*this.nDim, chain, i*this.nDim, this.nDim);
+    }
+    return chain;
+  }
+
+}
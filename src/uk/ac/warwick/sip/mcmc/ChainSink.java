@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**INTERFACE: CHAIN SINK
+ * Receives the samples of a chain one at a time, in order, starting with the initial value
+ * A sink is given to a chain using the method Mcmc.setChainSink, the chain then streams each sample
+ * to the sink rather than storing the whole chain in the member variable chainArray
+ *
+ * Implementations:
+ *   -InMemoryChainSink: keeps all the samples in a growing array
+ *   -BoundedChainSink: keeps only the most recent samples
+ *   -FileChainSink: writes the samples to a binary file
+ *   -MappedChainSink: keeps all the samples off the heap, see the interface ChainStore
+ */
+public interface ChainSink {
+
+  /**METHOD: ADD SAMPLE
+   * Receive the next sample of the chain
+   * The array is owned by the chain and may be modified after this call, implementations must
+   * copy the values they want to keep
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   */
+  public void addSample(double [] sample);
+
+  /**METHOD: FLUSH
+   * Called at the end of Mcmc.run(), write out any buffered samples
+   */
+  public void flush();
+
+}
@@ -0,0 +1,48 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**INTERFACE: CHAIN STORE
+ * A ChainSink which keeps all the samples it receives and can read them back
+ * A store is given to a chain using the method Mcmc.setChainStore, the methods Mcmc.getChain then
+ * read the samples from the store rather than from the member variable chainArray
+ *
+ * Implementations:
+ *   -InMemoryChainSink: keeps all the samples in a growing array on the heap
+ *   -MappedChainSink: keeps all the samples off the heap, in a memory-mapped file or direct buffers
+ *   -BlockedChainStore: keeps all the samples in a column major format, in blocks transposed when
+ *   full, so that each dimension can be read without copying it
+ */
+public interface ChainStore extends ChainSink {
+
+  /**METHOD: GET N SAMPLE
+   * @return Number of samples received
+   */
+  public int getNSample();
+
+  /**METHOD: GET CHAIN
+   * @return double array of the samples received, row major
+   */
+  public double [] getChain();
+
+  /**METHOD: GET CHAIN (of a specific dimension)
+   * @param nDim Which dimension to extract from the chain
+   * @return double array of the chain, each element correspond to a sample
+   */
+  public double [] getChain(int nDim);
+
+}
@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.dense.row.decomposition.TriangularSolver_DDRM;
+import org.ejml.simple.SimpleMatrix;
+
+/**CLASS: DENSE METRIC
+ * Kinetic metric with a dense mass matrix, uses the cholesky decomposition and the inverse of the
+ * mass matrix
+ * This object has a workspace for the kinetic energy, so it should not be shared between threads
+ */
+public class DenseMetric implements KineticMetric {
+
+  protected SimpleMatrix massChol; //cholesky decomposition of the mass matrix
+  protected SimpleMatrix massInverse; //inverse of the mass matrix
+  private double [] kineticWorkspace; //used to work out the kinetic energy
+
+  /**CONSTRUCTOR
+   * @param massMatrix Symmetric positive definite mass matrix, not modified
+   */
+  public DenseMetric(SimpleMatrix massMatrix) {
+    int nDim = massMatrix.numRows();
+    //get the cholesky of the mass matrix, as well as the inverse
+    this.massChol = Global.cholesky(massMatrix);
+    if (this.massChol == null) {
+      throw new IllegalArgumentException("massMatrix must be symmetric positive definite");
+    }
+    //calculate the inverse of the mass matrix, this is done using the cholesky decomposition
+    SimpleMatrix massCholInverse = new SimpleMatrix(this.massChol);
+    //invert the cholesky decomposition to work out the inverse mass
+    TriangularSolver_DDRM.invertLower(massCholInverse.getDDRM().getData(), nDim);
+    this.massInverse = new SimpleMatrix(nDim, nDim);
+    CommonOps_DDRM.multInner(massCholInverse.getDDRM(), this.massInverse.getDDRM());
+    this.kineticWorkspace = new double[nDim];
+  }
+
+  /**IMPLEMENTED: GET N DIM
+   */
+  @Override
+  public int getNDim() {
+    return this.massChol.numRows();
+  }
+
+  /**IMPLEMENTED: SAMPLE MOMENTUM
+   * The N(0,1) vector z is multiplied by the lower triangular L in place, from the last row up so
+   * that each row only uses elements of z which are not yet overwritten
+   */
+  @Override
+  public void sampleMomentum(RandomGenerator rng, double [] momentum) {
+    int nDim = this.getNDim();
+    double [] l = this.massChol.getDDRM().getData();
+    ZigguratGaussian.nextGaussian(rng, momentum);
+    for (int i=nDim-1; i>=0; i--) {
+      double sum = 0;
+      int rowIndex = i*nDim;
+      for (int j=0; j<=i; j++) {
+        sum += l[rowIndex+j] * momentum[j];
+      }
+      momentum[i] = sum;
+    }
+  }
+
+  /**IMPLEMENTED: GET VELOCITY
+   */
+  @Override
+  public void getVelocity(double [] momentum, double [] velocity) {
+    int nDim = this.getNDim();
+    double [] massInverse = this.massInverse.getDDRM().getData();
+    for (int i=0; i<nDim; i++) {
+      double sum = 0;
+      int rowIndex = i*nDim;
+      for (int j=0; j<nDim; j++) {
+        sum += massInverse[rowIndex+j] * momentum[j];
+      }
+      velocity[i] = sum;
+    }
+  }
+
+  /**IMPLEMENTED: GET KINETIC ENERGY
+   * Calculates L^(-1)*momentum in place using forward substitution
+   */
+  @Override
+  public double getKineticEnergy(double [] momentum) {
+    int nDim = this.getNDim();
+    double [] z = this.kineticWorkspace;
+    System.arraycopy(momentum, 0, z, 0, nDim);
+    TriangularSolver_DDRM.solveL(this.massChol.getDDRM().getData(), z, nDim);
+    double sumSquare = 0;
+    for (int i=0; i<nDim; i++) {
+      sumSquare += z[i] * z[i];
+    }
+    return 0.5 * sumSquare;
+  }
+
+}
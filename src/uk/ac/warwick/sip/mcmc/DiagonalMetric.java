@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**CLASS: DIAGONAL METRIC
+ * Kinetic metric with a diagonal mass matrix, each dimension is scaled independently
+ */
+public class DiagonalMetric implements KineticMetric {
+
+  protected double [] mass; //diagonal of the mass matrix
+  protected double [] massSqrt; //square root of the diagonal of the mass matrix
+  protected double [] massInverse; //inverse of the diagonal of the mass matrix
+
+  /**CONSTRUCTOR
+   * @param mass Diagonal of the mass matrix, each element positive, not modified
+   */
+  public DiagonalMetric(double [] mass) {
+    int nDim = mass.length;
+    this.mass = mass.clone();
+    this.massSqrt = new double[nDim];
+    this.massInverse = new double[nDim];
+    for (int i=0; i<nDim; i++) {
+      if (!(mass[i] > 0)) {
+        throw new IllegalArgumentException("mass must be positive");
+      }
+      this.massSqrt[i] = Math.sqrt(mass[i]);
+      this.massInverse[i] = 1.0 / mass[i];
+    }
+  }
+
+  /**IMPLEMENTED: GET N DIM
+   */
+  @Override
+  public int getNDim() {
+    return this.mass.length;
+  }
+
+  /**IMPLEMENTED: SAMPLE MOMENTUM
+   */
+  @Override
+  public void sampleMomentum(RandomGenerator rng, double [] momentum) {
+    ZigguratGaussian.nextGaussian(rng, momentum);
+    for (int i=0; i<this.mass.length; i++) {
+      momentum[i] *= this.massSqrt[i];
+    }
+  }
+
+  /**IMPLEMENTED: GET VELOCITY
+   */
+  @Override
+  public void getVelocity(double [] momentum, double [] velocity) {
+    for (int i=0; i<this.mass.length; i++) {
+      velocity[i] = this.massInverse[i] * momentum[i];
+    }
+  }
+
+  /**IMPLEMENTED: GET KINETIC ENERGY
+   */
+  @Override
+  public double getKineticEnergy(double [] momentum) {
+    double sumSquare = 0;
+    for (int i=0; i<this.mass.length; i++) {
+      sumSquare += momentum[i] * momentum[i] * this.massInverse[i];
+    }
+    return 0.5 * sumSquare;
+  }
+
+  /**METHOD: GET MASS
+   * @return Diagonal of the mass matrix, not to be modified
+   */
+  public double [] getMass() {
+    return this.mass;
+  }
+
+}
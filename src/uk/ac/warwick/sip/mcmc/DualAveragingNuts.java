@@ -16,8 +16,7 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
-import org.ejml.dense.row.CommonOps_DDRM;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.simple.SimpleMatrix;
 
 /**CLASS: DUAL AVERAGING NO U TURN SAMPLER
@@ -26,9 +25,34 @@ import org.ejml.simple.SimpleMatrix;
  * Reference: Hoffman, M.D., and Gelman, A., (2014)
  *  The No-U-Turn sampler: adaptively setting path lengths in Hamiltonian Monte Carlo,
  *  Journal of Machine Learning Research, 15(1), pp.1593-1623
+ * By default, the first nAdaptive steps of the chain tune the step size and they are kept in the
+ * chain. A windowed warm up can be used instead, see the method setWarmUp. The nAdaptive steps are
+ * then taken before the chain starts and are not kept. The mass matrix is adapted, using the
+ * variance of the positions in a series of windows, and the step size adaptation restarts at the
+ * end of each window. This follows the warm up used by Stan
+ * Reference: Stan Development Team, Stan Reference Manual, HMC Algorithm Parameters
  */
 public class DualAveragingNuts extends NoUTurnSampler {
 
+  /**ENUM: METRIC ADAPTATION
+   * Which mass matrix is adapted during the windowed warm up
+   *   -NONE: the mass matrix is not adapted, only the step size
+   *   -DIAGONAL: diagonal mass matrix, the inverse of the variance of each dimension
+   *   -DENSE: dense mass matrix, the inverse of the covariance
+   */
+  public enum MetricAdaptation {
+    NONE, DIAGONAL, DENSE
+  }
+
+  static public final int DEFAULT_INITIAL_BUFFER = 75; //fast steps before the first window
+  static public final int DEFAULT_BASE_WINDOW = 25; //length of the first window
+  static public final int DEFAULT_TERMINAL_BUFFER = 50; //fast steps after the last window
+  //with fewer warm up steps than this, the mass matrix is not adapted
+  static private final int MIN_N_WARM_UP_METRIC = 20;
+  //the window variance is shrunk towards this value, with the weight of this many samples
+  static private final double METRIC_SHRINK_TARGET = 1E-3;
+  static private final double METRIC_SHRINK_WEIGHT = 5.0;
+
   protected double targetAcceptProb = 0.65; // \delta in the reference
   protected int nAdaptive; // M_adapt in the reference
   protected boolean isAdaptive = true;// boolean, true to do adaptive step
@@ -40,21 +64,49 @@ public class DualAveragingNuts extends NoUTurnSampler {
   protected double timeBias = 10.0; // t_0 in the reference
   protected double decayParameter = 0.75; // \kappa in the reference
   protected double currentHamiltonian; //the hamiltonian of the position-momentum pair currently
+  protected int nDualAveStep = 0; //m in the reference, number of steps since the adaption started
+
+  protected boolean isWarmUp = false; //true to take the adaptive steps before the chain starts
+  protected boolean isWarmingUp = false; //true while the warm up steps are taken
+  protected MetricAdaptation metricAdaptation = MetricAdaptation.DIAGONAL;
+  protected int initialBuffer = DEFAULT_INITIAL_BUFFER;
+  protected int baseWindow = DEFAULT_BASE_WINDOW;
+  protected int terminalBuffer = DEFAULT_TERMINAL_BUFFER;
+  //running statistics of the positions in the current window of the warm up
+  protected int nWindowSample;
+  protected double [] windowMean;
+  protected double [] windowDifference;
+  //sum of squares, a column vector for DIAGONAL or the lower triangle of a matrix for DENSE
+  protected SimpleMatrix windowSumSquares;
+
+  /**CONSTRUCTOR
+   * An adaptive HMC which adapts the number of leap frog steps so that no u turns are made
+   * It also adapts the size of the leap frog steps, requires the number of adaptive step
+   * @param target Object which has a method to call the pdf
+   * @param chainLength Length of the chain to be obtained
+   * @param massMatrix mass matrix, or column vector containing the diagonal of the mass matrix
+   * @parm nAdaptive number of adaptive steps to tune the step size, or number of warm up steps
+   * @param rng Random number generator to generate all the random numbers
+   */
+  public DualAveragingNuts(TargetDistribution target, int chainLength, SimpleMatrix massMatrix,
+      int nAdaptive, RandomGenerator rng) {
+    this(target, chainLength, KineticMetric.newMetric(massMatrix), nAdaptive, rng);
+  }
 
   /**CONSTRUCTOR
    * An adaptive HMC which adapts the number of leap frog steps so that no u turns are made
    * It also adapts the size of the leap frog steps, requires the number of adaptive step
    * @param target Object which has a method to call the pdf
    * @param chainLength Length of the chain to be obtained
-   * @param massVector column vector, containing diagonal element of the mass matrix
-   * @parm nAdaptive number of adaptive steps to tune the step size
+   * @param metric mass matrix, determines the variance of the momentum
+   * @parm nAdaptive number of adaptive steps to tune the step size, or number of warm up steps
    * @param rng Random number generator to generate all the random numbers
    */
-  public DualAveragingNuts(TargetDistribution target, int chainLength, SimpleMatrix massVector,
-      int nAdaptive, MersenneTwister rng) {
+  public DualAveragingNuts(TargetDistribution target, int chainLength, KineticMetric metric,
+      int nAdaptive, RandomGenerator rng) {
     //call superclass constructor
     //set the parameter sizeLeapFrog = 1.0
-    super(target, chainLength, massVector, 1.0, rng);
+    super(target, chainLength, metric, 1.0, rng);
     //assign sizeLeapFrog
     this.setInitialStepSize();
     //assign the rest of the member variables
@@ -84,6 +136,222 @@ public class DualAveragingNuts extends NoUTurnSampler {
     this.timeBias = chain.timeBias;
     this.decayParameter = chain.decayParameter;
     this.currentHamiltonian = chain.currentHamiltonian;
+    this.nDualAveStep = chain.nDualAveStep;
+    this.isWarmUp = chain.isWarmUp;
+    this.metricAdaptation = chain.metricAdaptation;
+    this.initialBuffer = chain.initialBuffer;
+    this.baseWindow = chain.baseWindow;
+    this.terminalBuffer = chain.terminalBuffer;
+  }
+
+  /**METHOD: SET WARM UP
+   * Take the nAdaptive adaptive steps before the chain starts, they are not kept in the chain, to
+   * be called before running the chain
+   * The mass matrix is adapted in windows, after an initial buffer of fast steps which only adapt
+   * the step size. Each window is twice as long as the previous one, the last one is extended to
+   * the terminal buffer of fast steps. At the end of each window, the mass matrix is set using the
+   * variance of the positions in that window and the step size adaptation is restarted
+   * If there are too few warm up steps for the buffers and the first window, they are set to 15%,
+   * 75% and 10% of the warm up steps, see the method setWarmUpWindows
+   * @param metricAdaptation Which mass matrix to adapt
+   */
+  public void setWarmUp(MetricAdaptation metricAdaptation) {
+    this.isWarmUp = true;
+    this.metricAdaptation = metricAdaptation;
+  }
+
+  /**METHOD: SET WARM UP WINDOWS
+   * Set the length of the buffers and the first window of the warm up, see the method setWarmUp
+   * @param initialBuffer Number of fast steps before the first window
+   * @param baseWindow Length of the first window
+   * @param terminalBuffer Number of fast steps after the last window
+   */
+  public void setWarmUpWindows(int initialBuffer, int baseWindow, int terminalBuffer) {
+    this.initialBuffer = initialBuffer;
+    this.baseWindow = baseWindow;
+    this.terminalBuffer = terminalBuffer;
+  }
+
+  /**OVERRIDE: RUN
+   * Take the warm up steps if requested and not done already, then run the chain
+   */
+  @Override
+  public void run() {
+    if (this.isWarmUp && this.isAdaptive) {
+      this.warmUp();
+    }
+    super.run();
+  }
+
+  /**METHOD: WARM UP
+   * Take the nAdaptive warm up steps, see the method setWarmUp
+   * The steps are not kept and do not count towards the statistics of the chain, the position
+   * afterwards is the initial value of the chain
+   * @throws IllegalStateException If the chain has already started
+   */
+  protected void warmUp() {
+    if ((this.nStep > 0) || (this.chainArray != null) || this.isInitialValueStreamed) {
+      throw new IllegalStateException("The warm up must be done before the chain starts");
+    }
+    int nWarmUp = this.nAdaptive;
+    int initialBuffer = this.initialBuffer;
+    int baseWindow = this.baseWindow;
+    int terminalBuffer = this.terminalBuffer;
+    //too few steps for the buffers and the first window, use a fraction of the steps for each
+    if (initialBuffer + baseWindow + terminalBuffer > nWarmUp) {
+      initialBuffer = (int) (0.15 * nWarmUp);
+      terminalBuffer = (int) (0.1 * nWarmUp);
+      baseWindow = nWarmUp - initialBuffer - terminalBuffer;
+    }
+    boolean isMetricAdapted = (this.metricAdaptation != MetricAdaptation.NONE)
+        && (nWarmUp >= MIN_N_WARM_UP_METRIC);
+    int windowStop = nWarmUp - terminalBuffer; //the last window ends here
+    int windowSize = baseWindow;
+    int windowEnd = getWindowEnd(initialBuffer, windowSize, windowStop);
+    this.clearWindowStatistics();
+
+    int nAccept = this.nAccept;
+    this.isWarmingUp = true;
+    for (int iStep=0; iStep<nWarmUp; iStep++) {
+      this.step(this.currentPosition);
+      if (isMetricAdapted && (iStep >= initialBuffer) && (iStep < windowStop)) {
+        this.updateWindowStatistics(this.currentPosition);
+        //at the end of the window, adapt the mass matrix and restart the step size adaptation
+        if (iStep+1 == windowEnd) {
+          this.adaptMetric();
+          this.restartDualAveraging();
+          windowSize *= 2;
+          windowEnd = getWindowEnd(windowEnd, windowSize, windowStop);
+        }
+      }
+    }
+    this.isWarmingUp = false;
+
+    //fix the step size, there is no average if the last window ended at the last warm up step
+    if (this.nDualAveStep > 0) {
+      this.sizeLeapFrog = Math.exp(this.logDualAveSizeLeapFrog);
+    }
+    this.isAdaptive = false;
+    //the chain starts from the position after the warm up
+    this.nAccept = nAccept;
+    this.chainMean = new SimpleMatrix(this.currentPosition);
+  }
+
+  /**FUNCTION: GET WINDOW END
+   * Return the step a window of the warm up ends, the window is extended to windowStop if there is
+   * no room for the next window, which is twice as long
+   * @param windowStart Step the window starts
+   * @param windowSize Length of the window
+   * @param windowStop Step the last window ends
+   * @return Step the window ends, exclusive
+   */
+  private static int getWindowEnd(int windowStart, int windowSize, int windowStop) {
+    int windowEnd = windowStart + windowSize;
+    if (windowEnd + 2*windowSize >= windowStop) {
+      windowEnd = windowStop;
+    }
+    return windowEnd;
+  }
+
+  /**METHOD: CLEAR WINDOW STATISTICS
+   * Reset the running statistics of the positions in the current window of the warm up
+   */
+  protected void clearWindowStatistics() {
+    int nDim = this.getNDim();
+    this.nWindowSample = 0;
+    this.windowMean = new double[nDim];
+    this.windowDifference = new double[nDim];
+    if (this.metricAdaptation == MetricAdaptation.DENSE) {
+      this.windowSumSquares = new SimpleMatrix(nDim, nDim);
+    } else {
+      this.windowSumSquares = new SimpleMatrix(nDim, 1);
+    }
+  }
+
+  /**METHOD: UPDATE WINDOW STATISTICS
+   * Update the mean and sum of squares of the positions in the current window using Welford's
+   * method, only the diagonal or the lower triangle of the sum of squares is updated
+   * @param x Column vector, position after a warm up step
+   */
+  protected void updateWindowStatistics(SimpleMatrix x) {
+    int nDim = this.getNDim();
+    double [] xArray = x.getDDRM().getData();
+    double [] sumSquares = this.windowSumSquares.getDDRM().getData();
+    this.nWindowSample++;
+    for (int i=0; i<nDim; i++) {
+      this.windowDifference[i] = xArray[i] - this.windowMean[i];
+      this.windowMean[i] += this.windowDifference[i] / this.nWindowSample;
+    }
+    if (this.metricAdaptation == MetricAdaptation.DENSE) {
+      for (int i=0; i<nDim; i++) {
+        double residual = xArray[i] - this.windowMean[i];
+        for (int j=0; j<=i; j++) {
+          sumSquares[i*nDim+j] += residual * this.windowDifference[j];
+        }
+      }
+    } else {
+      for (int i=0; i<nDim; i++) {
+        sumSquares[i] += (xArray[i] - this.windowMean[i]) * this.windowDifference[i];
+      }
+    }
+  }
+
+  /**METHOD: ADAPT METRIC
+   * Set the mass matrix to the inverse of the covariance of the positions in the current window,
+   * then clear the window statistics
+   * The covariance is shrunk towards a small multiple of the identity, as done in Stan, so that it
+   * is positive definite for short windows
+   */
+  protected void adaptMetric() {
+    int nDim = this.getNDim();
+    double n = (double) this.nWindowSample;
+    double weight = n / ((n + METRIC_SHRINK_WEIGHT) * (n - 1.0));
+    double shrink = METRIC_SHRINK_TARGET * METRIC_SHRINK_WEIGHT / (n + METRIC_SHRINK_WEIGHT);
+    double [] sumSquares = this.windowSumSquares.getDDRM().getData();
+    if (this.metricAdaptation == MetricAdaptation.DENSE) {
+      SimpleMatrix covariance = new SimpleMatrix(nDim, nDim);
+      for (int i=0; i<nDim; i++) {
+        for (int j=0; j<=i; j++) {
+          double covarianceIJ = weight * sumSquares[i*nDim+j];
+          covariance.set(i, j, covarianceIJ);
+          covariance.set(j, i, covarianceIJ);
+        }
+        covariance.set(i, i, covariance.get(i, i) + shrink);
+      }
+      this.metric = new DenseMetric(covariance.invert());
+    } else {
+      double [] mass = new double[nDim];
+      for (int i=0; i<nDim; i++) {
+        mass[i] = 1.0 / (weight * sumSquares[i] + shrink);
+      }
+      this.metric = new DiagonalMetric(mass);
+    }
+    this.clearWindowStatistics();
+  }
+
+  /**METHOD: RESTART DUAL AVERAGING
+   * Restart the step size adaptation, eg after the mass matrix has changed
+   * A reasonable step size is found from the current step size and it becomes the new centre of
+   * the shrinkage
+   */
+  protected void restartDualAveraging() {
+    this.setInitialStepSize();
+    this.logSizeLeapFrog = Math.log(this.sizeLeapFrog);
+    this.shrinkCentre = Math.log(10.0) + this.logSizeLeapFrog;
+    this.logDualAveSizeLeapFrog = 0.0;
+    this.objective = 0.0;
+    this.nDualAveStep = 0;
+  }
+
+  /**OVERRIDE: UPDATE STATISTICS
+   * The warm up steps do not count towards the statistics of the chain
+   * @param x The new position column vector of the chain, after the MCMC step(s)
+   */
+  @Override
+  protected void updateStatistics(SimpleMatrix x) {
+    if (!this.isWarmingUp) {
+      super.updateStatistics(x);
+    }
   }
 
   /**OVERRIDE: SET INITIAL VALUE
@@ -102,9 +370,12 @@ public class DualAveragingNuts extends NoUTurnSampler {
    * @param position Column vector of the current step of the MCMC, to be modified
    */
   protected void setInitialStepSize() {
-    SimpleMatrix position = this.chainArray.extractVector(true, this.nSample - 1);
-    CommonOps_DDRM.transpose(position.getDDRM());
+    SimpleMatrix position = new SimpleMatrix(this.currentPosition);
     SimpleMatrix momentum = this.getMomentum();
+    //the gradient and potential at the position, these are cached for the first step
+    SimpleMatrix gradient = new SimpleMatrix(this.getNDim(), 1);
+    double potential = this.evaluatePotential(position, gradient);
+    this.setCurrentState(position, gradient, potential);
     double acceptProb;
     double canonicalCurrent;
     double canonicalProposal;
@@ -118,12 +389,14 @@ public class DualAveragingNuts extends NoUTurnSampler {
       //get the position-momentum pair and take a leap frog step
       SimpleMatrix positionProposal = new SimpleMatrix(position);
       SimpleMatrix momentumProposal = new SimpleMatrix(momentum);
-      this.leapFrog(positionProposal, momentumProposal);
+      SimpleMatrix gradientProposal = new SimpleMatrix(gradient);
+      double potentialProposal = this.leapFrog(positionProposal, momentumProposal,
+          gradientProposal);
 
       //get the canonical distributions given the hamiltonians
-      canonicalCurrent = Math.exp(-this.getHamiltonian(position, momentum));
-      canonicalProposal = Math.exp(-this.getHamiltonian(positionProposal
-          ,momentumProposal));
+      canonicalCurrent = Math.exp(-(this.getKineticEnergy(momentum) + potential));
+      canonicalProposal = Math.exp(-(this.getKineticEnergy(momentumProposal)
+          + potentialProposal));
       //get acceptance probability
       acceptProb = canonicalProposal/canonicalCurrent;
 
@@ -141,13 +414,13 @@ public class DualAveragingNuts extends NoUTurnSampler {
   }
 
   /**OVERRIDE: SAMPLE SLICE VARIABLE
-   * Set the member variable sliceVariable given the current hamiltonian
+   * Set the member variable logSliceVariable given the current hamiltonian
    * Also sets the member variable currentHamiltonian
    * @parm hamiltonian The hamiltonian at the current position-momentum state
    */
   @Override
   protected void sampleSliceVariable(double hamiltonian) {
-    //call the superclass method which sets the member variable sliceVariable
+    //call the superclass method which sets the member variable logSliceVariable
     super.sampleSliceVariable(hamiltonian);
     //save the current hamiltonian
     this.currentHamiltonian = hamiltonian;
@@ -176,12 +449,13 @@ public class DualAveragingNuts extends NoUTurnSampler {
     //if this is the adaptive step, adjust the member variables accordingly using the dual
     //averaging procedure
     if (isAdaptive) {
-      //if this is the adaptive step
-      if (this.nStep <= this.nAdaptive) {
+      this.nDualAveStep++;
+      //if this is the adaptive step, a warm up never reaches the end here, see warmUp
+      if (this.nDualAveStep <= this.nAdaptive) {
         //set the sub tree, 1/(m+t_0), m^{-\kappa} and \alpha/(n\alpha)
         Tree subTree = tree.subTree;
-        double nStepBiasInverse = 1/((double)this.nStep + this.timeBias);
-        double decay = Math.pow((double)this.nStep,-this.decayParameter);
+        double nStepBiasInverse = 1/((double)this.nDualAveStep + this.timeBias);
+        double decay = Math.pow((double)this.nDualAveStep,-this.decayParameter);
         double currentPropAccept = subTree.sumProbAccept/((double)subTree.nAcceptReject);
 
         //update the objective
@@ -190,7 +464,7 @@ public class DualAveragingNuts extends NoUTurnSampler {
 
         //adjust logSizeLeapFrog and sizeLeapFrog
         this.logSizeLeapFrog = this.shrinkCentre
-            - Math.sqrt((double)this.nStep)*this.objective/this.shrinkage;
+            - Math.sqrt((double)this.nDualAveStep)*this.objective/this.shrinkage;
         this.sizeLeapFrog = Math.exp(this.logSizeLeapFrog);
 
         //take a weighted average of logSizeLeapFrog and logDualAveSizeLeapFrog
@@ -226,6 +500,24 @@ public class DualAveragingNuts extends NoUTurnSampler {
     return this.new Tree(position, momentum, isNegative, treeHeight);
   }
 
+  /**OVERRIDE: NEW TREE
+   * See constructor in subclass Tree
+   */
+  @Override
+  protected Tree newTree (SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+      double potential) {
+    return this.new Tree(position, momentum, gradient, potential);
+  }
+
+  /**OVERRIDE: NEW TREE
+   * See constructor in subclass Tree
+   */
+  @Override
+  protected Tree newTree (SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+      boolean isNegative, int treeHeight) {
+    return this.new Tree(position, momentum, gradient, isNegative, treeHeight);
+  }
+
   /**INNER CLASS: TREE
    * See superclass NoUTurnSampler.Tree
    * Extended for the dual averaging algorithm
@@ -268,6 +560,31 @@ public class DualAveragingNuts extends NoUTurnSampler {
       super(position, momentum, isNegative, treeHeight);
     }
 
+    /**CONSTRUCTOR
+     * See superclass NoUTurnSampler.Tree
+     * @param position Column vector, position vector to grow from
+     * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param potential Potential at position
+     */
+    public Tree(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        double potential) {
+      super(position, momentum, gradient, potential);
+    }
+
+    /**CONSTRUCTOR
+     * See superclass NoUTurnSampler.Tree
+     * @param position Column vector, position vector to grow from
+     * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param isNegative Direction to grow the tree
+     * @param treeHeight Requested instantiated tree height
+     */
+    public Tree(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        boolean isNegative, int treeHeight) {
+      super(position, momentum, gradient, isNegative, treeHeight);
+    }
+
     /**OVERRIDE: SET USING HAMILTONIAN
      * See superclass NoUTurnSampler.Tree
      * Set the member variables this.sumPropAccept and nAcceptReject in the base case
@@ -290,19 +607,29 @@ public class DualAveragingNuts extends NoUTurnSampler {
       this.nAcceptReject = 1;
     }
 
-    /**OVERRIDE: GROW
-     * Calls the superclass method grow as usual but cast the hidden superclass
-     * member variable super.subTree to a DualAveragingNuts.Tree reference
-     * @param isNegative boolean, true of going back in time, otherwise forward
+    /**OVERRIDE: RESET
+     * See superclass NoUTurnSampler.Tree
+     * Also reset the member variables sumProbAccept and nAcceptReject
+     */
+    @Override
+    protected void reset() {
+      super.reset();
+      this.sumProbAccept = 0.0;
+      this.nAcceptReject = 0.0;
+    }
+
+    /**OVERRIDE: SET SUB TREE
+     * Calls the superclass method setSubTree as usual but cast the subtree to a
+     * DualAveragingNuts.Tree reference
+     * @param subTree Subtree grown from the end of this tree
      */
     @Override
-    protected void grow(boolean isNegative) {
+    protected void setSubTree(NoUTurnSampler.Tree subTree) {
       //superclass method modifies the hidden superclass member variable super.subTree
-      super.grow(isNegative);
-      //cast the superclass member variable super.subTree to a
-      //DualAveragingNuts.Tree reference
+      super.setSubTree(subTree);
+      //cast the subtree to a DualAveragingNuts.Tree reference
       //save the casted reference to the member variable this.subTree
-      this.subTree = (Tree) super.subTree;
+      this.subTree = (Tree) subTree;
     }
 
     /**OVERRIDE: BLOOM
@@ -16,10 +16,9 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.simple.SimpleMatrix;
 
@@ -42,8 +41,8 @@ public class EllipticalSlice extends Mcmc{
   protected SimpleMatrix ellipse0;
   //position vector of the end of the ellipse (the sample from the prior)
   protected SimpleMatrix proposal;
-  //after a step, an array of points looked at on the ellipse
-  protected ArrayList<SimpleMatrix> ellipticalPositions;
+  //after a step, the points looked at on the ellipse, recorded depending on the policy
+  protected Trajectory ellipticalPositions;
   //slice variable, log uniform number plus log likelihood
   protected double sliceVariable;
 
@@ -58,11 +57,12 @@ public class EllipticalSlice extends Mcmc{
    * @param rng Random number generator all the random numbers
    */
   public EllipticalSlice(TargetDistribution target, TargetDistribution likelihood,
-      NormalDistribution prior, int chainLength, MersenneTwister rng) {
+      NormalDistribution prior, int chainLength, RandomGenerator rng) {
     super(target, chainLength, rng);
     this.likelihood = likelihood;
     this.prior = prior;
-    this.ellipticalPositions = new ArrayList<SimpleMatrix>();
+    //nothing is recorded by default
+    this.ellipticalPositions = new Trajectory(this.getNDim());
   }
 
   /**CONSTRUCTOR
@@ -77,7 +77,7 @@ public class EllipticalSlice extends Mcmc{
     this.likelihood = chain.likelihood;
     this.prior = chain.prior;
     this.proposal = chain.proposal;
-    this.ellipticalPositions = chain.ellipticalPositions;
+    this.ellipticalPositions = new Trajectory(chain.ellipticalPositions);
     this.sliceVariable = chain.sliceVariable;
   }
 
@@ -86,15 +86,16 @@ public class EllipticalSlice extends Mcmc{
     //elliptical slice sampling is a weighted sum of position and a sample from the prior
     this.ellipse0 = new SimpleMatrix(position); //start of ellipse
     this.proposal = this.prior.sample(this.rng); //end of ellipse
-    //array to store all points looked at on the ellipse
-    this.ellipticalPositions = new ArrayList<SimpleMatrix>();
+    //clear the points looked at on the ellipse in the previous step
+    this.ellipticalPositions.clear();
 
     double angle = this.sampleAngle(0, 2*Math.PI);
     double angleMin = angle - 2*Math.PI;
     double angleMax = angle;
 
     //sliceVariable is compared with the likelihood at points on the ellipse
-    this.sliceVariable = Math.log(this.rng.nextDouble()) - this.likelihood.getPotential(position);
+    this.sliceVariable = Math.log(this.rng.nextDouble())
+        - this.likelihood.getPotential(position.getDDRM().getData());
     boolean gotSample = false;
 
     //look through the ellipse until got valid sample
@@ -104,7 +105,7 @@ public class EllipticalSlice extends Mcmc{
         gotSample = true;
       } else {
         //else this is not a valid point, look elsewhere on the ellipse
-        this.ellipticalPositions.add(new SimpleMatrix(position));
+        this.ellipticalPositions.addLast(position);
         if (angle < 0) {
           angleMin = angle;
         } else {
@@ -123,7 +124,7 @@ public class EllipticalSlice extends Mcmc{
    * @return boolean if the position vector is valid under slice sampling
    */
   public boolean isValidPointOnEllipse(SimpleMatrix position) {
-    return -this.likelihood.getPotential(position) > this.sliceVariable;
+    return -this.likelihood.getPotential(position.getDDRM().getData()) > this.sliceVariable;
   }
 
   /**METHOD: GET POINT ON ELLIPSE
@@ -152,11 +153,22 @@ public class EllipticalSlice extends Mcmc{
 
   /**METHOD: GET ELLIPTICAL POSITIONS ITERATOR
    * Return an iterator which iterates through all the points looked at on the ellipse
+   * Requires the recording policy FULL or BOUNDED, see the method setRecordingPolicy
    */
   public Iterator<SimpleMatrix> getEllipticalPositionsIterator(){
     return this.ellipticalPositions.iterator();
   }
 
+  /**METHOD: SET RECORDING POLICY
+   * Set which points looked at on the ellipse are recorded at each step, by default nothing is
+   * recorded
+   * @param recordingPolicy Which points to record
+   * @param capacity Maximum number of points to keep, only used for the policy BOUNDED
+   */
+  public void setRecordingPolicy(Trajectory.RecordingPolicy recordingPolicy, int capacity) {
+    this.ellipticalPositions.setRecordingPolicy(recordingPolicy, capacity);
+  }
+
   /**METHOD: SAMPLE ANGLE`
    * Sample from the uniform distribution
    * @param min minimun value
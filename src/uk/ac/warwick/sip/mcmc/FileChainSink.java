@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**CLASS: FILE CHAIN SINK
+ * Writes the samples of a chain to a binary file, each sample is written as nDim big-endian doubles
+ * one after another, ie the file is the chain in a row major format
+ * The file can be read back using, for example, java.io.DataInputStream or numpy.fromfile with
+ * dtype '>f8'
+ * Call the method close when the chain has finished
+ */
+public class FileChainSink implements ChainSink {
+
+  protected DataOutputStream outputStream; //buffered stream to the file
+  protected int nSample = 0; //number of samples written
+
+  /**CONSTRUCTOR
+   * Open the file for writing, an existing file is overwritten
+   * @param file The file to write the samples to
+   * @throws IOException If the file cannot be opened
+   */
+  public FileChainSink(File file) throws IOException {
+    this.outputStream = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 1 << 16));
+  }
+
+  /**IMPLEMENTED: ADD SAMPLE
+   * Write the sample to the end of the file
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   */
+  @Override
+  public void addSample(double [] sample) {
+    try {
+      for (int i=0; i<sample.length; i++) {
+        this.outputStream.writeDouble(sample[i]);
+      }
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    this.nSample++;
+  }
+
+  /**IMPLEMENTED: FLUSH
+   * Write the buffered samples to the file
+   */
+  @Override
+  public void flush() {
+    try {
+      this.outputStream.flush();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  /**METHOD: CLOSE
+   * Write the buffered samples and close the file
+   * @throws IOException If the file cannot be written to
+   */
+  public void close() throws IOException {
+    this.outputStream.close();
+  }
+
+  /**METHOD: GET N SAMPLE
+   * @return Number of samples written
+   */
+  public int getNSample() {
+    return this.nSample;
+  }
+
+}
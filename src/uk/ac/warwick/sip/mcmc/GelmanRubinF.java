@@ -16,10 +16,6 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import java.util.ArrayList;
-
-import org.apache.commons.math3.stat.inference.OneWayAnova;
-
 /**CLASS: GELMAN RUBIN F STATISTIC
  * Diagnostic for juding the convergence of MCMC. This is done by investigating multiple chains,
  * with different starting points, and looking at the mean between and within chain, similar to
@@ -28,12 +24,22 @@ import org.apache.commons.math3.stat.inference.OneWayAnova;
  * How to use: construct an array of Mcmc and run each and every chain.
  * Then call the getGelmanRubinFArray or getGelmanRubinF to obtain the statistic.
  *
+ * The prefix sums of x and x^2 of the first 2*maxNBurnIn samples of each chain are worked out at
+ * each call of getGelmanRubinFArray. Each F statistic is then worked out in O(nChain) from the
+ * sums, so the curve costs about the same as one ANOVA. The sums are not kept between calls, so
+ * the chains can be run further between calls.
  */
 public class GelmanRubinF {
 
   //array of MCMC, mcmc chains are represented as a double [], each entry for each step
   protected Mcmc [] chainArray;
 
+  //for each chain, prefixSum[iChain][i] is the sum of the first i samples, less shift
+  protected double [][] prefixSum;
+  //for each chain, prefixSumSquares[iChain][i] is the sum of squares of the first i samples, less
+  //shift
+  protected double [][] prefixSumSquares;
+
   /**CONSTRUCTOR
    * @param chainArray array of chains to be used for the Gelman Rubin statistic
    */
@@ -49,12 +55,13 @@ public class GelmanRubinF {
    * @return array of f statistics for nBurnIn 2,3,...,maxNBurnIn
    */
   public double [] getGelmanRubinFArray(int nDim, int maxNBurnIn) {
+    this.setPrefixSum(nDim, 2*maxNBurnIn);
     //declare array for F statistics, this doesn't include nBurnIn=1
     double [] fArray = new double[maxNBurnIn-1];
     //for each nBurnIn, get the F statistic and save it in the array
     for (int i=0; i<(maxNBurnIn-1); i++) {
       //calculate the F statistic for nBurnIn = 2,3,...,maxNBurnIn
-      fArray[i] = this.getGelmanRubinF(nDim, i+2);
+      fArray[i] = this.getGelmanRubinF(i+2);
     }
     return fArray;
   }
@@ -71,26 +78,89 @@ public class GelmanRubinF {
    * @return Gelman's F statistic, ANOVA version
    */
   protected double getGelmanRubinF(int nDim, int nBurnIn) {
-    //declare array for storing double []
-    //these double [] represent the FULL chain
-    ArrayList <double []> chainArrayList = new ArrayList <double []>(this.chainArray.length);
-    double [] chain; //declare array for a chain
-    double [] chainBurnIn; //declare array for a burnin chain
-    //for each chain
-    for (int iChain=0; iChain<this.chainArray.length; iChain++) {
-      //get the chain
-      chain = this.chainArray[iChain].getChain(nDim);
-      //copy the values of the burnt values
-      chainBurnIn = new double[nBurnIn];
-      for (int i=0; i<nBurnIn; i++) {
-        chainBurnIn[i] = chain[nBurnIn+i];
-      }
-      //add the burnt in chain to the array
-      chainArrayList.add(chainBurnIn);
+    this.setPrefixSum(nDim, 2*nBurnIn);
+    return this.getGelmanRubinF(nBurnIn);
+  }
+
+  /**METHOD: GET GELMAN RUBIN F STATISTIC
+   * Calculates the F statistic for a given nBurnIn, see getGelmanRubinF(int, int), using the
+   * prefix sums worked out by setPrefixSum, which must cover the first 2*nBurnIn samples
+   * @param nBurnIn The number of samples at the start of the chain to be ignored
+   * @return Gelman's F statistic, ANOVA version
+   */
+  protected double getGelmanRubinF(int nBurnIn) {
+    int nChain = this.chainArray.length;
+    double nSample = (double) nBurnIn; //number of samples in each chain
+    double sumChainMean = 0; //sum of the mean of each chain
+    double sumSquaresChainMean = 0; //sum of the squares of the mean of each chain
+    double sumSquaresWithin = 0; //sum of squares within chains
+    for (int iChain=0; iChain<nChain; iChain++) {
+      //sum and sum of squares of the samples nBurnIn, ..., 2*nBurnIn - 1
+      double sum = this.prefixSum[iChain][2*nBurnIn] - this.prefixSum[iChain][nBurnIn];
+      double sumSquares = this.prefixSumSquares[iChain][2*nBurnIn]
+          - this.prefixSumSquares[iChain][nBurnIn];
+      double chainMean = sum / nSample;
+      sumChainMean += chainMean;
+      sumSquaresChainMean += chainMean * chainMean;
+      sumSquaresWithin += sumSquares - sum * chainMean;
     }
-    //using the array of chains, do a one way anova and return the F statistic
-    OneWayAnova anova = new OneWayAnova();
-    return anova.anovaFValue(chainArrayList);
+    //sum of squares between chains, the chains have the same number of samples
+    double grandMean = sumChainMean / nChain;
+    double sumSquaresBetween = nSample * (sumSquaresChainMean - nChain * grandMean * grandMean);
+    //the sum of squares within can be slightly negative from rounding errors
+    sumSquaresWithin = Math.max(sumSquaresWithin, 0.0);
+    double meanSquaresBetween = sumSquaresBetween / (nChain - 1);
+    double meanSquaresWithin = sumSquaresWithin / (nChain * (nSample - 1));
+    return meanSquaresBetween / meanSquaresWithin;
+  }
 
+  /**METHOD: SET PREFIX SUM
+   * Work out the prefix sums of the first nPrefix samples of each chain for a dimension
+   * The samples are shifted by the initial value of the first chain before they are summed, this
+   * reduces the rounding errors of the sum of squares when the mean is large compared to the
+   * standard deviation
+   * @param nDim which dimension to investigate
+   * @param nPrefix number of samples at the start of each chain to sum
+   * @throws IllegalArgumentException If a chain has fewer than nPrefix samples
+   */
+  protected void setPrefixSum(int nDim, int nPrefix) {
+    int nChain = this.chainArray.length;
+    this.prefixSum = new double[nChain][];
+    this.prefixSumSquares = new double[nChain][];
+    double shift = 0;
+    for (int iChain=0; iChain<nChain; iChain++) {
+      //read the column without copying it if possible, otherwise extract it from the store
+      Mcmc mcmc = this.chainArray[iChain];
+      double [] chain;
+      int offset;
+      int stride;
+      int length;
+      if (mcmc.hasColumnData()) {
+        chain = mcmc.getColumnData();
+        offset = mcmc.getColumnOffset(nDim);
+        stride = mcmc.getColumnStride();
+        length = mcmc.getColumnLength();
+      } else {
+        chain = mcmc.getChain(nDim);
+        offset = 0;
+        stride = 1;
+        length = chain.length;
+      }
+      if (length < nPrefix) {
+        throw new IllegalArgumentException("Each chain must have at least "+nPrefix+" samples");
+      }
+      if (iChain == 0) {
+        shift = chain[offset];
+      }
+      double [] sum = new double[nPrefix+1];
+      double [] sumSquares = new double[nPrefix+1];
+      for (int i=0; i<nPrefix; i++) {
+        double x = chain[offset + i*stride] - shift;
+        sum[i+1] = sum[i] + x;
+        sumSquares[i+1] = sumSquares[i] + x * x;
+      }
+      this.prefixSum[iChain] = sum;
+      this.prefixSumSquares[iChain] = sumSquares;
+    }
   }
 }
@@ -18,6 +18,7 @@ package uk.ac.warwick.sip.mcmc;
 
 import aliceinnets.python.jyplot.JyPlot;
 import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.data.DMatrixRMaj;
 import org.ejml.dense.row.MatrixFeatures_DDRM;
 import org.ejml.dense.row.factory.DecompositionFactory_DDRM;
@@ -27,7 +28,7 @@ import processing.core.PApplet;
 
 /**GLOBAL
  * Example code for MCMC targetting a Normal with random covariance
- * Runs 5 chains
+ * Runs 5 chains concurrently, see MultiChainRunner
  * Plots trace plot, F statistic, acceptance rate, autocorrelation, autocorrelation of the batches
  * Prints efficiency, log precision, mean and error
  */
@@ -59,42 +60,49 @@ public class Global {
   }
 
   public static void example() {
-    int nDim = 16;
-    int chainLength = 100000;
+    final int nDim = 16;
+    final int chainLength = 100000;
     MersenneTwister rng = new MersenneTwister(-280845742);
     SimpleMatrix targetCovariance = Global.getRandomCovariance(nDim, rng);
     SimpleMatrix massMatrix = SimpleMatrix.identity(nDim);
     massMatrix = massMatrix.scale(1.0);
-    double sizeLeapFrog = 0.5;
-    TargetDistribution target = new NormalDistribution(nDim, targetCovariance);
+    final double sizeLeapFrog = 0.5;
+    final TargetDistribution target = new NormalDistribution(nDim, targetCovariance);
 
     //for rubin-gelman, need to run additional chains
+    //the chains are run concurrently, each with its own random number generator
     int nChain = 5;
-    //declare array of chains
-    Mcmc [] mcmcArray = new Mcmc [nChain];
-    //declare variables for different initial values
-    double [] initialValue = new double[target.getNDim()];
-    //initial value uses random points from the first chain
-    int nIndex;
-    //for each chain
-    for (int iChain=0; iChain<nChain; iChain++) {
-      //instantiate a chain
-      //Mcmc chain = new MixtureAdaptiveRwmh(target, chainLength, proposalCovariance, rng);
-      //Mcmc chain = new HamiltonianMonteCarlo(target, chainLength, massMatrix, sizeLeapFrog, nLeapFrog, rng) ;
-      Mcmc chain = new NoUTurnSampler(target, chainLength,massMatrix, sizeLeapFrog, rng) ;
-      //Mcmc chain = new DualAveragingNuts(target, chainLength, massMatrix, nAdaptive, rng) ;
-      //for not the first chain, set the initial point using a random point from the first chain
-      if (iChain != 0) {
-        //use random point from the first chain as the initial value
-        nIndex = rng.nextInt(chainLength);
-        for (int iDim=0; iDim<target.getNDim(); iDim++) {
-          initialValue[iDim] = mcmcArray[0].getChain()[nIndex*target.getNDim()+iDim];
+    //the chains after the first start at random points, overdispersed relative to the target
+    final NormalDistribution initialDistribution = new NormalDistribution(nDim,
+        targetCovariance.scale(4.0));
+    final SimpleMatrix chainMassMatrix = massMatrix;
+    MultiChainRunner.ChainFactory chainFactory = new MultiChainRunner.ChainFactory() {
+      @Override
+      public Mcmc newChain(int iChain, RandomGenerator chainRng) {
+        //instantiate a chain
+        //Mcmc chain = new MixtureAdaptiveRwmh(target, chainLength, proposalCovariance, chainRng);
+        //Mcmc chain = new HamiltonianMonteCarlo(target, chainLength, chainMassMatrix,
+        //    sizeLeapFrog, nLeapFrog, chainRng);
+        Mcmc chain = new NoUTurnSampler(target, chainLength, chainMassMatrix, sizeLeapFrog,
+            chainRng);
+        //Mcmc chain = new DualAveragingNuts(target, chainLength, chainMassMatrix, nAdaptive,
+        //    chainRng);
+        //the chain covariance is only needed by the adaptive rwmh family
+        chain.setStatisticsPolicy(Mcmc.StatisticsPolicy.MEAN);
+        //for not the first chain, set the initial point randomly
+        if (iChain != 0) {
+          chain.setInitialValue(initialDistribution.sample(chainRng).getDDRM().getData());
         }
-        chain.setInitialValue(initialValue);
+        return chain;
       }
-      //run the chain and save it
-      chain.run();
-      mcmcArray[iChain] = chain;
+    };
+    MultiChainRunner runner = new MultiChainRunner(chainFactory, nChain, rng.nextInt());
+    Mcmc [] mcmcArray;
+    try {
+      mcmcArray = runner.run();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      return;
     }
     //plot trace plot for each chain
     for (int i=0; i<nChain; i++) {
@@ -202,13 +210,65 @@ public class Global {
   }
 
 
+  /**FUNCTION: CHOLESKY RANK ONE UPDATE
+   * Updates a lower triangular cholesky factor L in place so that L*L^T becomes
+   * L*L^T + alpha * x * x^T, this is an update for positive alpha and a downdate for negative
+   * alpha. This costs O(n^2) compared to O(n^3) for decomposing again
+   * The update always succeeds, the downdate fails if the result is not positive definite, L is
+   * then left partially modified
+   * @param chol Lower triangular cholesky factor, MODIFIED
+   * @param alpha Scale of the rank one term
+   * @param x Array of length n, MODIFIED, used as a workspace
+   * @return true if successful, false if a downdate was not positive definite
+   */
+  public static boolean choleskyRankOneUpdate(SimpleMatrix chol, double alpha, double [] x) {
+    int n = chol.numRows();
+    double [] l = chol.getDDRM().getData();
+    double sign = Math.signum(alpha);
+    double scale = Math.sqrt(Math.abs(alpha));
+    for (int i=0; i<n; i++) {
+      x[i] *= scale;
+    }
+    //apply a rotation to each column in turn, column k is l[i*n+k] for i>=k
+    for (int k=0; k<n; k++) {
+      double diagonal = l[k*n+k];
+      double rSquared = diagonal * diagonal + sign * x[k] * x[k];
+      if (!(rSquared > 0)) {
+        return false;
+      }
+      double r = Math.sqrt(rSquared);
+      double c = r / diagonal;
+      double s = x[k] / diagonal;
+      l[k*n+k] = r;
+      for (int i=k+1; i<n; i++) {
+        int index = i*n+k;
+        l[index] = (l[index] + sign * s * x[i]) / c;
+        x[i] = c * x[i] - s * l[index];
+      }
+    }
+    return true;
+  }
+
+  /**FUNCTION: AXPY
+   * Does y = a*x + y in place
+   * @param a Scalar to multiply x by
+   * @param x Array to be scaled and added to y, not modified
+   * @param y Array to be added to, MODIFIED
+   * @param n Number of elements
+   */
+  public static void axpy(double a, double [] x, double [] y, int n) {
+    for (int i=0; i<n; i++) {
+      y[i] += a * x[i];
+    }
+  }
+
   /**FUNCTION: GET RANDOM COVARIANCE
    * Generates a random covariance using ZZ' where Z is a dxd matrix of random standard Gaussian
    * @param nDim Number of dimensions
-   * @param rng MersenneTwister object to generate random numbers
+   * @param rng Random number generator
    * @return SimpleMatrix containing the covariance
    */
-  public static SimpleMatrix getRandomCovariance(int nDim, MersenneTwister rng) {
+  public static SimpleMatrix getRandomCovariance(int nDim, RandomGenerator rng) {
     SimpleMatrix covariance = new SimpleMatrix(nDim, nDim);
     for (int i=0; i<covariance.getNumElements(); i++) {
       covariance.set(i, rng.nextGaussian());
@@ -16,9 +16,7 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
-import org.ejml.dense.row.CommonOps_DDRM;
-import org.ejml.dense.row.decomposition.TriangularSolver_DDRM;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.simple.SimpleMatrix;
 
 /**CLASS: HAMILTONIAN MONTE CARLO
@@ -27,20 +25,38 @@ import org.ejml.simple.SimpleMatrix;
  * At a step, the momentum vector is proposed using a Gaussian random variable
  * The particle then moves about obeying Hamiltonian dynamics, this is done using leap frog steps
  * The resulting position of the particle is accept/rejected using the cannonical distribution
+ * The leap frog steps update the position and momentum in place using preallocated workspace
+ * vectors, the target is evaluated using the double [] methods of the interface ArrayTarget, so
+ * that no memory is allocated for each leap frog step if the target implements them
+ * The gradient and potential at the start of the leap frog steps are passed in and the ones at the
+ * end are returned, so each position is evaluated once. The gradient at the current position is
+ * cached between steps along with the potential, see the method Mcmc.cacheCurrentState
+ * The leap frog positions are only recorded if a recording policy is set using the method
+ * setRecordingPolicy, eg for visualisation
+ * The mass matrix is a KineticMetric, given a SimpleMatrix the cheapest of IdentityMetric,
+ * DiagonalMetric or DenseMetric is used, see KineticMetric.newMetric
  */
 public class HamiltonianMonteCarlo extends Mcmc {
 
-  //cholesky decomposition of the mass matrix
-  protected SimpleMatrix massChol;
-  //inverse of the mass matrix
-  protected SimpleMatrix massInverse;
+  //mass matrix, used for the momentum, velocity and kinetic energy
+  protected KineticMetric metric;
   //size of the leap frog step
   protected double sizeLeapFrog;
   //number of leap frog step for each mcmc step
   protected int nLeapFrog;
 
-  //array of vectors containing position vector of each leapfrog step
-  protected SimpleMatrix [] leapFrogPositions;
+  //workspace column vectors, owned by this chain and reused at every step
+  protected SimpleMatrix positionProposal; //proposal position in the method step
+  protected SimpleMatrix momentumProposal; //proposal momentum in the method step
+  protected SimpleMatrix momentumWorkspace; //current momentum in the method step
+  protected SimpleMatrix velocity; //inverse mass times momentum in the method positionStep
+  protected SimpleMatrix gradientProposal; //gradient of the potential at positionProposal
+
+  //gradient of the potential at the current position, see the method evaluateCurrentState
+  protected SimpleMatrix currentGradient;
+
+  //position vector of each leapfrog step in the latest step, recorded depending on the policy
+  protected Trajectory leapFrogPositions;
   static public final int MAX_N_LEAP_FROG = 100; //maximum number of leap frog steps
 
   /**CONSTRUCTOR
@@ -53,23 +69,31 @@ public class HamiltonianMonteCarlo extends Mcmc {
    * @param rng Random number generator to generate all the random numbers
    */
   public HamiltonianMonteCarlo(TargetDistribution target, int chainLength,
-      SimpleMatrix massMatrix, double sizeLeapFrog, int nLeapFrog, MersenneTwister rng) {
+      SimpleMatrix massMatrix, double sizeLeapFrog, int nLeapFrog, RandomGenerator rng) {
+    this(target, chainLength, KineticMetric.newMetric(massMatrix), sizeLeapFrog, nLeapFrog, rng);
+  }
+
+  /**CONSTRUCTOR
+   * Sampler which uses Hamiltonian dynamics
+   * @param target Object which has a method to call the pdf
+   * @param chainLength Length of the chain to be obtained
+   * @param metric mass matrix, determines the variance of the momentum
+   * @param sizeLeapFrog size of the leap frog step
+   * @param nLeapFrog number of leap frog step for each mcmc step
+   * @param rng Random number generator to generate all the random numbers
+   */
+  public HamiltonianMonteCarlo(TargetDistribution target, int chainLength,
+      KineticMetric metric, double sizeLeapFrog, int nLeapFrog, RandomGenerator rng) {
     //assign member variables
     super(target, chainLength, rng);
     this.sizeLeapFrog = sizeLeapFrog;
     this.nLeapFrog = nLeapFrog;
-    //get the cholesky of the mass matrix, as well as the inverse
-    this.massChol = Global.cholesky(massMatrix);
-    //calculate the inverse of the mass matrix, this is done using the cholesky decomposition
-    SimpleMatrix massCholInverse = new SimpleMatrix(massChol);
-    //invert the cholesky decomposition to work out the inverse mass
-    TriangularSolver_DDRM.invertLower(massCholInverse.getDDRM().getData(), this.getNDim());
-    this.massInverse = new SimpleMatrix(this.getNDim(), this.getNDim());
-    CommonOps_DDRM.multInner(massCholInverse.getDDRM(), massInverse.getDDRM());
-
-    //fill leapFrogPositions with null
-    this.leapFrogPositions = new SimpleMatrix [MAX_N_LEAP_FROG];
+    this.metric = metric;
+
+    //nothing is recorded by default
+    this.leapFrogPositions = new Trajectory(this.getNDim());
     this.isAccepted = false;
+    this.instantiateWorkspace();
   }
 
   /**CONSTRUCTOR
@@ -82,10 +106,56 @@ public class HamiltonianMonteCarlo extends Mcmc {
     //call superconstructor to do a shallow copy and extend the chain
     //also shallow copy the chain's member variables
     super(chain, nMoreSteps);
-    this.massChol = chain.massChol;
-    this.massInverse = chain.massInverse;
+    this.metric = chain.metric;
     this.sizeLeapFrog = chain.sizeLeapFrog;
     this.nLeapFrog = chain.nLeapFrog;
+    this.leapFrogPositions = new Trajectory(chain.leapFrogPositions);
+    this.instantiateWorkspace();
+    this.currentGradient.set(chain.currentGradient);
+  }
+
+  /**METHOD: INSTANTIATE WORKSPACE
+   * Instantiate the workspace column vectors used by the leap frog steps
+   */
+  protected void instantiateWorkspace() {
+    this.positionProposal = new SimpleMatrix(this.getNDim(), 1);
+    this.momentumProposal = new SimpleMatrix(this.getNDim(), 1);
+    this.momentumWorkspace = new SimpleMatrix(this.getNDim(), 1);
+    this.velocity = new SimpleMatrix(this.getNDim(), 1);
+    this.gradientProposal = new SimpleMatrix(this.getNDim(), 1);
+    this.currentGradient = new SimpleMatrix(this.getNDim(), 1);
+  }
+
+  /**METHOD: EVALUATE POTENTIAL
+   * Evaluate the potential and its gradient at a position in one call to the target
+   * @param position Column vector, position to evaluate at, not modified
+   * @param gradient Column vector, overwritten with the gradient of the potential at position
+   * @return the potential at position
+   */
+  protected double evaluatePotential(SimpleMatrix position, SimpleMatrix gradient) {
+    return this.target.getPotentialAndDPotential(position.getDDRM().getData(),
+        gradient.getDDRM().getData());
+  }
+
+  /**OVERRIDE: EVALUATE CURRENT STATE
+   * Also set the member variable currentGradient to the gradient at the given position
+   * @param position Column vector, current position of the chain, not modified
+   * @return the potential at position
+   */
+  @Override
+  protected double evaluateCurrentState(SimpleMatrix position) {
+    return this.evaluatePotential(position, this.currentGradient);
+  }
+
+  /**METHOD: SET CURRENT STATE
+   * Cache the gradient and potential at a new current position, eg after accepting a proposal
+   * @param position Column vector, current position of the chain, not modified
+   * @param gradient Column vector, gradient of the potential at position, not modified
+   * @param potential The potential at position
+   */
+  protected void setCurrentState(SimpleMatrix position, SimpleMatrix gradient, double potential) {
+    this.setCurrentState(position, potential);
+    this.currentGradient.set(gradient);
   }
 
   /**OVERRIDE: STEP
@@ -98,23 +168,35 @@ public class HamiltonianMonteCarlo extends Mcmc {
    */
   @Override
   public void step(SimpleMatrix position) {
-    //get the position vector from the chain array, and random momentum
-    SimpleMatrix momentum = this.getMomentum();
+    //get the gradient and potential at the current position
+    this.cacheCurrentState(position);
+
+    //get random momentum, the workspace vectors are overwritten
+    SimpleMatrix momentum = this.momentumWorkspace;
+    this.sampleMomentum(momentum);
 
-    //instantiate SimpleMatrices for the proposal variables
-    SimpleMatrix positionProposal = new SimpleMatrix(position);
-    SimpleMatrix momentumProposal = new SimpleMatrix(momentum);
+    //copy the current state to the proposal variables
+    SimpleMatrix positionProposal = this.positionProposal;
+    SimpleMatrix momentumProposal = this.momentumProposal;
+    SimpleMatrix gradientProposal = this.gradientProposal;
+    positionProposal.set(position);
+    momentumProposal.set(momentum);
+    gradientProposal.set(this.currentGradient);
 
     //do the leap frog step
-    this.leapFrog(positionProposal, momentumProposal);
+    double potentialProposal = this.leapFrog(positionProposal, momentumProposal,
+        gradientProposal);
 
-    //get the canonical distributions given the hamiltonians
-    double canonicalCurrent = Math.exp(-this.getHamiltonian(position, momentum));
-    double canonicalProposal = Math.exp(-this.getHamiltonian(positionProposal, momentumProposal));
+    //get the hamiltonians
+    double hamiltonianCurrent = this.getKineticEnergy(momentum) + this.currentPotential;
+    double hamiltonianProposal = this.getKineticEnergy(momentumProposal) + potentialProposal;
 
-    //do acceptance step
-    double acceptProb = canonicalProposal/canonicalCurrent;
-    this.acceptStep(acceptProb, position, positionProposal);
+    //do acceptance step, the log ratio of the canonical distributions is used
+    this.logAcceptStep(hamiltonianCurrent - hamiltonianProposal, position, positionProposal);
+    //the proposal is now the current position
+    if (this.isAccepted) {
+      this.setCurrentState(position, gradientProposal, potentialProposal);
+    }
 
     //update the statistics of itself
     this.updateStatistics(position);
@@ -127,47 +209,66 @@ public class HamiltonianMonteCarlo extends Mcmc {
    * @return Column vector, random momentum
    */
   protected SimpleMatrix getMomentum() {
-    //generate N(0,1) vector
     SimpleMatrix momentum = new SimpleMatrix(this.getNDim(),1);
-    for (int i=0; i<this.getNDim(); i++) {
-      momentum.set(i, this.rng.nextGaussian());
-    }
-    //scale the N(0,1) by the mass matrix
-    momentum = this.massChol.mult(momentum);
+    this.sampleMomentum(momentum);
     return momentum;
   }
 
+  /**METHOD: SAMPLE MOMENTUM
+   * generate a random momentum vector in place
+   * it is generated using Normal with mass covariance
+   * random Normal uses the rng
+   * @param momentum Column vector, overwritten with the random momentum
+   */
+  protected void sampleMomentum(SimpleMatrix momentum) {
+    this.metric.sampleMomentum(this.rng, momentum.getDDRM().getData());
+  }
+
   /**METHOD: LEAP FROG
    * Solves the Hamiltonian equations using this.nLeapFrog steps
    * The leap frog steps consist of consecutive half momentum update, position update, then
    * another half momentum update
    * Two half momentum update is the same as a full momentum update, this is used in the program
-   * The position and momentum proposal vectors ARE MODIFIED
+   * The position, momentum and gradient proposal vectors ARE MODIFIED
+   * The gradient at the start is reused, the gradient is evaluated once for each leap frog step
+   * and the potential only at the end
    * Save the leap frog steps
    * @param positionProposal Column vector containing the position, MODIFIED
    * @param momentumProposal Column vector containing the momentum, MODIFIED
+   * @param gradientProposal Column vector containing the gradient of the potential at
+   *     positionProposal, MODIFIED to the gradient at the end
+   * @return the potential at the end
    */
-  protected void leapFrog(SimpleMatrix positionProposal, SimpleMatrix momentumProposal) {
-    this.momentumStep(positionProposal, momentumProposal, true);
+  protected double leapFrog(SimpleMatrix positionProposal, SimpleMatrix momentumProposal,
+      SimpleMatrix gradientProposal) {
+    this.momentumStepFromGradient(gradientProposal, momentumProposal, true);
     for (int i=0; i<(this.nLeapFrog-1); i++) {
       this.positionStep(positionProposal, momentumProposal);
-      this.momentumStep(positionProposal, momentumProposal, false);
+      this.target.getDPotential(positionProposal.getDDRM().getData(),
+          gradientProposal.getDDRM().getData());
+      this.momentumStepFromGradient(gradientProposal, momentumProposal, false);
       //save the leap frog position
-      this.addToLeapFrogArray(i, new SimpleMatrix(positionProposal));
+      this.addToLeapFrogArray(i, positionProposal);
     }
     this.positionStep(positionProposal, momentumProposal);
-    this.momentumStep(positionProposal, momentumProposal, true);
+    double potential = this.evaluatePotential(positionProposal, gradientProposal);
+    this.momentumStepFromGradient(gradientProposal, momentumProposal, true);
     //save the leap frog position
-    this.addToLeapFrogArray(this.nLeapFrog-1, new SimpleMatrix(positionProposal));
+    this.addToLeapFrogArray(this.nLeapFrog-1, positionProposal);
+    return potential;
   }
 
   /**METHOD: ADD TO LEAP FROG ARRAY
-   * Add a leap frog step to the array leapFrogPositions
-   * @param index Pointer to position in leapFrogPositions array
+   * Record a copy of a leap frog step in leapFrogPositions, depending on the recording policy
+   * The positions of the previous step are cleared when the first leap frog step is recorded
+   * @param index Which leap frog step this is
    * @param position Leap frog position, not modified
    */
   protected void addToLeapFrogArray(int index, SimpleMatrix position) {
-    this.leapFrogPositions[index] = new SimpleMatrix(position);
+    if (index == 0) {
+      this.leapFrogPositions.clear();
+    }
+    this.leapFrogPositions.addLast(position);
   }
 
   /**METHOD: MOMENTUM STEP
@@ -179,13 +280,27 @@ public class HamiltonianMonteCarlo extends Mcmc {
    */
   protected void momentumStep(SimpleMatrix positionProposal, SimpleMatrix momentumProposal,
       boolean isHalfStep) {
-    //momentumChange is to be subtracted to momentumProposal
-    SimpleMatrix momentumChange = this.target.getDPotential(positionProposal);
-    CommonOps_DDRM.scale(this.sizeLeapFrog, momentumChange.getDDRM());
+    this.momentumStepFromGradient(this.target.getDPotential(positionProposal), momentumProposal,
+        isHalfStep);
+  }
+
+  /**METHOD: MOMENTUM STEP FROM GRADIENT
+   * The same as momentumStep but uses the gradient of the potential already evaluated at the
+   * position proposal
+   * @param gradient Column vector, gradient of the potential at the proposed position,
+   *     not modified
+   * @param momentumProposal Column vector, proposed momentum, MODIFIED
+   * @param isHalfStep true to half the momentum update
+   */
+  protected void momentumStepFromGradient(SimpleMatrix gradient, SimpleMatrix momentumProposal,
+      boolean isHalfStep) {
+    //the scaled gradient is subtracted from momentumProposal in place
+    double stepSize = this.sizeLeapFrog;
     if (isHalfStep) {
-      CommonOps_DDRM.divide(momentumChange.getDDRM(), 2.0);
+      stepSize /= 2.0;
     }
-    CommonOps_DDRM.subtractEquals(momentumProposal.getDDRM(), momentumChange.getDDRM());
+    Global.axpy(-stepSize, gradient.getDDRM().getData(), momentumProposal.getDDRM().getData(),
+        this.getNDim());
   }
 
   /**METHOD: POSITION STEP
@@ -195,9 +310,11 @@ public class HamiltonianMonteCarlo extends Mcmc {
    * @param momentumProposal Column vector, proposed momentum, not modified
    */
   protected void positionStep(SimpleMatrix positionProposal, SimpleMatrix momentumProposal) {
-    SimpleMatrix positionChange = this.massInverse.mult(momentumProposal);
-    CommonOps_DDRM.scale(this.sizeLeapFrog, positionChange.getDDRM());
-    CommonOps_DDRM.addEquals(positionProposal.getDDRM(), positionChange.getDDRM());
+    //the velocity, scaled by the step size, is added to positionProposal in place
+    this.metric.getVelocity(momentumProposal.getDDRM().getData(),
+        this.velocity.getDDRM().getData());
+    Global.axpy(this.sizeLeapFrog, this.velocity.getDDRM().getData(),
+        positionProposal.getDDRM().getData(), this.getNDim());
   }
 
   /**METHOD: GET HAMILTONIAN
@@ -209,26 +326,55 @@ public class HamiltonianMonteCarlo extends Mcmc {
    */
   protected double getHamiltonian(SimpleMatrix position, SimpleMatrix momentum) {
     //evaluate the kinetic energy
-    SimpleMatrix z = this.massChol.solve(momentum); //calculates L^(-1)*momentum
-    double kineticEnergy = 0.5 * z.dot(z);
+    double kineticEnergy = this.getKineticEnergy(momentum);
     //evaluate the potential
-    double potentialEnergy = this.target.getPotential(position);
+    double potentialEnergy = this.target.getPotential(position.getDDRM().getData());
     //add all of the energies
     return kineticEnergy + potentialEnergy;
   }
 
+  /**METHOD: GET KINETIC ENERGY
+   * Returns the kinetic energy given the momentum of the particle
+   * @param momentum Column vector, momentum of the particle
+   * @return
+   */
+  protected double getKineticEnergy(SimpleMatrix momentum) {
+    return this.metric.getKineticEnergy(momentum.getDDRM().getData());
+  }
+
+  /**METHOD: GET METRIC
+   * @return The kinetic metric, which has the mass matrix
+   */
+  public KineticMetric getMetric() {
+    return this.metric;
+  }
+
+  /**METHOD: GET SIZE LEAP FROG
+   * @return The size of the leap frog step
+   */
+  public double getSizeLeapFrog() {
+    return this.sizeLeapFrog;
+  }
+
   /**METHOD: GET LEAP FROG POSITIONS
    * Return the vector of a leap frog step of the last HMC step
-   * @param index which leap frog step to be requested
+   * Requires the recording policy FULL or BOUNDED, see the method setRecordingPolicy
+   * @param index which leap frog step to be requested, the last recorded leap frog step is returned
+   * if there are not that many
    * @return double [] representing a position vector
    */
   public double [] getLeapFrogPositions(int index) {
-    SimpleMatrix leapFrogPosition = this.leapFrogPositions[index];
-    if (leapFrogPosition == null) {
-      return this.getLeapFrogPositions(index-1);
-    } else {
-      return leapFrogPosition.getDDRM().getData();
-    }
+    index = Math.min(index, this.leapFrogPositions.size()-1);
+    return this.leapFrogPositions.get(index).getDDRM().getData();
+  }
+
+  /**METHOD: SET RECORDING POLICY
+   * Set which leap frog positions are recorded at each step, by default nothing is recorded
+   * @param recordingPolicy Which positions to record
+   * @param capacity Maximum number of positions to keep, only used for the policy BOUNDED
+   */
+  public void setRecordingPolicy(Trajectory.RecordingPolicy recordingPolicy, int capacity) {
+    this.leapFrogPositions.setRecordingPolicy(recordingPolicy, capacity);
   }
 
   /**METHOD: CHANGE NUMBER OF LEAP FROG STEPS
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**CLASS: IDENTITY METRIC
+ * Kinetic metric with the identity mass matrix, the velocity is the momentum
+ */
+public class IdentityMetric implements KineticMetric {
+
+  protected int nDim; //number of dimensions
+
+  /**CONSTRUCTOR
+   * @param nDim Number of dimensions
+   */
+  public IdentityMetric(int nDim) {
+    this.nDim = nDim;
+  }
+
+  /**IMPLEMENTED: GET N DIM
+   */
+  @Override
+  public int getNDim() {
+    return this.nDim;
+  }
+
+  /**IMPLEMENTED: SAMPLE MOMENTUM
+   */
+  @Override
+  public void sampleMomentum(RandomGenerator rng, double [] momentum) {
+    ZigguratGaussian.nextGaussian(rng, momentum);
+  }
+
+  /**IMPLEMENTED: GET VELOCITY
+   */
+  @Override
+  public void getVelocity(double [] momentum, double [] velocity) {
+    System.arraycopy(momentum, 0, velocity, 0, this.nDim);
+  }
+
+  /**IMPLEMENTED: GET KINETIC ENERGY
+   */
+  @Override
+  public double getKineticEnergy(double [] momentum) {
+    double sumSquare = 0;
+    for (int i=0; i<this.nDim; i++) {
+      sumSquare += momentum[i] * momentum[i];
+    }
+    return 0.5 * sumSquare;
+  }
+
+}
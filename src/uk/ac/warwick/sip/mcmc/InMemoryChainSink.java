@@ -0,0 +1,92 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**CLASS: IN MEMORY CHAIN SINK
+ * Keeps all the samples of a chain in a row major double [], the array grows by doubling so that
+ * the length of the chain does not need to be known in advance
+ */
+public class InMemoryChainSink implements ChainStore {
+
+  protected int nDim; //number of dimensions of each sample
+  protected int nSample = 0; //number of samples received
+  protected double [] chain; //samples in a row major format, may contain unused space at the end
+
+  /**CONSTRUCTOR
+   * @param nDim number of dimensions of each sample
+   * @param initialCapacity number of samples to allocate space for at the start
+   */
+  public InMemoryChainSink(int nDim, int initialCapacity) {
+    this.nDim = nDim;
+    this.chain = new double[nDim * Math.max(initialCapacity, 1)];
+  }
+
+  /**IMPLEMENTED: ADD SAMPLE
+   * Copy the sample to the end of the array, doubling the array if it is full
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   */
+  @Override
+  public void addSample(double [] sample) {
+    if ((this.nSample+1)*this.nDim > this.chain.length) {
+      double [] chain = new double[2*this.chain.length];
+      System.arraycopy(this.chain, 0, chain, 0, this.nSample*this.nDim);
+      this.chain = chain;
+    }
+    System.arraycopy(sample, 0, this.chain, this.nSample*this.nDim, this.nDim);
+    this.nSample++;
+  }
+
+  /**IMPLEMENTED: FLUSH
+   * Nothing to do, the samples are already in memory
+   */
+  @Override
+  public void flush() {
+    //do nothing
+  }
+
+  /**IMPLEMENTED: GET N SAMPLE
+   * @return Number of samples received
+   */
+  @Override
+  public int getNSample() {
+    return this.nSample;
+  }
+
+  /**IMPLEMENTED: GET CHAIN
+   * @return double array of the samples received, row major
+   */
+  @Override
+  public double [] getChain() {
+    double [] chain = new double[this.nSample*this.nDim];
+    System.arraycopy(this.chain, 0, chain, 0, chain.length);
+    return chain;
+  }
+
+  /**IMPLEMENTED: GET CHAIN (of a specific dimension)
+   * @param nDim Which dimension to extract from the chain
+   * @return double array of the chain, each element correspond to a sample
+   */
+  @Override
+  public double [] getChain(int nDim) {
+    double [] chain = new double[this.nSample];
+    for (int i=0; i<this.nSample; i++) {
+      chain[i] = this.chain[i*this.nDim + nDim];
+    }
+    return chain;
+  }
+
+}
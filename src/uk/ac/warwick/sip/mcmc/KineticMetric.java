@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.ejml.simple.SimpleMatrix;
+
+/**INTERFACE: KINETIC METRIC
+ * The mass matrix M of Hamiltonian Monte Carlo, the momentum p is Normal with covariance M and the
+ * kinetic energy is 0.5 * p^T * M^(-1) * p
+ * The methods work on double [] column vectors supplied by the caller, so that no memory is
+ * allocated in the leap frog steps
+ *
+ * Implementations:
+ *   -IdentityMetric: M = I, O(nDim) for each method
+ *   -DiagonalMetric: M is diagonal, O(nDim) for each method
+ *   -DenseMetric: M is a dense symmetric positive definite matrix, O(nDim^2) for each method
+ * The function newMetric picks the cheapest implementation for a given mass matrix
+ */
+public interface KineticMetric {
+
+  /**METHOD: GET N DIM
+   * @return The number of dimensions
+   */
+  public int getNDim();
+
+  /**METHOD: SAMPLE MOMENTUM
+   * Sample a momentum from the Normal distribution with covariance M
+   * @param rng Random number generator
+   * @param momentum Overwritten with the random momentum, of length nDim
+   */
+  public void sampleMomentum(RandomGenerator rng, double [] momentum);
+
+  /**METHOD: GET VELOCITY
+   * Work out the velocity M^(-1) * p
+   * @param momentum Momentum p, of length nDim, not modified
+   * @param velocity Overwritten with the velocity, of length nDim
+   */
+  public void getVelocity(double [] momentum, double [] velocity);
+
+  /**METHOD: GET KINETIC ENERGY
+   * @param momentum Momentum p, of length nDim, not modified
+   * @return The kinetic energy 0.5 * p^T * M^(-1) * p
+   */
+  public double getKineticEnergy(double [] momentum);
+
+  /**FUNCTION: NEW METRIC
+   * Instantiate the cheapest metric for a mass matrix, the structure is detected from its values
+   * @param massMatrix Symmetric positive definite mass matrix, or a column vector containing the
+   *     diagonal of the mass matrix
+   * @return IdentityMetric, DiagonalMetric or DenseMetric
+   */
+  public static KineticMetric newMetric(SimpleMatrix massMatrix) {
+    int nDim = massMatrix.numRows();
+    double [] diagonal = new double[nDim];
+    boolean isDiagonal = true;
+    if (massMatrix.numCols() == 1) {
+      System.arraycopy(massMatrix.getDDRM().getData(), 0, diagonal, 0, nDim);
+    } else {
+      for (int i=0; i<nDim; i++) {
+        diagonal[i] = massMatrix.get(i, i);
+        for (int j=0; j<nDim; j++) {
+          if (i != j && massMatrix.get(i, j) != 0) {
+            isDiagonal = false;
+          }
+        }
+      }
+    }
+    if (!isDiagonal) {
+      return new DenseMetric(massMatrix);
+    }
+    for (int i=0; i<nDim; i++) {
+      if (diagonal[i] != 1.0) {
+        return new DiagonalMetric(diagonal);
+      }
+    }
+    return new IdentityMetric(nDim);
+  }
+
+}
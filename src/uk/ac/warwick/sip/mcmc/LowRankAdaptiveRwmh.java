@@ -0,0 +1,352 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+import org.ejml.simple.SimpleMatrix;
+
+/**CLASS: LOW RANK ADAPTIVE RANDOM WALK METROPOLIS HASTINGS
+ * Does random walk Metropolis Hastings with an adaptive proposal covariance which is a diagonal
+ * plus a low rank matrix, for targets with many dimensions where the full chain sample covariance,
+ * as in AdaptiveRwmh, is too big to store or decompose
+ * The adaptive procedure is as follows
+ *   -2*this.getNDim()-1 initial steps are homogeneous with a diagonal proposal covariance
+ *   -Afterwards the proposal covariance is a scale of V*Lambda*V^T + R, where the columns of V are
+ *       the nComponent principal directions of the chain, Lambda their variances and R a diagonal
+ *       matrix of the remaining variance of each dimension
+ * The principal directions are estimated online using candid covariance-free incremental PCA, see
+ * Weng, J., Zhang, Y. and Hwang, W.S. (2003). The variance of each dimension uses Welford's method
+ * Each step and the memory cost O(nDim*nComponent), the chain covariance is not used so the
+ * statistics policy is set to MEAN
+ */
+public class LowRankAdaptiveRwmh extends Mcmc {
+
+  static private final double AMNESIC = 2.0; //amnesic parameter of the incremental PCA
+
+  protected int nComponent; //number of principal directions
+  protected int nStepTillAdaptive; //number of regular MH steps till use adaptive method
+  //small constant to be added to the diagonal of the proposal covariance in adaptive steps
+  protected double e = 1E-10;
+  protected boolean isAdaptive = true; //user selected, if the chain is adaptive or not
+
+  //standard deviation of each dimension for the homogeneous proposal
+  protected double [] proposalSd;
+  //sum of squares of each dimension, used for the variance of each dimension
+  protected double [] sumSquaresDiag;
+  //principal directions, unnormalised, row major nComponent x nDim, the norm of each row is the
+  //variance in that direction
+  protected double [] component;
+  protected int nComponentUpdate = 0; //number of samples used to estimate the principal directions
+
+  private double [] residual; //workspace for the sample minus the mean, deflated
+  private double [] zComponent; //workspace for the N(0,1) of the low rank part of the proposal
+  private double [] zDiag; //workspace for the N(0,1) of the diagonal part of the proposal
+  private double [] remainingVariance; //workspace for the diagonal of the proposal covariance
+
+  /**CONSTRUCTOR
+   * Random walk Metropolis Hastings with low rank plus diagonal adaptive proposal covariance
+   * @param target Object which has a method to call the pdf
+   * @param chainLength Length of the chain to be obtained
+   * @param proposalVariance Variance of each dimension for the homogeneous proposal, length nDim
+   * @param nComponent Number of principal directions to adapt to
+   * @param rng Random number generator all the random numbers
+   */
+  public LowRankAdaptiveRwmh(TargetDistribution target, int chainLength,
+      double [] proposalVariance, int nComponent, RandomGenerator rng) {
+    super(target, chainLength, rng);
+    int nDim = this.getNDim();
+    if (nComponent < 1 || nComponent > nDim) {
+      throw new IllegalArgumentException("nComponent must be in 1, 2, ..., nDim");
+    }
+    this.nComponent = nComponent;
+    this.nStepTillAdaptive = 2*nDim-1; //default value
+    this.proposalSd = new double[nDim];
+    for (int i=0; i<nDim; i++) {
+      this.proposalSd[i] = Math.sqrt(proposalVariance[i]);
+    }
+    this.sumSquaresDiag = new double[nDim];
+    this.component = new double[nComponent*nDim];
+    this.statisticsPolicy = StatisticsPolicy.MEAN;
+    this.instantiateWorkspace();
+  }
+
+  /**CONSTRUCTOR
+   * Constructor for extending the length of the chain and resume running it
+   * Does a shallow copy of the provided chain and extending the member variable chainArray
+   * @param chain Chain to be extended
+   * @param nMoreSteps Number of steps to be extended
+   */
+  public LowRankAdaptiveRwmh(LowRankAdaptiveRwmh chain, int nMoreSteps) {
+    //call superconstructor to do a shallow copy and extend the chain
+    super(chain, nMoreSteps);
+    //shallow copy member variables
+    this.nComponent = chain.nComponent;
+    this.nStepTillAdaptive = chain.nStepTillAdaptive;
+    this.e = chain.e;
+    this.isAdaptive = chain.isAdaptive;
+    this.proposalSd = chain.proposalSd;
+    this.sumSquaresDiag = chain.sumSquaresDiag;
+    this.component = chain.component;
+    this.nComponentUpdate = chain.nComponentUpdate;
+    this.instantiateWorkspace();
+  }
+
+  /**METHOD: INSTANTIATE WORKSPACE
+   * Instantiate the arrays used in each step
+   */
+  private void instantiateWorkspace() {
+    this.residual = new double[this.getNDim()];
+    this.zComponent = new double[this.nComponent];
+    this.zDiag = new double[this.getNDim()];
+    this.remainingVariance = new double[this.getNDim()];
+  }
+
+  /**IMPLEMENTED: STEP
+   * Do a Metropolis-Hastings step, the chain is homogeneous for nStepTillAdaptive steps
+   * Afterwards the proposal covariance is the adaptive low rank plus diagonal covariance
+   * @param currentPosition Column vector of the current step of the MCMC, to be modified
+   */
+  @Override
+  public void step(SimpleMatrix currentPosition) {
+    boolean isAdaptiveStep = this.isAdaptive && (this.nStep >= this.nStepTillAdaptive);
+    this.metropolisHastingsStep(currentPosition, isAdaptiveStep);
+    this.updateStatistics(currentPosition);
+  }
+
+  /**METHOD: METROPOLIS HASTINGS STEP
+   * Does a Metropolis-Hastings step, the proposal is instantiated in O(nDim*nComponent)
+   * It does not increment nStep when this method is called
+   * The method updateStatistics will increment nStep
+   * @param x current position of the chain, to be modified
+   * @param isAdaptiveStep true to use the adaptive proposal, else the homogeneous proposal
+   */
+  protected void metropolisHastingsStep(SimpleMatrix x, boolean isAdaptiveStep) {
+    int nDim = this.getNDim();
+    double [] xArray = x.getDDRM().getData();
+    SimpleMatrix y = new SimpleMatrix(nDim, 1);
+    double [] yArray = y.getDDRM().getData();
+    ZigguratGaussian.nextGaussian(this.rng, this.zDiag);
+    if (isAdaptiveStep) {
+      //diagonal part
+      this.getRemainingVariance(this.remainingVariance);
+      for (int i=0; i<nDim; i++) {
+        yArray[i] = Math.sqrt(this.remainingVariance[i] + this.e) * this.zDiag[i];
+      }
+      //low rank part, sqrt(variance) * direction = v / sqrt(|v|) for the unnormalised v
+      ZigguratGaussian.nextGaussian(this.rng, this.zComponent);
+      for (int j=0; j<this.nComponent; j++) {
+        double norm = this.getComponentNorm(j);
+        if (norm > 0) {
+          double coefficient = this.zComponent[j] / Math.sqrt(norm);
+          int offset = j*nDim;
+          for (int i=0; i<nDim; i++) {
+            yArray[i] += coefficient * this.component[offset+i];
+          }
+        }
+      }
+      //scale so that it is optimal for targetting Normal, then centre at x
+      double scale = 2.38 / Math.sqrt(nDim);
+      for (int i=0; i<nDim; i++) {
+        yArray[i] = xArray[i] + scale * yArray[i];
+      }
+    } else {
+      for (int i=0; i<nDim; i++) {
+        yArray[i] = xArray[i] + this.proposalSd[i] * this.zDiag[i];
+      }
+    }
+
+    //the log acceptance probability is the difference in potential, the potential at x is cached
+    this.cacheCurrentState(x);
+    double potentialProposal = this.target.getPotential(yArray);
+    this.logAcceptStep(this.currentPotential - potentialProposal, x, y); //x can be modified here
+    if (this.isAccepted) {
+      this.setCurrentState(x, potentialProposal);
+    }
+  }
+
+  /**OVERRIDE: UPDATE STATISTICS
+   * Also updates the variance of each dimension and the principal directions
+   * With u the new sample minus the new mean, each unnormalised direction v is updated using
+   * v = (n-1-l)/n * v + (1+l)/n * u * (u^T*v)/|v|
+   * then u is deflated by removing its projection onto v before updating the next direction
+   * The amnesic parameter l gives more weight to recent samples, so that the early samples of
+   * the chain, before it has converged, are forgotten faster
+   * A direction which is zero, eg at the start, is instantiated using u
+   * @param x The new position column vector of the chain, after the MCMC step(s)
+   */
+  @Override
+  protected void updateStatistics(SimpleMatrix x) {
+    super.updateStatistics(x);
+    int nDim = this.getNDim();
+    double [] xArray = x.getDDRM().getData();
+    double [] mean = this.chainMean.getDDRM().getData();
+    //sum of squares += (x - new mean) * (x - previous mean), for each dimension
+    for (int i=0; i<nDim; i++) {
+      this.residual[i] = xArray[i] - mean[i];
+      this.sumSquaresDiag[i] += this.residual[i] * this.meanDifference[i];
+    }
+
+    //update the principal directions using the residual
+    this.nComponentUpdate++;
+    double n = (double) this.nComponentUpdate;
+    double amnesic = Math.min(AMNESIC, n-1);
+    for (int j=0; j<this.nComponent; j++) {
+      int offset = j*nDim;
+      double norm = this.getComponentNorm(j);
+      if (norm == 0) {
+        //instantiate the direction using the residual
+        System.arraycopy(this.residual, 0, this.component, offset, nDim);
+        return;
+      }
+      double projection = 0;
+      for (int i=0; i<nDim; i++) {
+        projection += this.residual[i] * this.component[offset+i];
+      }
+      projection /= norm; //u^T*v/|v|
+      for (int i=0; i<nDim; i++) {
+        this.component[offset+i] = ((n-1-amnesic) * this.component[offset+i]
+            + (1+amnesic) * projection * this.residual[i]) / n;
+      }
+      //deflate the residual using the updated direction
+      norm = this.getComponentNorm(j);
+      if (norm > 0) {
+        projection = 0;
+        for (int i=0; i<nDim; i++) {
+          projection += this.residual[i] * this.component[offset+i];
+        }
+        projection /= norm * norm;
+        for (int i=0; i<nDim; i++) {
+          this.residual[i] -= projection * this.component[offset+i];
+        }
+      }
+    }
+  }
+
+  /**METHOD: GET REMAINING VARIANCE
+   * The variance of each dimension which is not explained by the principal directions, this is
+   * the diagonal of the proposal covariance before scaling. It is at least zero
+   * @param remainingVariance Overwritten with the remaining variance, of length nDim
+   */
+  protected void getRemainingVariance(double [] remainingVariance) {
+    int nDim = this.getNDim();
+    double divisor = (double) Math.max(this.nStep, 1);
+    for (int i=0; i<nDim; i++) {
+      remainingVariance[i] = this.sumSquaresDiag[i] / divisor;
+    }
+    for (int j=0; j<this.nComponent; j++) {
+      //variance * direction_i^2 = v_i^2 / |v| for the unnormalised v
+      double norm = this.getComponentNorm(j);
+      if (norm > 0) {
+        int offset = j*nDim;
+        for (int i=0; i<nDim; i++) {
+          double v = this.component[offset+i];
+          remainingVariance[i] -= v * v / norm;
+        }
+      }
+    }
+    for (int i=0; i<nDim; i++) {
+      remainingVariance[i] = Math.max(remainingVariance[i], 0.0);
+    }
+  }
+
+  /**METHOD: GET COMPONENT NORM
+   * @param j Index of the principal direction
+   * @return The norm of the unnormalised direction, this is the variance in that direction
+   */
+  protected double getComponentNorm(int j) {
+    int nDim = this.getNDim();
+    int offset = j*nDim;
+    double sumSquare = 0;
+    for (int i=0; i<nDim; i++) {
+      sumSquare += this.component[offset+i] * this.component[offset+i];
+    }
+    return Math.sqrt(sumSquare);
+  }
+
+  /**METHOD: GET CHAIN VARIANCE
+   * @return The sample variance of each dimension of the chain, bias corrected
+   */
+  public double [] getChainVariance() {
+    double [] variance = new double[this.getNDim()];
+    double divisor = (double) Math.max(this.nStep, 1);
+    for (int i=0; i<variance.length; i++) {
+      variance[i] = this.sumSquaresDiag[i] / divisor;
+    }
+    return variance;
+  }
+
+  /**METHOD: GET COMPONENT
+   * @param j Index of the principal direction, 0, 1, ..., nComponent-1, not in any order
+   * @return The principal direction, normalised to have unit length
+   */
+  public double [] getComponent(int j) {
+    int nDim = this.getNDim();
+    double [] direction = new double[nDim];
+    double norm = this.getComponentNorm(j);
+    if (norm > 0) {
+      for (int i=0; i<nDim; i++) {
+        direction[i] = this.component[j*nDim+i] / norm;
+      }
+    }
+    return direction;
+  }
+
+  /**METHOD: GET COMPONENT VARIANCE
+   * @param j Index of the principal direction, 0, 1, ..., nComponent-1, not in any order
+   * @return The variance of the chain in the principal direction
+   */
+  public double getComponentVariance(int j) {
+    return this.getComponentNorm(j);
+  }
+
+  /**OVERRIDE: SET STATISTICS POLICY
+   * The adaptation requires the chain mean, so the policy NONE is not allowed
+   * @param statisticsPolicy MEAN, the default, or COVARIANCE
+   */
+  @Override
+  public void setStatisticsPolicy(StatisticsPolicy statisticsPolicy) {
+    if (statisticsPolicy == StatisticsPolicy.NONE) {
+      throw new IllegalArgumentException("LowRankAdaptiveRwmh requires the chain mean");
+    }
+    super.setStatisticsPolicy(statisticsPolicy);
+  }
+
+  /**METHOD: SET IS ADAPTIVE
+   * Set if the chain is adaptive or not
+   * @param isAdaptive
+   */
+  public void setIsAdaptive(boolean isAdaptive) {
+    this.isAdaptive = isAdaptive;
+  }
+
+  /**METHOD: SET N STEP TILL ADAPTIVE
+   * Set the number of homogeneous steps before the proposal is adapted
+   * @param nStepTillAdaptive Number of homogeneous steps
+   */
+  public void setNStepTillAdaptive(int nStepTillAdaptive) {
+    this.nStepTillAdaptive = nStepTillAdaptive;
+  }
+
+  /**METHOD: SET DIAG
+   * Set the small element to be added to the adaptive proposal covariance
+   * @param e
+   */
+  public void setDiag(double e) {
+    this.e = e;
+  }
+
+}
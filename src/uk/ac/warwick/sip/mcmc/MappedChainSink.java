@@ -0,0 +1,251 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**CLASS: MAPPED CHAIN SINK
+ * Keeps all the samples of a chain off the heap, either in a memory-mapped file or in direct
+ * buffers, so that the chain is not traced or copied by the garbage collector and the chain can be
+ * larger than the heap. With a memory-mapped file, the operating system page cache manages which
+ * parts of the chain are in memory.
+ * The samples are in a row major format using the native byte order. As a single buffer can hold
+ * at most Integer.MAX_VALUE bytes, the chain is split over several buffers, each holding
+ * nSamplePerBuffer whole samples.
+ * The capacity, ie the maximum number of samples, must be given in advance, eg the chain length.
+ * It can be increased using the method ensureCapacity, this is done when a chain is extended using
+ * the copy and extend constructor of Mcmc.
+ * Call the method close when the chain has finished if a file was used
+ */
+public class MappedChainSink implements ChainStore {
+
+  //maximum number of bytes in one buffer
+  static public final int MAX_BUFFER_SIZE = Integer.MAX_VALUE;
+
+  protected int nDim; //number of dimensions of each sample
+  protected int capacity; //maximum number of samples
+  protected int nSample = 0; //number of samples received
+  protected int nSamplePerBuffer; //number of samples in each buffer
+  protected FileChannel fileChannel; //the mapped file, null if direct buffers are used
+  protected ByteBuffer [] byteBufferArray; //the direct or mapped buffers
+  protected DoubleBuffer [] bufferArray; //double views of byteBufferArray
+
+  /**CONSTRUCTOR
+   * Keep the samples in direct buffers, allocated outside of the heap
+   * @param nDim number of dimensions of each sample
+   * @param capacity maximum number of samples
+   */
+  public MappedChainSink(int nDim, int capacity) {
+    this.nDim = nDim;
+    this.capacity = capacity;
+    this.allocate(MAX_BUFFER_SIZE / (Double.BYTES*nDim));
+  }
+
+  /**CONSTRUCTOR
+   * Keep the samples in a memory-mapped file, an existing file is overwritten
+   * @param file The file to map the samples to
+   * @param nDim number of dimensions of each sample
+   * @param capacity maximum number of samples
+   * @throws IOException If the file cannot be opened or mapped
+   */
+  public MappedChainSink(File file, int nDim, int capacity) throws IOException {
+    this.nDim = nDim;
+    this.capacity = capacity;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(((long) capacity) * nDim * Double.BYTES);
+      this.fileChannel = randomAccessFile.getChannel();
+      this.allocate(MAX_BUFFER_SIZE / (Double.BYTES*nDim));
+    } catch (IOException | RuntimeException exception) {
+      //close the file, this also closes its channel, so that the file descriptor is not leaked
+      try {
+        randomAccessFile.close();
+      } catch (IOException closeException) {
+        exception.addSuppressed(closeException);
+      }
+      throw exception;
+    }
+  }
+
+  /**METHOD: ALLOCATE
+   * Allocate or map the buffers, the samples are split over buffers of nSamplePerBuffer samples
+   * @param nSamplePerBuffer Number of samples in each buffer
+   */
+  protected void allocate(int nSamplePerBuffer) {
+    this.nSamplePerBuffer = nSamplePerBuffer;
+    int nBuffer = (this.capacity + nSamplePerBuffer - 1) / nSamplePerBuffer;
+    this.byteBufferArray = new ByteBuffer[nBuffer];
+    this.bufferArray = new DoubleBuffer[nBuffer];
+    for (int i=0; i<nBuffer; i++) {
+      //the last buffer may hold fewer samples
+      int nSampleInBuffer = Math.min(nSamplePerBuffer, this.capacity - i*nSamplePerBuffer);
+      int size = nSampleInBuffer * this.nDim * Double.BYTES;
+      if (this.fileChannel == null) {
+        this.byteBufferArray[i] = ByteBuffer.allocateDirect(size);
+      } else {
+        long position = ((long) i) * nSamplePerBuffer * this.nDim * Double.BYTES;
+        try {
+          this.byteBufferArray[i] = this.fileChannel.map(FileChannel.MapMode.READ_WRITE,
+              position, size);
+        } catch (IOException exception) {
+          throw new UncheckedIOException(exception);
+        }
+      }
+      this.byteBufferArray[i].order(ByteOrder.nativeOrder());
+      this.bufferArray[i] = this.byteBufferArray[i].asDoubleBuffer();
+    }
+  }
+
+  /**METHOD: ENSURE CAPACITY
+   * Increase the capacity if it is less than the given capacity, the samples received are kept
+   * With a memory-mapped file, the file is extended and mapped again. With direct buffers, new
+   * buffers are allocated and the samples are copied over.
+   * @param capacity Minimum number of samples to have space for
+   * @throws UncheckedIOException If the file cannot be mapped
+   */
+  public void ensureCapacity(int capacity) {
+    if (capacity <= this.capacity) {
+      return;
+    }
+    this.flush();
+    ByteBuffer [] oldByteBufferArray = this.byteBufferArray;
+    this.capacity = capacity;
+    //mapping beyond the end of the file extends the file
+    this.allocate(this.nSamplePerBuffer);
+    if (this.fileChannel == null) {
+      //each old buffer holds the same samples as the new buffer with the same index
+      for (int i=0; i<oldByteBufferArray.length; i++) {
+        ByteBuffer source = oldByteBufferArray[i].duplicate();
+        source.clear();
+        ByteBuffer destination = this.byteBufferArray[i].duplicate();
+        destination.clear();
+        destination.put(source);
+      }
+    }
+  }
+
+  /**IMPLEMENTED: ADD SAMPLE
+   * Copy the sample to the end of the chain
+   * @param sample double [] of length nDim, the value of the chain at this sample
+   * @throws IllegalStateException If the capacity has been reached
+   */
+  @Override
+  public void addSample(double [] sample) {
+    if (this.nSample == this.capacity) {
+      throw new IllegalStateException("The capacity of the MappedChainSink has been reached");
+    }
+    DoubleBuffer buffer = this.bufferArray[this.nSample / this.nSamplePerBuffer];
+    int offset = (this.nSample % this.nSamplePerBuffer) * this.nDim;
+    for (int i=0; i<this.nDim; i++) {
+      buffer.put(offset+i, sample[i]);
+    }
+    this.nSample++;
+  }
+
+  /**IMPLEMENTED: FLUSH
+   * Write the samples to the file if a file is used, otherwise nothing to do
+   */
+  @Override
+  public void flush() {
+    if (this.fileChannel != null) {
+      for (int i=0; i<this.byteBufferArray.length; i++) {
+        ((MappedByteBuffer) this.byteBufferArray[i]).force();
+      }
+    }
+  }
+
+  /**METHOD: CLOSE
+   * Write the samples to the file and close it, does nothing if direct buffers are used
+   * @throws IOException If the file cannot be closed
+   */
+  public void close() throws IOException {
+    if (this.fileChannel != null) {
+      this.flush();
+      this.fileChannel.close();
+    }
+  }
+
+  /**IMPLEMENTED: GET N SAMPLE
+   * @return Number of samples received
+   */
+  @Override
+  public int getNSample() {
+    return this.nSample;
+  }
+
+  /**METHOD: GET
+   * @param iSample Which sample
+   * @param iDim Which dimension
+   * @return The value of the chain at this sample and dimension
+   */
+  public double get(int iSample, int iDim) {
+    return this.bufferArray[iSample / this.nSamplePerBuffer].get(
+        (iSample % this.nSamplePerBuffer) * this.nDim + iDim);
+  }
+
+  /**IMPLEMENTED: GET CHAIN
+   * Copies the whole chain onto the heap, prefer getChain(int) or get(int, int) for long chains
+   * @return double array of the samples received, row major
+   */
+  @Override
+  public double [] getChain() {
+    double [] chain = new double[this.nSample*this.nDim];
+    int nCopied = 0; //number of samples copied so far
+    for (int i=0; nCopied<this.nSample; i++) {
+      int nSampleToCopy = Math.min(this.nSamplePerBuffer, this.nSample - nCopied);
+      DoubleBuffer buffer = this.bufferArray[i].duplicate();
+      buffer.position(0);
+      buffer.get(chain, nCopied*this.nDim, nSampleToCopy*this.nDim);
+      nCopied += nSampleToCopy;
+    }
+    return chain;
+  }
+
+  /**IMPLEMENTED: GET CHAIN (of a specific dimension)
+   * Only this dimension is copied onto the heap
+   * @param nDim Which dimension to extract from the chain
+   * @return double array of the chain, each element correspond to a sample
+   */
+  @Override
+  public double [] getChain(int nDim) {
+    double [] chain = new double[this.nSample];
+    for (int i=0; i<this.nSample; i++) {
+      chain[i] = this.get(i, nDim);
+    }
+    return chain;
+  }
+
+  /**METHOD: GET END OF CHAIN
+   * @return double array, vector of the latest sample received
+   */
+  public double [] getEndOfChain() {
+    double [] sample = new double[this.nDim];
+    for (int i=0; i<this.nDim; i++) {
+      sample[i] = this.get(this.nSample-1, i);
+    }
+    return sample;
+  }
+
+}
@@ -16,9 +16,10 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
-import org.ejml.data.DMatrixRMaj;
-import org.ejml.dense.row.CommonOps_DDRM;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.simple.SimpleMatrix;
 
 /**ABSTRACT CLASS: MCMC
@@ -28,8 +29,11 @@ import org.ejml.simple.SimpleMatrix;
  * been taken.
  * Instances of this class can call the method run() to run the MCMC for a given length.
  * The target distribution is to be provided via the constructor.
- * The chain length and a MersenneTwister is to be provided via the constructor.
- * The samples are stored in the member variable chainArray in a design matrix format
+ * The chain length and a random number generator, eg MersenneTwister or Xoshiro256StarStar, is
+ * to be provided via the constructor.
+ * The samples are stored in the member variable chainArray in a design matrix format, or streamed
+ * to a ChainSink if one was given using the method setChainSink, or kept in a ChainStore if one was
+ * given using the method setChainStore
  *
  * A few options:
  *   -Thinning can be used by calling the method setNThin, this is doing a number of MCMC steps
@@ -37,16 +41,57 @@ import org.ejml.simple.SimpleMatrix;
  *   -The initial value can be set using the method setInitialValue
  *   -Diagnostics such as the mean, covariance, acceptance rate can be obtained using the
  *   appropriate getter methods
+ *   -The running statistics updated at every step can be set using the method
+ *   setStatisticsPolicy, see the enum StatisticsPolicy
+ * The potential of the target at the current state is cached, see the method cacheCurrentState,
+ * so that it is only evaluated again when a proposal is accepted
  */
 public abstract class Mcmc {
 
+  /**ENUM: STATISTICS POLICY
+   * Which running statistics are updated at every MCMC step
+   *   -NONE: neither the chain mean nor the chain covariance are updated
+   *   -MEAN: only the chain mean and the online batch means are updated, O(d) per step
+   *   -COVARIANCE: the chain mean, online batch means and chain covariance are updated, O(d^2)
+   *   per step
+   */
+  public enum StatisticsPolicy {
+    NONE, MEAN, COVARIANCE
+  }
+
   protected TargetDistribution target; //target distribution for metropolis hastings
   //matrix containing the value of the chain at each step
   //matrix is of size chainLength X nDim, EJML is row major
   //the intial value is at the origin, this can be set using the method setInitialStep
+  //it is instantiated when the chain starts, it is not instantiated when streaming to chainSink
   protected SimpleMatrix chainArray;
+  //the value of the chain at the latest sample (column vector)
+  protected SimpleMatrix currentPosition;
+  //potential of the target at the current state of the chain, see the method cacheCurrentState
+  protected double currentPotential;
+  //position where currentPotential was evaluated
+  protected SimpleMatrix cachedPosition;
+  protected boolean isCurrentCached = false;
+  //if not null, the samples are streamed to this rather than saved in chainArray
+  protected ChainSink chainSink;
+  //if not null, this is the same object as chainSink and the chain is read back from it
+  protected ChainStore chainStore;
+  //indicate if the initial value has been given to chainSink
+  protected boolean isInitialValueStreamed = false;
   protected SimpleMatrix chainMean; //the mean of the chain at the current step (column vector)
-  protected SimpleMatrix chainCovariance; //covariance of the chain at the current step
+  //covariance of the chain at the current step, instantised and worked out from chainSumSquares
+  //when the method updateChainCovariance is called
+  protected SimpleMatrix chainCovariance;
+  //sum of squared differences from the chain mean, only the lower triangle is updated
+  protected SimpleMatrix chainSumSquares;
+  //indicate if chainSumSquares has been updated since chainCovariance was worked out
+  protected boolean isChainCovarianceStale = false;
+  //which running statistics are updated at every step
+  protected StatisticsPolicy statisticsPolicy = StatisticsPolicy.COVARIANCE;
+  //temporary vector, difference between the new sample and the previous chain mean
+  protected double [] meanDifference;
+  //online batch means of the MCMC steps, for the monte carlo error while the chain runs
+  protected BatchMeans batchMeans;
 
   //statistics based on the chain and burn in these member variables will be instantised when the
   //method calculateChainStatistics is called
@@ -70,7 +115,7 @@ public abstract class Mcmc {
   protected int nAccept = 0; //the number of acceptance steps taken so far
   //note with thinning, a number of MCMC steps will be needed for each sample
 
-  protected MersenneTwister rng; //random number generator
+  protected RandomGenerator rng; //random number generator
 
   protected boolean isAccepted = true; //indicate if the latest step was an accept step
   protected SimpleMatrix rejectedSample; //if the latest step was a rejection, this is the value
@@ -80,11 +125,12 @@ public abstract class Mcmc {
    * @param chainLength Length of the chain to be obtained
    * @param rng Random number generator
    */
-  public Mcmc(TargetDistribution target, int chainLength, MersenneTwister rng) {
+  public Mcmc(TargetDistribution target, int chainLength, RandomGenerator rng) {
     this.target = target;
-    this.chainArray = new SimpleMatrix(chainLength, getNDim());
+    this.currentPosition = new SimpleMatrix(this.getNDim(), 1);
+    this.cachedPosition = new SimpleMatrix(this.getNDim(), 1);
     this.chainMean = new SimpleMatrix(this.getNDim(), 1);
-    this.chainCovariance = new SimpleMatrix(this.getNDim(), this.getNDim());
+    this.meanDifference = new double[this.getNDim()];
     this.acceptanceArray = new double [chainLength-1];
     this.chainLength = chainLength;
     this.rng = rng;
@@ -94,6 +140,8 @@ public abstract class Mcmc {
    * Constructor for extending the length of the chain and resume running it
    * Does a shallow copy of the provided chain and extending the matrix of the
    * member variable chainArray
+   * A ChainSink is shared with the provided chain, a MappedChainSink has its capacity increased
+   * to the new chain length, see MappedChainSink.ensureCapacity
    * @param chain Chain to be extended
    * @param nMoreSteps Number of steps to be extended
    */
@@ -101,9 +149,24 @@ public abstract class Mcmc {
     //do a shallow copy of chain
     this.target = chain.target;
     this.chainLength = chain.chainLength + nMoreSteps;
-    this.chainArray = new SimpleMatrix(this.chainLength, this.getNDim());
+    this.currentPosition = new SimpleMatrix(chain.currentPosition);
+    this.cachedPosition = new SimpleMatrix(chain.cachedPosition);
+    this.currentPotential = chain.currentPotential;
+    this.isCurrentCached = chain.isCurrentCached;
+    this.chainSink = chain.chainSink;
+    this.chainStore = chain.chainStore;
+    //a MappedChainSink has a fixed capacity, make space for the extended chain
+    if (this.chainSink instanceof MappedChainSink) {
+      ((MappedChainSink) this.chainSink).ensureCapacity(this.chainLength);
+    }
+    this.isInitialValueStreamed = chain.isInitialValueStreamed;
     this.chainMean = chain.chainMean;
     this.chainCovariance = chain.chainCovariance;
+    this.chainSumSquares = chain.chainSumSquares;
+    this.isChainCovarianceStale = chain.isChainCovarianceStale;
+    this.statisticsPolicy = chain.statisticsPolicy;
+    this.batchMeans = chain.batchMeans;
+    this.meanDifference = new double[this.getNDim()];
     this.acceptanceArray = new double [this.chainLength - 1];
     this.nStep = chain.nStep;
     this.nSample = chain.nSample;
@@ -113,8 +176,10 @@ public abstract class Mcmc {
 
     //deep copy the content of chainArray, the old chain, to the new chain
     //these contain the values of the MCMC
-    for (int i=0; i<chain.chainArray.getNumElements(); i++) {
-      this.chainArray.set(i, chain.chainArray.get(i));
+    if (chain.chainArray != null) {
+      this.chainArray = new SimpleMatrix(this.chainLength, this.getNDim());
+      System.arraycopy(chain.chainArray.getDDRM().getData(), 0,
+          this.chainArray.getDDRM().getData(), 0, chain.chainArray.getNumElements());
     }
     //deep copy the acceptanceArray
     for (int i=0; i<chain.acceptanceArray.length; i++) {
@@ -129,12 +194,11 @@ public abstract class Mcmc {
   public void step() {
     //only take a step the chain is not long enough
     if (this.nSample < this.chainLength) {
-      //instantiate column vector for the current value of the chain
-      SimpleMatrix x = this.chainArray.extractVector(true, this.nSample - 1);
-      CommonOps_DDRM.transpose(x.getDDRM());
-      this.step(x);
-      //save x to the chain array and increment the number of samples
-      this.setCurrentStep(x);
+      this.saveInitialValue();
+      //the current value of the chain is modified by the step
+      this.step(this.currentPosition);
+      //save it to the chain array and increment the number of samples
+      this.setCurrentStep(this.currentPosition);
     }
   }
 
@@ -148,42 +212,179 @@ public abstract class Mcmc {
 
   /**METHOD: RUN
    * Run the MCMC chain, save the samples and statistics.
-   * Get (chainLength - 1) MCMC samples, these are saved in the member variable chainArray
+   * Get (chainLength - 1) MCMC samples, these are saved in the member variable chainArray or
+   * streamed to chainSink
    * Number of steps is (chainLength-1)*nThin, i.e. not all samples are saved with thinning
    */
   public void run() {
+    this.saveInitialValue();
     //for (this.chainLength-1) times (this.nSample = 1 at construction)
     //a while loop is used as the chain can start from this.nSample other than 1
     while (this.nSample < this.chainLength) {
 
-      //instantiate column vector for the current value of the chain
-      SimpleMatrix x = this.chainArray.extractVector(true, this.nSample - 1);
-      CommonOps_DDRM.transpose(x.getDDRM());
-      //for nThin times, take a MCMC step
+      //for nThin times, take a MCMC step, this modifies the current value of the chain
       for (int iThin=0; iThin<this.nThin; iThin++) {
-        this.step(x);
+        this.step(this.currentPosition);
       }
-      //save x to the chain array and increment the number of samples
-      this.setCurrentStep(x);
+      //save it to the chain array and increment the number of samples
+      this.setCurrentStep(this.currentPosition);
 
     }
+    if (this.chainSink != null) {
+      this.chainSink.flush();
+    }
 
   }
 
   /**METHOD: SET CURRENT STEP
-   * Add sample to chainArray
+   * Add sample to chainArray, or stream it to chainSink
    * Increments nSample
    * @param x Value of the chain to add
    */
   protected void setCurrentStep(SimpleMatrix x) {
-    //for each dimension, copy the value of x to chainArray
-    for (int iDim = 0; iDim<this.getNDim(); iDim++) {
-      this.chainArray.set(this.nSample, iDim, x.get(iDim));
+    //currentPosition still contains the previous sample if x is a different vector
+    this.saveInitialValue();
+    if (x != this.currentPosition) {
+      this.currentPosition.set(x);
+    }
+    double [] xArray = x.getDDRM().getData();
+    if (this.chainSink == null) {
+      //copy the value of x to chainArray
+      System.arraycopy(xArray, 0, this.chainArray.getDDRM().getData(),
+          this.nSample*this.getNDim(), this.getNDim());
+    } else {
+      this.chainSink.addSample(xArray);
     }
     //increment nSample
     this.nSample++;
   }
 
+  /**METHOD: SAVE INITIAL VALUE
+   * Called when the chain starts, before the first step is taken
+   * Instantiate chainArray, with the current value of the chain as the initial value, or give
+   * the initial value to chainSink if streaming
+   * Does nothing if this has already been done
+   */
+  protected void saveInitialValue() {
+    if (this.chainSink == null) {
+      if (this.chainArray == null) {
+        this.chainArray = new SimpleMatrix(this.chainLength, this.getNDim());
+        System.arraycopy(this.currentPosition.getDDRM().getData(), 0,
+            this.chainArray.getDDRM().getData(), (this.nSample-1)*this.getNDim(),
+            this.getNDim());
+      }
+    } else if (!this.isInitialValueStreamed) {
+      this.chainSink.addSample(this.currentPosition.getDDRM().getData());
+      this.isInitialValueStreamed = true;
+    }
+  }
+
+  /**METHOD: SET CHAIN SINK
+   * Stream the samples to a ChainSink rather than saving them in the member variable chainArray,
+   * to be called before running the chain
+   * When streaming, methods which need the whole chain, eg getChain, getAcf and
+   * calculatePosteriorStatistics, are not available. Diagnostics which use running statistics,
+   * eg getChainMean, getChainCovariance and getAcceptanceRate, are still available.
+   * @param chainSink Receives the samples of the chain, starting with the initial value
+   */
+  public void setChainSink(ChainSink chainSink) {
+    this.chainSink = chainSink;
+    this.chainStore = null;
+    this.chainArray = null;
+  }
+
+  /**METHOD: SET CHAIN STORE
+   * Keep the samples in a ChainStore rather than in the member variable chainArray, to be called
+   * before running the chain
+   * The methods getChain read the samples from the store, other methods which need the whole
+   * chain, eg getAcf and calculatePosteriorStatistics, are not available unless the store is a
+   * BlockedChainStore, these then read the columns of the store without copying them
+   * @param chainStore Keeps the samples of the chain, starting with the initial value, it must
+   * have the capacity for chainLength samples
+   */
+  public void setChainStore(ChainStore chainStore) {
+    this.setChainSink(chainStore);
+    this.chainStore = chainStore;
+  }
+
+  /**METHOD: GET CHAIN ARRAY
+   * Return chainArray, instantiating it if the chain has not started yet
+   * @return chainArray
+   * @throws IllegalStateException If the samples are streamed to a ChainSink
+   */
+  protected SimpleMatrix getChainArray() {
+    if (this.chainSink != null) {
+      throw new IllegalStateException("The samples are streamed to a ChainSink, not stored");
+    }
+    this.saveInitialValue();
+    return this.chainArray;
+  }
+
+  /**METHOD: HAS COLUMN DATA
+   * @return true if the samples are stored in chainArray or in a BlockedChainStore, so that the
+   * methods getColumnData, getColumnOffset, getColumnStride and getColumnLength are available
+   */
+  protected boolean hasColumnData() {
+    return this.chainSink == null || this.chainStore instanceof BlockedChainStore;
+  }
+
+  /**METHOD: GET COLUMN DATA
+   * Array containing the samples of each dimension, either the row major chainArray or the column
+   * major columns of a BlockedChainStore. Sample i of dimension j is at
+   * getColumnData()[getColumnOffset(j) + i*getColumnStride()]
+   * Call this again after adding samples, the array of a BlockedChainStore can be replaced
+   * @return Array containing the samples, not a copy
+   * @throws IllegalStateException If the samples are not stored in chainArray or in a
+   * BlockedChainStore
+   */
+  protected double [] getColumnData() {
+    if (this.chainStore instanceof BlockedChainStore) {
+      return ((BlockedChainStore) this.chainStore).getColumnArray();
+    }
+    return this.getChainArray().getDDRM().getData();
+  }
+
+  /**METHOD: GET COLUMN OFFSET
+   * @param nDim Which dimension
+   * @return Index of the first sample of the dimension in getColumnData()
+   */
+  protected int getColumnOffset(int nDim) {
+    if (this.chainStore instanceof BlockedChainStore) {
+      return ((BlockedChainStore) this.chainStore).getColumnOffset(nDim);
+    }
+    return nDim;
+  }
+
+  /**METHOD: GET COLUMN STRIDE
+   * @return Distance between consecutive samples of a dimension in getColumnData()
+   */
+  protected int getColumnStride() {
+    if (this.chainStore instanceof BlockedChainStore) {
+      return 1;
+    }
+    return this.getNDim();
+  }
+
+  /**METHOD: GET DIMENSION STRIDE
+   * @return Distance between the same sample of consecutive dimensions in getColumnData()
+   */
+  protected int getDimensionStride() {
+    if (this.chainStore instanceof BlockedChainStore) {
+      return ((BlockedChainStore) this.chainStore).getColumnOffset(1);
+    }
+    return 1;
+  }
+
+  /**METHOD: GET COLUMN LENGTH
+   * @return Number of samples of each dimension in getColumnData()
+   */
+  protected int getColumnLength() {
+    if (this.chainStore instanceof BlockedChainStore) {
+      return this.chainStore.getNSample();
+    }
+    return this.getChainArray().numRows();
+  }
+
   /**METHOD: ACCEPT STEP
    * Given two vectors, current and proposal
    * With probability acceptProb, the values of propsoal is copied over to current and nAccept
@@ -196,7 +397,33 @@ public abstract class Mcmc {
   protected void acceptStep(double acceptProb, SimpleMatrix current, SimpleMatrix proposal) {
     //get a random number between 0 and 1
     //with acceptProb chance, accept the sample
-    if (this.rng.nextDouble() < acceptProb){
+    this.acceptOrReject(this.rng.nextDouble() < acceptProb, current, proposal);
+  }
+
+  /**METHOD: LOG ACCEPT STEP
+   * The same as acceptStep but given the log of the acceptance probability, so that the ratio of
+   * small pdfs does not underflow
+   * @param logAcceptProb Log of the acceptance probability
+   * @param current Column vector containing the value of the chain now, to be modified
+   * @param proposal Column vector of the proposal step, not modified
+   */
+  protected void logAcceptStep(double logAcceptProb, SimpleMatrix current,
+      SimpleMatrix proposal) {
+    //get a random number between 0 and 1
+    //with exp(logAcceptProb) chance, accept the sample
+    this.acceptOrReject(Math.log(this.rng.nextDouble()) < logAcceptProb, current, proposal);
+  }
+
+  /**METHOD: ACCEPT OR REJECT
+   * Used by the methods acceptStep and logAcceptStep
+   * If accepted, the values of proposal is copied over to current and nAccept increments
+   * If rejected, save the rejected sample
+   * @param isAccept true to accept the proposal
+   * @param current Column vector containing the value of the chain now, to be modified
+   * @param proposal Column vector of the proposal step, not modified
+   */
+  private void acceptOrReject(boolean isAccept, SimpleMatrix current, SimpleMatrix proposal) {
+    if (isAccept){
       current.set(proposal);
       //increment the number of acceptance steps
       this.nAccept++;
@@ -209,6 +436,41 @@ public abstract class Mcmc {
     }
   }
 
+  /**METHOD: CACHE CURRENT STATE
+   * Set the member variable currentPotential to the potential at the given position. It is only
+   * evaluated if it was not cached at this position, eg it is cached when a proposal is accepted
+   * @param position Column vector, current position of the chain, not modified
+   */
+  protected void cacheCurrentState(SimpleMatrix position) {
+    if (!this.isCurrentCached || !Arrays.equals(position.getDDRM().getData(),
+        this.cachedPosition.getDDRM().getData())) {
+      this.currentPotential = this.evaluateCurrentState(position);
+      this.cachedPosition.set(position);
+      this.isCurrentCached = true;
+    }
+  }
+
+  /**METHOD: EVALUATE CURRENT STATE
+   * Used by the method cacheCurrentState, subclasses may override this to cache more, eg the
+   * gradient of the potential
+   * @param position Column vector, current position of the chain, not modified
+   * @return the potential at position
+   */
+  protected double evaluateCurrentState(SimpleMatrix position) {
+    return this.target.getPotential(position.getDDRM().getData());
+  }
+
+  /**METHOD: SET CURRENT STATE
+   * Cache the potential at a new current position, eg after accepting a proposal
+   * @param position Column vector, current position of the chain, not modified
+   * @param potential The potential at position
+   */
+  protected void setCurrentState(SimpleMatrix position, double potential) {
+    this.cachedPosition.set(position);
+    this.currentPotential = potential;
+    this.isCurrentCached = true;
+  }
+
   /**METHOD: SET INITIAL VALUE
    * Set the initial value of the chain, to be called before running the chain
    * Calling this will initalise the member variable chainMean
@@ -216,16 +478,33 @@ public abstract class Mcmc {
    * of the correction dimensions
    */
   public void setInitialValue(double [] initialValue) {
-    //copy the intial value to the chain array
-    for (int i=0; i<initialValue.length; i++) {
-      this.chainArray.set(i, initialValue[i]);
+    //copy the intial value to the current position, and to the chain array if instantiated
+    System.arraycopy(initialValue, 0, this.currentPosition.getDDRM().getData(), 0,
+        this.getNDim());
+    if (this.chainArray != null) {
+      System.arraycopy(initialValue, 0, this.chainArray.getDDRM().getData(), 0, this.getNDim());
     }
     //intalise the chain mean
     this.chainMean = new SimpleMatrix(this.getNDim(), 1, true, initialValue);
   }
 
+  /**METHOD: SET STATISTICS POLICY
+   * Set which running statistics are updated at every step, to be called before running the chain
+   * The chain covariance is only available with the policy COVARIANCE, this is the default
+   * The online monte carlo error is only available with the policy MEAN or COVARIANCE
+   * AdaptiveRwmh and MixtureAdaptiveRwmh require the policy COVARIANCE, LowRankAdaptiveRwmh
+   * requires the policy MEAN or COVARIANCE
+   * @param statisticsPolicy Which running statistics to update
+   */
+  public void setStatisticsPolicy(StatisticsPolicy statisticsPolicy) {
+    this.statisticsPolicy = statisticsPolicy;
+  }
+
   /**METHOD: UPDATE STATISTICS
-   * Update the acceptanceArray, nStep, chainMean and chainCovariance
+   * Update the acceptanceArray, nStep and, depending on the statistics policy, chainMean and
+   * chainSumSquares
+   * The mean and sum of squares are updated in place using Welford's method, a rank-1 update
+   * on the lower triangle of chainSumSquares, no memory is allocated
    * @param x The new position column vector of the chain, after the MCMC step(s)
    */
   protected void updateStatistics(SimpleMatrix x){
@@ -242,43 +521,76 @@ public abstract class Mcmc {
     //so it is the number of steps + 1 (from the initial value)
     double n = (double) (this.nStep+1);
 
-    //update the mean using the previous mean
-    CommonOps_DDRM.scale(n-1, this.chainMean.getDDRM());
-    CommonOps_DDRM.addEquals(this.chainMean.getDDRM(), x.getDDRM());
-    CommonOps_DDRM.divide(this.chainMean.getDDRM(), n);
-
-    //if this is the first step
-    if (this.nStep == 1){
-      //get the initial value of the chain and transpose it to be a column vector
-      SimpleMatrix x1 = this.chainArray.extractVector(true, 0);
-      CommonOps_DDRM.transpose(x1.getDDRM());
-      //calculate the difference between the initial and the mean
-      SimpleMatrix r1 = x1.minus(this.chainMean);
-      //calculate the difference between the most recent value and the mean
-      SimpleMatrix r2 = x.minus(this.chainMean);
-      //calculate the covariance from scratch
-      CommonOps_DDRM.multOuter(r1.getDDRM(), this.chainCovariance.getDDRM());
-      DMatrixRMaj r2Outer = new DMatrixRMaj(this.getNDim(), this.getNDim());
-      CommonOps_DDRM.multOuter(r2.getDDRM(), r2Outer);
-      CommonOps_DDRM.addEquals(this.chainCovariance.getDDRM(), r2Outer);
+    if (this.statisticsPolicy == StatisticsPolicy.NONE) {
+      return;
+    }
 
+    int nDim = this.getNDim();
+    double [] xArray = x.getDDRM().getData();
+    //about sqrt(number of steps) batches are used, see BatchMeans
+    if (this.batchMeans == null) {
+      int nBatch = 2 * Math.max(1, (int) Math.round(Math.sqrt(
+          (double) this.chainLength * this.nThin)));
+      this.batchMeans = new BatchMeans(nDim, nBatch);
+    }
+    this.batchMeans.add(xArray);
+    double [] mean = this.chainMean.getDDRM().getData();
+    //update the mean using the difference between x and the previous mean
+    for (int i=0; i<nDim; i++) {
+      this.meanDifference[i] = xArray[i] - mean[i];
+      mean[i] += this.meanDifference[i] / n;
     }
 
-    //else update the covariance recursively
-    else{
-      //calculate the difference between the most recent value and the mean
-      SimpleMatrix r2 = x.minus(this.chainMean);
-      //update the covariance using the previous covariance
-      CommonOps_DDRM.scale(n-2, this.chainCovariance.getDDRM());
-      DMatrixRMaj r2Outer = new DMatrixRMaj(this.getNDim(), this.getNDim());
-      CommonOps_DDRM.multOuter(r2.getDDRM(), r2Outer);
-      CommonOps_DDRM.scale(n/(n-1), r2Outer);
-      CommonOps_DDRM.addEquals(this.chainCovariance.getDDRM(), r2Outer);
-      CommonOps_DDRM.divide(this.chainCovariance.getDDRM(), n-1);
+    if (this.statisticsPolicy == StatisticsPolicy.COVARIANCE) {
+      if (this.chainSumSquares == null) {
+        this.chainSumSquares = new SimpleMatrix(nDim, nDim);
+      }
+      //sum of squares += (x - new mean) * (x - previous mean)^T, lower triangle only
+      double [] sumSquares = this.chainSumSquares.getDDRM().getData();
+      for (int i=0; i<nDim; i++) {
+        double residual = xArray[i] - mean[i];
+        int rowIndex = i*nDim;
+        for (int j=0; j<=i; j++) {
+          sumSquares[rowIndex+j] += residual * this.meanDifference[j];
+        }
+      }
+      this.isChainCovarianceStale = true;
     }
 
   }
 
+  /**METHOD: UPDATE CHAIN COVARIANCE
+   * Work out the member variable chainCovariance from the lower triangle of chainSumSquares
+   * Only does work if the sum of squares has been updated since the last call
+   * Call this method before reading chainCovariance
+   * @throws IllegalStateException If the statistics policy is not COVARIANCE, the sum of squares
+   * is then not updated
+   */
+  protected void updateChainCovariance() {
+    if (this.statisticsPolicy != StatisticsPolicy.COVARIANCE) {
+      throw new IllegalStateException("The chain covariance needs the statistics policy "
+          + "COVARIANCE");
+    }
+    int nDim = this.getNDim();
+    if (this.chainCovariance == null) {
+      this.chainCovariance = new SimpleMatrix(nDim, nDim);
+    }
+    if (this.isChainCovarianceStale) {
+      //use the bias corrected divide
+      double divisor = (double) this.nStep;
+      double [] sumSquares = this.chainSumSquares.getDDRM().getData();
+      double [] covariance = this.chainCovariance.getDDRM().getData();
+      for (int i=0; i<nDim; i++) {
+        for (int j=0; j<=i; j++) {
+          double covarianceIJ = sumSquares[i*nDim+j] / divisor;
+          covariance[i*nDim+j] = covarianceIJ;
+          covariance[j*nDim+i] = covarianceIJ;
+        }
+      }
+      this.isChainCovarianceStale = false;
+    }
+  }
+
   /**METHOD: GET AUTOCORRELATION FUNCTION
    * Calculates the sample autocorrelation function for lags 0 to nLag-1
    * Results are returned in a double []
@@ -287,7 +599,11 @@ public abstract class Mcmc {
    * @return The acf at lag 0, 1, 2, ..., nLag-1
    */
   public double [] getAcf(int nDim, int nLag) {
-    return this.getAcf(this.chainArray.extractVector(false, nDim), nLag);
+    //the column is read straight from chainArray or the BlockedChainStore, no copy is made
+    Autocorrelation autocorrelation = new Autocorrelation(this.getColumnLength());
+    autocorrelation.calculate(this.getColumnData(), this.getColumnOffset(nDim),
+        this.getColumnStride(), this.getColumnLength());
+    return autocorrelation.getAcf(nLag);
   }
 
   /**METHOD: GET AUTOCORRELATION FUNCTION
@@ -298,70 +614,46 @@ public abstract class Mcmc {
    * @return The acf at lag 0, 1, 2, ..., nLag-1
    */
   protected double [] getAcf(SimpleMatrix chain, int nLag) {
-  //declare array for the acf, for lag 0,1,2,...,nLag-1
-    double [] acf = new double[nLag];
-
-    //work out the sample mean and centre the chain at the sample mean
-    double mean = chain.elementSum() / ((double) chain.getNumElements());
-    chain = chain.minus(mean);
-    //work out the S_x_xLag for all lags, see method getSxxlag
-    for (int i=0; i<nLag; i++) {
-      acf[i] = this.getSxxlag(chain, i);
-    }
-    //normalise the acf
-    for (int i=1; i<nLag; i++) {
-      acf[i] /= acf[0];
-    }
-    acf[0] = 1.0;
-
-    return acf;
+    Autocorrelation autocorrelation = new Autocorrelation(chain.getNumElements());
+    autocorrelation.calculate(chain.getDDRM().getData(), 0, 1, chain.getNumElements());
+    return autocorrelation.getAcf(nLag);
   }
 
-  /**METHOD: GET S_X_XLAG
-   * Calculates \sum_{i=0}^{n-k} (x_i)(x_{i+k}) where k is the lag
-   * For k = 0, this is the sum of squares
-   * @param chain Column vector containing the chain, centred around the mean
-   * @param lag k
-   * @return Sum of lagged elements
+  /**METHOD: GET EFFICIENCY
+   * Calculates the efficiency of the chain
+   * @param nDim The dimension to investigate
+   * @return efficiency
    */
-  protected double getSxxlag(SimpleMatrix chain, int lag) {
-    //trim the front of the chain
-    SimpleMatrix chainFrontTrim = chain.extractMatrix(lag, chain.numRows(), 0, 1);
-    //trim the back of the chain
-    SimpleMatrix chainEndTrim = chain.extractMatrix(0, chain.numRows()-lag, 0, 1);
-    //multiply the trimmed chains
-    return chainFrontTrim.elementMult(chainEndTrim).elementSum();
+  public double getEfficiency(int nDim) {
+    Autocorrelation autocorrelation = new Autocorrelation(this.chainLength);
+    return this.getEfficiency(nDim, autocorrelation);
+  }
 
+  /**METHOD: GET EFFICIENCY (for all dimensions)
+   * Calculates the efficiency of the chain for each dimension, the buffers for the fast Fourier
+   * transform are shared between dimensions
+   * @return efficiency, an entry for each dimension
+   */
+  public double [] getEfficiency() {
+    Autocorrelation autocorrelation = new Autocorrelation(this.chainLength);
+    double [] efficiency = new double[this.getNDim()];
+    for (int i=0; i<this.getNDim(); i++) {
+      efficiency[i] = this.getEfficiency(i, autocorrelation);
+    }
+    return efficiency;
   }
 
   /**METHOD: GET EFFICIENCY
-   * Calculates the efficiency of the chain
+   * Calculates the efficiency of the chain using the provided autocorrelation buffers
    * @param nDim The dimension to investigate
+   * @param autocorrelation Buffers to calculate the acf in, the acf is overwritten
    * @return efficiency
    */
-  public double getEfficiency(int nDim) {
-    //get the maximum lag
-    int maxLag = this.nSample;
-    //declare matrix for storing the acf
-    SimpleMatrix acf = new SimpleMatrix(maxLag, 1, true, this.getAcf(nDim, maxLag));
-
-    //find k which is odd and first integer for acf(k+1)+acf(k+2) to be negative
-    boolean foundK = false; //indicate if a k has been found
-    int k = 1; //initial value is 1
-    //while k hasn't been found
-    while (!foundK) {
-      //if acf(k+2) cannot be evaluated, then k has been found
-      if (k+2 >= maxLag) {
-        foundK = true;
-      //test if acf(k+1) + acf(k+2) is negative, if so k has been found
-      } else if ( (acf.get(k+1) + acf.get(k+2)) < 0) {
-        foundK = true;
-      }
-      //increment through all off k
-      k += 2;
-    }
-    //sum all the acf up to and including lag k
-    return 1/(1+2*acf.extractMatrix(1, k+1, 0, 1).elementSum());
+  protected double getEfficiency(int nDim, Autocorrelation autocorrelation) {
+    autocorrelation.calculate(this.getColumnData(), this.getColumnOffset(nDim),
+        this.getColumnStride(), this.getColumnLength());
+    //the maximum lag is the number of samples taken so far
+    return autocorrelation.getEfficiency(this.nSample);
   }
 
   /**METHOD: CALCULATE POSTERIOR STATISTICS
@@ -373,29 +665,27 @@ public abstract class Mcmc {
   public void calculatePosteriorStatistics(int nBurnIn) {
 
     //instantiate matrices for the posterior statistics
-    this.posteriorExpectation = new SimpleMatrix(this.getNDim(),1);
     this.monteCarloError = new SimpleMatrix(this.getNDim(),1);
-    this.posteriorCovariance = new SimpleMatrix(this.getNDim(),this.getNDim());
 
     //calculate the posterior statistics
-    this.calculatePosteriorExpectation(nBurnIn);
+    this.calculatePosteriorMoments(nBurnIn);
     this.calculateMonteCarloError(nBurnIn);
-    this.calculatePosteriorCovariance(nBurnIn);
   }
 
-  /**METHOD: CALCULATE POSTERIOR EXPECTATION
-   * Calulates the posterior expectation, with regards to the burn in
+  /**METHOD: CALCULATE POSTERIOR MOMENTS
+   * Calculates the posterior expectation and covariance, with regards to the burn in
+   * The chain is split into blocks of rows, the covariance of each block is worked out as one
+   * centred Gram matrix product and the blocks are merged, in parallel on the common pool, see
+   * MomentAccumulator
    * @param nBurnIn Number of samples to be ignored at the start of the chain
    */
-  protected void calculatePosteriorExpectation(int nBurnIn) {
-    //for each dimension, calculate the sample mean
-    for (int i=0; i<this.getNDim(); i++) {
-      //extract the vector from the burn in for this dimension
-      SimpleMatrix burntChain = this.chainArray.extractMatrix(nBurnIn, SimpleMatrix.END, i, i+1);
-      //calculate sample mean
-      this.posteriorExpectation.set(i,
-          burntChain.elementSum() / ( (double) (this.chainLength - nBurnIn)) );
-    }
+  protected void calculatePosteriorMoments(int nBurnIn) {
+    //the samples are rows, the dimensions are columns
+    MomentAccumulator moments = MomentAccumulator.calculate(this.getColumnData(),
+        this.getNDim(), this.getColumnOffset(0), this.getColumnStride(),
+        this.getDimensionStride(), nBurnIn, this.getColumnLength(), ForkJoinPool.commonPool());
+    this.posteriorExpectation = new SimpleMatrix(this.getNDim(), 1, true, moments.getMean());
+    this.posteriorCovariance = moments.getCovariance();
   }
 
   /**METHOD: CALCULATE MONTE CARLO ERROR
@@ -404,11 +694,14 @@ public abstract class Mcmc {
    * @param nBurnIn Number of samples to be ignored at the start of the chain
    */
   protected void calculateMonteCarloError(int nBurnIn) {
+    //the columns are read straight from chainArray or the BlockedChainStore, no copy is made
+    double [] data = this.getColumnData();
+    int stride = this.getColumnStride();
+    int n = this.getColumnLength() - nBurnIn; //get the number of samples of the burnt chain
     //for each dimension
     for (int i=0; i<this.getNDim(); i++) {
-      //extract the vector from the burn in for this dimension
-      SimpleMatrix burntChain = this.chainArray.extractMatrix(nBurnIn, SimpleMatrix.END, i, i+1);
-      int n = burntChain.numRows(); //get the number of samples of the burnt chain
+      //index of the first sample after the burn in for this dimension
+      int burntIndex = this.getColumnOffset(i) + nBurnIn*stride;
 
       //calculate the number of batches
       int nBatch = (int) Math.round(Math.sqrt((double) n));
@@ -430,10 +723,13 @@ public abstract class Mcmc {
         indexEnd = (int) Math.round(((double)(iBatch+1)) * chainLengthDouble / nBatchDouble);
         //save the length of this batch
         batchLength.set(iBatch, (double) (indexEnd - indexStart));
-        //get the samples from this batch
-        SimpleMatrix batchVector = burntChain.extractMatrix(indexStart, indexEnd, 0, 1);
+        //sum the samples from this batch
+        double batchSum = 0;
+        for (int iSample=indexStart; iSample<indexEnd; iSample++) {
+          batchSum += data[burntIndex + iSample*stride];
+        }
         //work out the sample mean and save it
-        this.batchArray.set(iBatch, batchVector.elementSum()/ batchLength.get(iBatch) );
+        this.batchArray.set(iBatch, batchSum / batchLength.get(iBatch) );
         //set the pointer for the next batch
         indexStart = indexEnd;
       }
@@ -457,38 +753,19 @@ public abstract class Mcmc {
     return this.getAcf(this.batchArray, nLag);
   }
 
-  /**METHOD: CALCULATE POSTERIOR COVARIANCE
-   * Calculate the posterior covariance, with regards to the burn in
-   * @param nBurnIn Number of samples to be ignored at the start of the chain
-   */
-  protected void calculatePosteriorCovariance(int nBurnIn) {
-    //for each sample
-    for (int i=0; i<(this.chainLength-nBurnIn); i++) {
-      //get the vector for this step
-      SimpleMatrix x = this.chainArray.extractVector(true, nBurnIn+i); //this is a row vector
-      CommonOps_DDRM.transpose(x.getDDRM()); //transpose for a column vector
-      //x subtract mean
-      CommonOps_DDRM.subtractEquals(x.getDDRM(), this.posteriorExpectation.getDDRM());
-      //instantiate a matrix for this outer product
-      SimpleMatrix xOuter = new SimpleMatrix(this.getNDim(), this.getNDim());
-      CommonOps_DDRM.multOuter(x.getDDRM(), xOuter.getDDRM());
-      //+= the outer product to this.posteriorCovariance
-      CommonOps_DDRM.addEquals(this.posteriorCovariance.getDDRM(), xOuter.getDDRM());
-    }
-    //use the bias corrected divide
-    CommonOps_DDRM.divide(this.posteriorCovariance.getDDRM()
-        , (double) (this.chainLength-nBurnIn-1) );
-
-  }
-
   /**METHOD: GET DIFFERENCE LN ERROR
-   * Call the calculatePosteriorStatistics prior to calling this method
    * Calculate ln(chain std) - ln (monte carlo error)
    * This gives some indiciation how large/small the monte carlo error, the chain should stop if
    * this difference is large, e.g. >6.9
+   * Uses the posterior statistics if calculatePosteriorStatistics has been called, otherwise the
+   * online batch means of all the MCMC steps so far, see the method getOnlineMonteCarloError, so
+   * that it can be used while the chain runs or when streaming
    * @return Array of ln(chain std) - ln (monte carlo error), an entry for each dimension
    */
   public double [] getDifferenceLnError() {
+    if (this.monteCarloError == null) {
+      return this.getBatchMeans().getDifferenceLnError();
+    }
     SimpleMatrix posteriorStd = this.posteriorCovariance.diag().elementPower(0.5);
     return posteriorStd.elementLog().minus(this.monteCarloError.elementLog()).getDDRM().getData();
   }
@@ -522,25 +799,36 @@ public abstract class Mcmc {
   }
 
   /**METHOD: GET CHAIN
+   * Read from the ChainStore if one was given
+   * Not available if the samples are streamed to a ChainSink which is not a ChainStore
    * @return double array of the chain, row major
    */
   public double [] getChain() {
-    return this.chainArray.getDDRM().getData();
+    if (this.chainStore != null) {
+      return this.chainStore.getChain();
+    }
+    return this.getChainArray().getDDRM().getData();
   }
 
   /**METHOD: GET CHAIN (of a specific dimension)
+   * Read from the ChainStore if one was given
+   * Not available if the samples are streamed to a ChainSink which is not a ChainStore
    * @param nDim Which dimension to extract from the chain
    * @return double array of the chain, each element correspond to a MCMC step
    */
   public double [] getChain(int nDim) {
-    return this.chainArray.extractVector(false, nDim).getDDRM().getData();
+    if (this.chainStore != null) {
+      return this.chainStore.getChain(nDim);
+    }
+    return this.getChainArray().extractVector(false, nDim).getDDRM().getData();
   }
 
   /**METHOD: GET END OF CHAIN
+   * Read from the current position of the chain, this does not need the whole chain
    * @return double array, vector of the last postion of the chain
    */
   public double [] getEndOfChain() {
-    return this.chainArray.extractVector(true, this.nSample-1).getDDRM().getData();
+    return new SimpleMatrix(this.currentPosition).getDDRM().getData();
   }
 
   /**METHOD: GET CHAIN MEAN
@@ -551,9 +839,12 @@ public abstract class Mcmc {
   }
 
   /**METHOD: GET CHAIN COVARIANCE
+   * Only available with the statistics policy COVARIANCE
    * @return The chain covariance at the current step (nDim x nDim symmetrical matrix)
+   * @throws IllegalStateException If the statistics policy is not COVARIANCE
    */
   public double [] getChainCovariance() {
+    this.updateChainCovariance();
     return this.chainCovariance.getDDRM().getData();
   }
 
@@ -565,14 +856,42 @@ public abstract class Mcmc {
     return this.posteriorExpectation.getDDRM().getData();
   }
 
-  /**METHOD: GET POSTERIOR EXPECTATAION
-   * Call the calculatePosteriorStatistics prior to calling this method
+  /**METHOD: GET MONTE CARLO ERROR
+   * Returns the monte carlo error worked out by calculatePosteriorStatistics, with regards to the
+   * burn in. If it has not been called, the online estimate for all the MCMC steps so far is
+   * returned instead, see the method getOnlineMonteCarloError
    * @return Monte carlo error of the posterior expectataion (nDim vector)
    */
   public double [] getMonteCarloError() {
+    if (this.monteCarloError == null) {
+      return this.getOnlineMonteCarloError();
+    }
     return this.monteCarloError.getDDRM().getData();
   }
 
+  /**METHOD: GET ONLINE MONTE CARLO ERROR
+   * Monte carlo error of the mean of all the MCMC steps so far (no burn in), estimated using batch
+   * means updated at every step, see BatchMeans. It is available at any time, including when
+   * streaming to a ChainSink, and requires the statistics policy MEAN or COVARIANCE
+   * @return Monte carlo error of the chain mean (nDim vector), NaN if there are too few steps
+   * @throws IllegalStateException If no steps have been taken or the statistics policy is NONE
+   */
+  public double [] getOnlineMonteCarloError() {
+    return this.getBatchMeans().getMonteCarloError();
+  }
+
+  /**METHOD: GET BATCH MEANS
+   * @return The online batch means of the MCMC steps
+   * @throws IllegalStateException If no steps have been taken or the statistics policy is NONE
+   */
+  protected BatchMeans getBatchMeans() {
+    if (this.batchMeans == null) {
+      throw new IllegalStateException(
+          "Online batch means need a step with the statistics policy MEAN or COVARIANCE");
+    }
+    return this.batchMeans;
+  }
+
   /**METHOD: GET POSTERIOR COVARIANCE
    * Call the calculatePosteriorStatistics prior to calling this method
    * @return Posterior covariance with regards to burning in (nDim x nDim symmetrical matrix)
@@ -16,7 +16,7 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.simple.SimpleMatrix;
 
@@ -27,6 +27,9 @@ import org.ejml.simple.SimpleMatrix;
  * The adaptive procedure is as follows
  *   -2*this.getNDim()-1 initial steps are homogeneous
  *   -Afterwards the proposal covariance is then a scale of the chain sample covariance
+ * As with AdaptiveRwmh, the cholesky of the adaptive proposal covariance is kept up to date with
+ * rank one updates once it has been successfully decomposed, or decomposed at scheduled steps, see
+ * AdaptiveRwmh.AdaptationSchedule
  */
 public class MixtureAdaptiveRwmh extends AdaptiveRwmh{
 
@@ -42,7 +45,7 @@ public class MixtureAdaptiveRwmh extends AdaptiveRwmh{
    * @param rng See superclass RandomWalkMetropolisHastings
    */
   public MixtureAdaptiveRwmh(TargetDistribution target, int chainLength,
-      SimpleMatrix proposalCovariance, MersenneTwister rng){
+      SimpleMatrix proposalCovariance, RandomGenerator rng){
     super(target, chainLength, proposalCovariance, rng);
     this.safteyProposalCovarianceChol = new SimpleMatrix(this.proposalCovarianceChol);
   }
@@ -70,13 +73,13 @@ public class MixtureAdaptiveRwmh extends AdaptiveRwmh{
   @Override
   public void adaptiveStep(SimpleMatrix currentStep) {
 
-    //get the chain covariance and scale it so that it is optimial for targetting Normal
-    SimpleMatrix newProposalCovarianceChol;
-    newProposalCovarianceChol = new SimpleMatrix(this.chainCovariance);
-    CommonOps_DDRM.scale(Math.pow(2.38, 2)/this.getNDim(), newProposalCovarianceChol.getDDRM());
-    //Global.cholesky will return a null if the decomposition is unsuccessful
+    //decompose the proposal covariance in full until successful, afterwards it is kept up to
+    //date according to the adaptation schedule, an unsuccessful scheduled decomposition keeps the
+    //previous cholesky
+    this.adaptProposal();
+    //adaptiveProposalChol is null if no decomposition has been successful
     //use the default proposal if a null is caught
-    newProposalCovarianceChol = Global.cholesky(newProposalCovarianceChol);
+    SimpleMatrix newProposalCovarianceChol = this.adaptiveProposalChol;
     if (newProposalCovarianceChol == null) {
       newProposalCovarianceChol = this.safteyProposalCovarianceChol;
     }
@@ -98,6 +101,19 @@ public class MixtureAdaptiveRwmh extends AdaptiveRwmh{
     }
   }
 
+  /**OVERRIDE: GET ADAPTIVE PROPOSAL CHOL
+   * Decompose the chain sample covariance scaled so that it is optimal for targetting Normal, no
+   * element is added to the diagonal
+   * @return Cholesky of the adaptive proposal covariance, null if unsuccessful
+   */
+  @Override
+  protected SimpleMatrix getAdaptiveProposalChol() {
+    this.updateChainCovariance();
+    SimpleMatrix proposalCovariance = new SimpleMatrix(this.chainCovariance);
+    CommonOps_DDRM.scale(this.getAdaptiveScale(), proposalCovariance.getDDRM());
+    return Global.cholesky(proposalCovariance);
+  }
+
   /**METHOD: SET PROBABILITY SAFTEY
    * Set the probability that the proposal covariance is the safety proposal
    * @param probabilitySafety probability that the proposal covariance is the safety proposal
@@ -0,0 +1,320 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.simple.SimpleMatrix;
+
+/**CLASS: MOMENT ACCUMULATOR
+ * Mean and sum of squared differences from the mean (centred Gram matrix) of a set of vectors,
+ * which can be merged with the moments of another set of vectors
+ * Rows of a row major design matrix are added in blocks. For each block, the rows are centred
+ * about the mean of the block and the Gram matrix of the centred block is worked out as one matrix
+ * product, the moments of the block are then merged with the moments so far
+ * The merge uses the pairwise update: with n = nA + nB and delta = meanB - meanA,
+ * mean = meanA + delta nB / n and sumSquares = sumSquaresA + sumSquaresB + delta delta^T nA nB / n
+ * Reference: Chan, T.F., Golub, G.H. and LeVeque, R.J., (1979)
+ *  Updating formulae and a pairwise algorithm for computing sample variances,
+ *  Stanford University, Technical Report STAN-CS-79-773
+ *
+ * The design matrix can also be strided, eg column major, element (r, i) is then at
+ * data[offset + r*rowStride + i*columnStride]
+ *
+ * How to use: call the function calculate to work out the moments of rows of a design matrix in
+ * parallel, or instantiate and call addRows and merge directly.
+ */
+public class MomentAccumulator {
+
+  //number of elements in a block of rows, so that a block fits in the cache
+  static private final int BLOCK_SIZE = 65536;
+  static private final int MIN_BLOCK_ROWS = 64; //minimum number of rows in a block
+  static private final int N_TASK_PER_THREAD = 4; //number of tasks for each thread in the pool
+
+  protected int nDim; //number of dimensions of each vector
+  protected long n = 0; //number of vectors
+  protected double [] mean; //mean of the vectors
+  protected DMatrixRMaj sumSquares; //sum of (x - mean) (x - mean)^T over the vectors
+
+  //buffers for the rows of a block, its Gram matrix and its mean, instantiated when needed
+  private DMatrixRMaj block;
+  private DMatrixRMaj blockSumSquares;
+  private double [] blockMean;
+
+  /**CONSTRUCTOR
+   * Moments of no vectors
+   * @param nDim Number of dimensions of each vector
+   */
+  public MomentAccumulator(int nDim) {
+    this.nDim = nDim;
+    this.mean = new double[nDim];
+    this.sumSquares = new DMatrixRMaj(nDim, nDim);
+  }
+
+  /**FUNCTION: CALCULATE
+   * Work out the moments of rows of a row major design matrix, the rows are split into ranges
+   * which are done in parallel on the pool and then merged
+   * @param data Row major design matrix with nDim columns, not modified
+   * @param nDim Number of columns
+   * @param rowStart First row
+   * @param rowEnd Last row, exclusive
+   * @param pool Pool to do the ranges of rows in
+   * @return Moments of the rows rowStart, rowStart+1, ..., rowEnd-1
+   */
+  public static MomentAccumulator calculate(double [] data, int nDim, int rowStart, int rowEnd,
+      ForkJoinPool pool) {
+    return calculate(data, nDim, 0, nDim, 1, rowStart, rowEnd, pool);
+  }
+
+  /**FUNCTION: CALCULATE
+   * Work out the moments of rows of a strided design matrix, the rows are split into ranges
+   * which are done in parallel on the pool and then merged
+   * @param data Design matrix with nDim columns, element (r, i) is at
+   * data[offset + r*rowStride + i*columnStride], not modified
+   * @param nDim Number of columns
+   * @param offset Index of element (0, 0)
+   * @param rowStride Distance between consecutive rows, eg nDim for row major
+   * @param columnStride Distance between consecutive columns, eg 1 for row major
+   * @param rowStart First row
+   * @param rowEnd Last row, exclusive
+   * @param pool Pool to do the ranges of rows in
+   * @return Moments of the rows rowStart, rowStart+1, ..., rowEnd-1
+   */
+  public static MomentAccumulator calculate(double [] data, int nDim, int offset, int rowStride,
+      int columnStride, int rowStart, int rowEnd, ForkJoinPool pool) {
+    int nTask = N_TASK_PER_THREAD * pool.getParallelism();
+    int grainSize = Math.max(getBlockRows(nDim), (rowEnd - rowStart + nTask - 1) / nTask);
+    return pool.invoke(new RowTask(data, nDim, offset, rowStride, columnStride, rowStart, rowEnd,
+        grainSize));
+  }
+
+  /**FUNCTION: GET BLOCK ROWS
+   * @param nDim Number of dimensions of each vector
+   * @return Number of rows in a block
+   */
+  private static int getBlockRows(int nDim) {
+    return Math.max(MIN_BLOCK_ROWS, BLOCK_SIZE / nDim);
+  }
+
+  /**METHOD: ADD ROWS
+   * Add rows of a row major design matrix, block by block
+   * @param data Row major design matrix with nDim columns, not modified
+   * @param rowStart First row
+   * @param rowEnd Last row, exclusive
+   */
+  public void addRows(double [] data, int rowStart, int rowEnd) {
+    this.addRows(data, 0, this.nDim, 1, rowStart, rowEnd);
+  }
+
+  /**METHOD: ADD ROWS
+   * Add rows of a strided design matrix, block by block
+   * The elements are read in memory order, by rows if columnStride is 1, otherwise by columns, the
+   * result does not depend on the order
+   * @param data Design matrix with nDim columns, element (r, i) is at
+   * data[offset + r*rowStride + i*columnStride], not modified
+   * @param offset Index of element (0, 0)
+   * @param rowStride Distance between consecutive rows, eg nDim for row major
+   * @param columnStride Distance between consecutive columns, eg 1 for row major
+   * @param rowStart First row
+   * @param rowEnd Last row, exclusive
+   */
+  public void addRows(double [] data, int offset, int rowStride, int columnStride, int rowStart,
+      int rowEnd) {
+    int nDim = this.nDim;
+    boolean isRowOrder = columnStride == 1;
+    int blockRows = getBlockRows(nDim);
+    if (this.block == null) {
+      this.block = new DMatrixRMaj(blockRows, nDim);
+      this.blockSumSquares = new DMatrixRMaj(nDim, nDim);
+      this.blockMean = new double[nDim];
+    }
+    for (int blockStart=rowStart; blockStart<rowEnd; blockStart+=blockRows) {
+      int nRow = Math.min(blockRows, rowEnd - blockStart);
+      //mean of the block
+      Arrays.fill(this.blockMean, 0.0);
+      int blockIndex = offset + blockStart*rowStride;
+      if (isRowOrder) {
+        for (int iRow=0; iRow<nRow; iRow++) {
+          int rowIndex = blockIndex + iRow*rowStride;
+          for (int i=0; i<nDim; i++) {
+            this.blockMean[i] += data[rowIndex+i];
+          }
+        }
+      } else {
+        for (int i=0; i<nDim; i++) {
+          int columnIndex = blockIndex + i*columnStride;
+          for (int iRow=0; iRow<nRow; iRow++) {
+            this.blockMean[i] += data[columnIndex + iRow*rowStride];
+          }
+        }
+      }
+      for (int i=0; i<nDim; i++) {
+        this.blockMean[i] /= (double) nRow;
+      }
+      //centre the block and work out its Gram matrix
+      this.block.reshape(nRow, nDim);
+      double [] blockData = this.block.getData();
+      if (isRowOrder) {
+        for (int iRow=0; iRow<nRow; iRow++) {
+          int rowIndex = blockIndex + iRow*rowStride;
+          for (int i=0; i<nDim; i++) {
+            blockData[iRow*nDim+i] = data[rowIndex+i] - this.blockMean[i];
+          }
+        }
+      } else {
+        for (int i=0; i<nDim; i++) {
+          int columnIndex = blockIndex + i*columnStride;
+          for (int iRow=0; iRow<nRow; iRow++) {
+            blockData[iRow*nDim+i] = data[columnIndex + iRow*rowStride] - this.blockMean[i];
+          }
+        }
+      }
+      CommonOps_DDRM.multInner(this.block, this.blockSumSquares);
+      this.merge(nRow, this.blockMean, this.blockSumSquares);
+    }
+  }
+
+  /**METHOD: MERGE
+   * Merge the moments of another set of vectors into this one
+   * @param other Moments of the other set of vectors, not modified
+   */
+  public void merge(MomentAccumulator other) {
+    this.merge(other.n, other.mean, other.sumSquares);
+  }
+
+  /**METHOD: MERGE
+   * Merge the moments of another set of vectors into this one
+   * @param nOther Number of the other vectors
+   * @param meanOther Mean of the other vectors, not modified
+   * @param sumSquaresOther Sum of squares of the other vectors, not modified
+   */
+  protected void merge(long nOther, double [] meanOther, DMatrixRMaj sumSquaresOther) {
+    if (nOther == 0) {
+      return;
+    }
+    int nDim = this.nDim;
+    double nA = (double) this.n;
+    double nB = (double) nOther;
+    double nTotal = nA + nB;
+    double [] sumSquares = this.sumSquares.getData();
+    double [] sumSquaresB = sumSquaresOther.getData();
+    //sum of squares += sumSquaresB + delta delta^T nA nB / n
+    double weight = nA * nB / nTotal;
+    for (int i=0; i<nDim; i++) {
+      double deltaI = meanOther[i] - this.mean[i];
+      for (int j=0; j<nDim; j++) {
+        double deltaJ = meanOther[j] - this.mean[j];
+        sumSquares[i*nDim+j] += sumSquaresB[i*nDim+j] + weight * deltaI * deltaJ;
+      }
+    }
+    for (int i=0; i<nDim; i++) {
+      this.mean[i] += (meanOther[i] - this.mean[i]) * nB / nTotal;
+    }
+    this.n += nOther;
+  }
+
+  /**METHOD: GET N
+   * @return Number of vectors
+   */
+  public long getN() {
+    return this.n;
+  }
+
+  /**METHOD: GET MEAN
+   * @return Mean of the vectors, not a copy
+   */
+  public double [] getMean() {
+    return this.mean;
+  }
+
+  /**METHOD: GET COVARIANCE
+   * @return Bias corrected covariance of the vectors (nDim x nDim)
+   */
+  public SimpleMatrix getCovariance() {
+    SimpleMatrix covariance = SimpleMatrix.wrap(new DMatrixRMaj(this.sumSquares));
+    CommonOps_DDRM.divide(covariance.getDDRM(), (double) (this.n - 1));
+    return covariance;
+  }
+
+  /**INNER CLASS: ROW TASK
+   * Works out the moments of the rows rowStart, ..., rowEnd-1, the range is split in half until it
+   * is no longer than grainSize, the moments of the halves are merged
+   */
+  protected static class RowTask extends RecursiveTask<MomentAccumulator> {
+
+    private static final long serialVersionUID = 1L;
+
+    protected double [] data; //strided design matrix
+    protected int nDim; //number of columns
+    protected int offset; //index of element (0, 0)
+    protected int rowStride; //distance between consecutive rows
+    protected int columnStride; //distance between consecutive columns
+    protected int rowStart; //first row
+    protected int rowEnd; //last row, exclusive
+    protected int grainSize; //maximum number of rows to be done without splitting
+
+    /**CONSTRUCTOR
+     * @param data Design matrix with nDim columns, element (r, i) is at
+     * data[offset + r*rowStride + i*columnStride]
+     * @param nDim Number of columns
+     * @param offset Index of element (0, 0)
+     * @param rowStride Distance between consecutive rows
+     * @param columnStride Distance between consecutive columns
+     * @param rowStart First row
+     * @param rowEnd Last row, exclusive
+     * @param grainSize Maximum number of rows to be done without splitting
+     */
+    public RowTask(double [] data, int nDim, int offset, int rowStride, int columnStride,
+        int rowStart, int rowEnd, int grainSize) {
+      this.data = data;
+      this.nDim = nDim;
+      this.offset = offset;
+      this.rowStride = rowStride;
+      this.columnStride = columnStride;
+      this.rowStart = rowStart;
+      this.rowEnd = rowEnd;
+      this.grainSize = grainSize;
+    }
+
+    /**OVERRIDE: COMPUTE
+     * Split the range of rows in half and merge the moments, or add the rows if small enough
+     */
+    @Override
+    protected MomentAccumulator compute() {
+      if (this.rowEnd - this.rowStart > this.grainSize) {
+        int middle = (this.rowStart + this.rowEnd) >>> 1;
+        RowTask second = new RowTask(this.data, this.nDim, this.offset, this.rowStride,
+            this.columnStride, middle, this.rowEnd, this.grainSize);
+        second.fork();
+        MomentAccumulator moments = new RowTask(this.data, this.nDim, this.offset,
+            this.rowStride, this.columnStride, this.rowStart, middle, this.grainSize).compute();
+        moments.merge(second.join());
+        return moments;
+      } else {
+        MomentAccumulator moments = new MomentAccumulator(this.nDim);
+        moments.addRows(this.data, this.offset, this.rowStride, this.columnStride, this.rowStart,
+            this.rowEnd);
+        return moments;
+      }
+    }
+  }
+
+}
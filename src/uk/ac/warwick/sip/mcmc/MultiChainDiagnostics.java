@@ -0,0 +1,529 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.special.Erf;
+
+/**CLASS: MULTI CHAIN DIAGNOSTICS
+ * Convergence diagnostics of multiple chains for every dimension: split R hat, rank normalised
+ * split R hat, and the bulk and tail effective sample size
+ * Each chain, after burn in, is split into two halves and the halves are treated as separate
+ * chains. The middle sample is dropped if the number of samples is odd. The rank normalised R hat
+ * is the maximum of the R hat of the rank normalised samples (bulk) and the R hat of the rank
+ * normalised absolute deviations from the median (tail). The bulk effective sample size is for
+ * the rank normalised samples, the tail effective sample size is the smaller one for the
+ * indicators of the 5% and 95% quantiles.
+ * Reference: Vehtari, A., Gelman, A., Simpson, D., Carpenter, B. and Burkner, P.C., (2021)
+ *  Rank-normalization, folding, and localization: an improved R hat for assessing convergence
+ *  of MCMC, Bayesian Analysis, 16(2), pp.667-718
+ *
+ * How to use: construct with an array of chains which have been run, then call calculate. The
+ * diagnostics can then be obtained using getSplitRhat, getRankNormalisedRhat, getBulkEss and
+ * getTailEss, each returns an entry for each dimension.
+ *
+ * The dimensions are spread across a ForkJoinPool, the common pool is used unless another is set
+ * using setPool. For each dimension, the column of each chain is read once into a buffer and all
+ * the diagnostics are worked out from it. The buffers are reused between the dimensions given to
+ * the same task.
+ */
+public class MultiChainDiagnostics {
+
+  //the lower and upper quantiles for the tail effective sample size
+  static private final double TAIL_QUANTILE = 0.05;
+
+  protected Mcmc [] chainArray; //chains to investigate
+  protected ForkJoinPool pool = ForkJoinPool.commonPool(); //dimensions are spread across this
+
+  protected int nSplitChain; //number of split chains, twice the number of chains
+  protected int nSplitSample; //number of samples in each split chain
+  protected int nBurnIn; //number of samples ignored at the start of each chain
+  //normal score of each rank, normalScore[k] is for the rank k/2 as ties can give half ranks
+  protected double [] normalScore;
+  //where the samples of each chain are, captured before the tasks start so that the tasks only
+  //read them, sample i of dimension j of chain k is at
+  //columnData[k][columnOffset[k] + j*dimensionStride[k] + i*columnStride[k]]
+  //columnData[k] is null if chain k keeps its samples in another ChainStore, the column is then
+  //copied from the store for each dimension
+  protected double [][] columnData;
+  protected int [] columnOffset;
+  protected int [] columnStride;
+  protected int [] dimensionStride;
+  protected int [] columnLength;
+
+  //diagnostics for each dimension, worked out when calling calculate
+  protected double [] splitRhat;
+  protected double [] rankNormalisedRhat;
+  protected double [] bulkEss;
+  protected double [] tailEss;
+
+  /**CONSTRUCTOR
+   * @param chainArray Chains to investigate, each has been run and stores its samples
+   */
+  public MultiChainDiagnostics(Mcmc [] chainArray) {
+    this.chainArray = chainArray;
+  }
+
+  /**METHOD: SET POOL
+   * Set the pool to spread the dimensions across, it is not shut down by this object
+   * @param pool Pool to work out the diagnostics
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**METHOD: CALCULATE
+   * Work out the diagnostics for every dimension, these can then be obtained using getSplitRhat,
+   * getRankNormalisedRhat, getBulkEss and getTailEss
+   * If the chains have different lengths, the shortest length is used
+   * @param nBurnIn Number of samples to be ignored at the start of each chain
+   * @throws IllegalArgumentException If there are fewer than 4 samples after burn in
+   * @throws IllegalStateException If a chain streams its samples to a ChainSink which is not a
+   * ChainStore
+   */
+  public void calculate(int nBurnIn) {
+    //capture the samples on this thread, getColumnData seals a BlockedChainStore which must not
+    //be done by several tasks at the same time
+    int nChain = this.chainArray.length;
+    this.columnData = new double[nChain][];
+    this.columnOffset = new int[nChain];
+    this.columnStride = new int[nChain];
+    this.dimensionStride = new int[nChain];
+    this.columnLength = new int[nChain];
+    int nSample = Integer.MAX_VALUE;
+    for (int iChain=0; iChain<nChain; iChain++) {
+      Mcmc chain = this.chainArray[iChain];
+      if (chain.hasColumnData()) {
+        this.columnData[iChain] = chain.getColumnData();
+        this.columnOffset[iChain] = chain.getColumnOffset(0);
+        this.columnStride[iChain] = chain.getColumnStride();
+        this.dimensionStride[iChain] = chain.getDimensionStride();
+        this.columnLength[iChain] = chain.getColumnLength();
+      } else if (chain.chainStore != null) {
+        this.columnLength[iChain] = chain.chainStore.getNSample();
+      } else {
+        throw new IllegalStateException("The samples of chain " + iChain
+            + " are streamed to a ChainSink, not stored");
+      }
+      nSample = Math.min(nSample, this.columnLength[iChain] - nBurnIn);
+    }
+    if (nSample < 4) {
+      throw new IllegalArgumentException("There must be at least 4 samples after burn in");
+    }
+    this.nBurnIn = nBurnIn;
+    this.nSplitChain = 2 * this.chainArray.length;
+    this.nSplitSample = nSample / 2;
+    //the normal scores only depend on the ranks, so they are shared by all dimensions
+    int nTotal = this.nSplitChain * this.nSplitSample;
+    this.normalScore = new double[2*nTotal + 1];
+    for (int k=2; k<=2*nTotal; k++) {
+      double probability = (0.5 * k - 0.375) / (nTotal + 0.25);
+      this.normalScore[k] = Math.sqrt(2.0) * Erf.erfInv(2.0 * probability - 1.0);
+    }
+
+    int nDim = this.chainArray[0].getNDim();
+    this.splitRhat = new double[nDim];
+    this.rankNormalisedRhat = new double[nDim];
+    this.bulkEss = new double[nDim];
+    this.tailEss = new double[nDim];
+    //each task is given a few dimensions so that there are several tasks per thread
+    int grainSize = Math.max(1, nDim / (8 * this.pool.getParallelism()));
+    this.pool.invoke(new DimensionTask(0, nDim, grainSize));
+  }
+
+  /**METHOD: GET SPLIT R HAT
+   * Call the method calculate prior to calling this method
+   * @return Split R hat of the samples for each dimension
+   */
+  public double [] getSplitRhat() {
+    return this.splitRhat;
+  }
+
+  /**METHOD: GET RANK NORMALISED R HAT
+   * Call the method calculate prior to calling this method
+   * @return Maximum of the bulk and tail rank normalised split R hat for each dimension
+   */
+  public double [] getRankNormalisedRhat() {
+    return this.rankNormalisedRhat;
+  }
+
+  /**METHOD: GET BULK EFFECTIVE SAMPLE SIZE
+   * Call the method calculate prior to calling this method
+   * @return Effective sample size of the rank normalised samples for each dimension
+   */
+  public double [] getBulkEss() {
+    return this.bulkEss;
+  }
+
+  /**METHOD: GET TAIL EFFECTIVE SAMPLE SIZE
+   * Call the method calculate prior to calling this method
+   * @return Minimum of the effective sample sizes of the 5% and 95% quantile indicators for each
+   *     dimension
+   */
+  public double [] getTailEss() {
+    return this.tailEss;
+  }
+
+  /**INNER CLASS: DIMENSION TASK
+   * Works out the diagnostics for the dimensions start, start+1, ..., end-1, the range is split in
+   * half until it is no longer than grainSize
+   */
+  protected class DimensionTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    protected int start; //first dimension
+    protected int end; //last dimension, exclusive
+    protected int grainSize; //maximum number of dimensions to be done without splitting
+
+    /**CONSTRUCTOR
+     * @param start First dimension
+     * @param end Last dimension, exclusive
+     * @param grainSize Maximum number of dimensions to be done without splitting
+     */
+    public DimensionTask(int start, int end, int grainSize) {
+      this.start = start;
+      this.end = end;
+      this.grainSize = grainSize;
+    }
+
+    /**OVERRIDE: COMPUTE
+     * Split the range of dimensions in half, or work out the diagnostics if small enough
+     */
+    @Override
+    protected void compute() {
+      if (this.end - this.start > this.grainSize) {
+        int middle = (this.start + this.end) >>> 1;
+        invokeAll(new DimensionTask(this.start, middle, this.grainSize),
+            new DimensionTask(middle, this.end, this.grainSize));
+      } else {
+        Workspace workspace = new Workspace();
+        for (int iDim=this.start; iDim<this.end; iDim++) {
+          workspace.calculate(iDim);
+        }
+      }
+    }
+  }
+
+  /**INNER CLASS: WORKSPACE
+   * Buffers to work out the diagnostics of one dimension at a time, used by one task only
+   * The split chains are stored one after another in the buffers, each of length nSplitSample
+   */
+  protected class Workspace {
+
+    protected double [] sample; //samples of the split chains
+    protected double [] sorted; //values sorted in ascending order
+    protected int [] order; //indices of the values in ascending order
+    protected int [] orderBuffer; //used to merge sort order
+    protected double [] transformed; //rank normalised or indicator values of the samples
+    protected Autocorrelation autocorrelation; //buffers for the acf of a split chain
+    protected double [] meanAutocovariance; //autocovariance averaged over the split chains
+    protected double [] rho; //autocorrelation estimates for the effective sample size
+
+    /**CONSTRUCTOR
+     * Allocate the buffers
+     */
+    public Workspace() {
+      int n = MultiChainDiagnostics.this.nSplitSample;
+      int nTotal = MultiChainDiagnostics.this.nSplitChain * n;
+      this.sample = new double[nTotal];
+      this.sorted = new double[nTotal];
+      this.order = new int[nTotal];
+      this.orderBuffer = new int[nTotal];
+      this.transformed = new double[nTotal];
+      this.autocorrelation = new Autocorrelation(n);
+      this.meanAutocovariance = new double[n];
+      this.rho = new double[n+2];
+    }
+
+    /**METHOD: CALCULATE
+     * Read the samples of a dimension from each chain and work out its diagnostics
+     * @param iDim Dimension to investigate
+     */
+    public void calculate(int iDim) {
+      MultiChainDiagnostics diagnostics = MultiChainDiagnostics.this;
+      int n = diagnostics.nSplitSample;
+      int nTotal = this.sample.length;
+
+      //read the column of each chain once, straight from chainArray or the BlockedChainStore
+      for (int iChain=0; iChain<diagnostics.chainArray.length; iChain++) {
+        double [] chainData = diagnostics.columnData[iChain];
+        int offset;
+        int stride;
+        if (chainData == null) {
+          //the store has no contiguous columns, copy the column once
+          chainData = diagnostics.chainArray[iChain].getChain(iDim);
+          offset = 0;
+          stride = 1;
+        } else {
+          offset = diagnostics.columnOffset[iChain] + iDim*diagnostics.dimensionStride[iChain];
+          stride = diagnostics.columnStride[iChain];
+        }
+        int nSample = Math.min(diagnostics.columnLength[iChain] - diagnostics.nBurnIn, 2 * n + 1);
+        //the first half, then the second half which skips the middle sample if there is one
+        int firstIndex = offset + diagnostics.nBurnIn*stride;
+        int secondIndex = offset + (diagnostics.nBurnIn + nSample - n)*stride;
+        for (int i=0; i<n; i++) {
+          this.sample[2*iChain*n + i] = chainData[firstIndex + i*stride];
+          this.sample[(2*iChain+1)*n + i] = chainData[secondIndex + i*stride];
+        }
+      }
+      diagnostics.splitRhat[iDim] = this.getRhat(this.sample);
+
+      //bulk, rank normalise the samples
+      this.rankNormalise(this.sample);
+      double bulkRhat = this.getRhat(this.transformed);
+      diagnostics.bulkEss[iDim] = this.getEss(this.transformed);
+
+      //tail, rank normalise the absolute deviations from the median
+      double median = this.getQuantile(0.5);
+      double lowerQuantile = this.getQuantile(TAIL_QUANTILE);
+      double upperQuantile = this.getQuantile(1.0 - TAIL_QUANTILE);
+      for (int i=0; i<nTotal; i++) {
+        this.transformed[i] = Math.abs(this.sample[i] - median);
+      }
+      this.rankNormalise(this.transformed);
+      double tailRhat = this.getRhat(this.transformed);
+      diagnostics.rankNormalisedRhat[iDim] = Math.max(bulkRhat, tailRhat);
+
+      //tail effective sample size, the indicators of the lower and upper quantiles
+      for (int i=0; i<nTotal; i++) {
+        this.transformed[i] = (this.sample[i] <= lowerQuantile) ? 1.0 : 0.0;
+      }
+      double lowerEss = this.getEss(this.transformed);
+      for (int i=0; i<nTotal; i++) {
+        this.transformed[i] = (this.sample[i] <= upperQuantile) ? 1.0 : 0.0;
+      }
+      diagnostics.tailEss[iDim] = Math.min(lowerEss, this.getEss(this.transformed));
+    }
+
+    /**METHOD: RANK NORMALISE
+     * Set transformed to the normal scores of the ranks of the values, the average rank is used
+     * for ties, the member variable sorted is set to the values in ascending order
+     * The normal score of rank r out of S values is the inverse normal cdf of (r-3/8)/(S+1/4)
+     * @param values Values to rank normalise, may be the member variable transformed
+     */
+    protected void rankNormalise(double [] values) {
+      int nTotal = values.length;
+      this.sortOrder(values);
+      for (int i=0; i<nTotal; i++) {
+        this.sorted[i] = values[this.order[i]];
+      }
+      //the values sorted[lower], ..., sorted[upper-1] are tied
+      int lower = 0;
+      while (lower < nTotal) {
+        int upper = lower + 1;
+        while ((upper < nTotal) && (this.sorted[upper] == this.sorted[lower])) {
+          upper++;
+        }
+        //the average rank is (lower + 1 + upper) / 2
+        double normalScore = MultiChainDiagnostics.this.normalScore[lower + 1 + upper];
+        for (int i=lower; i<upper; i++) {
+          this.transformed[this.order[i]] = normalScore;
+        }
+        lower = upper;
+      }
+    }
+
+    /**METHOD: SORT ORDER
+     * Set the member variable order to the indices of the values in ascending order using a
+     * bottom up merge sort, so that the ranks are found without searching
+     * @param values Values to sort, not modified
+     */
+    protected void sortOrder(double [] values) {
+      int nTotal = values.length;
+      int [] source = this.order;
+      int [] destination = this.orderBuffer;
+      for (int i=0; i<nTotal; i++) {
+        source[i] = i;
+      }
+      for (int width=1; width<nTotal; width*=2) {
+        for (int start=0; start<nTotal; start+=2*width) {
+          int middle = Math.min(start + width, nTotal);
+          int end = Math.min(start + 2*width, nTotal);
+          int left = start;
+          int right = middle;
+          for (int i=start; i<end; i++) {
+            if ((left < middle) && ((right >= end) || (values[source[left]]
+                <= values[source[right]]))) {
+              destination[i] = source[left++];
+            } else {
+              destination[i] = source[right++];
+            }
+          }
+        }
+        int [] swap = source;
+        source = destination;
+        destination = swap;
+      }
+      this.order = source;
+      this.orderBuffer = destination;
+    }
+
+    /**METHOD: GET QUANTILE
+     * Sample quantile, interpolating linearly between the sorted values, the member variable
+     * sorted must contain the values in ascending order
+     * @param probability Probability of the quantile
+     * @return Quantile of the values
+     */
+    protected double getQuantile(double probability) {
+      double index = probability * (this.sorted.length - 1);
+      int lower = (int) Math.floor(index);
+      int upper = Math.min(lower + 1, this.sorted.length - 1);
+      double weight = index - lower;
+      return (1.0 - weight) * this.sorted[lower] + weight * this.sorted[upper];
+    }
+
+    /**METHOD: GET R HAT
+     * Potential scale reduction factor of the split chains, the square root of the ratio of the
+     * pooled variance estimate over the within chain variance
+     * @param values Samples of the split chains, one after another
+     * @return R hat
+     */
+    protected double getRhat(double [] values) {
+      int nChain = MultiChainDiagnostics.this.nSplitChain;
+      int n = MultiChainDiagnostics.this.nSplitSample;
+      double sumChainMean = 0;
+      double sumSquaresChainMean = 0;
+      double withinVariance = 0;
+      for (int iChain=0; iChain<nChain; iChain++) {
+        double chainMean = this.getMean(values, iChain);
+        sumChainMean += chainMean;
+        sumSquaresChainMean += chainMean * chainMean;
+        withinVariance += this.getSumSquares(values, iChain, chainMean) / (n - 1);
+      }
+      withinVariance /= nChain;
+      //variance of the chain means, this is the between chain variance divided by n
+      double grandMean = sumChainMean / nChain;
+      double betweenVariance = (sumSquaresChainMean - nChain * grandMean * grandMean)
+          / (nChain - 1);
+      double pooledVariance = ((double) (n - 1)) / n * withinVariance + betweenVariance;
+      return Math.sqrt(pooledVariance / withinVariance);
+    }
+
+    /**METHOD: GET EFFECTIVE SAMPLE SIZE
+     * Effective sample size of the split chains, the autocorrelations of the chains are combined
+     * using the within chain and pooled variance, then summed using Geyer's initial monotone
+     * sequence, as done in Stan
+     * @param values Samples of the split chains, one after another
+     * @return Effective sample size, NaN if the values are all the same
+     */
+    protected double getEss(double [] values) {
+      int nChain = MultiChainDiagnostics.this.nSplitChain;
+      int n = MultiChainDiagnostics.this.nSplitSample;
+      Arrays.fill(this.meanAutocovariance, 0.0);
+      double sumChainMean = 0;
+      double sumSquaresChainMean = 0;
+      double withinVariance = 0;
+      for (int iChain=0; iChain<nChain; iChain++) {
+        double chainMean = this.getMean(values, iChain);
+        double sumSquares = this.getSumSquares(values, iChain, chainMean);
+        sumChainMean += chainMean;
+        sumSquaresChainMean += chainMean * chainMean;
+        withinVariance += sumSquares / (n - 1);
+        //autocovariance = acf * biased variance, it is zero for a constant chain
+        if (sumSquares > 0) {
+          this.autocorrelation.calculate(values, iChain * n, 1, n);
+          double [] acf = this.autocorrelation.real;
+          for (int t=0; t<n; t++) {
+            this.meanAutocovariance[t] += acf[t] * sumSquares / n;
+          }
+        }
+      }
+      withinVariance /= nChain;
+      for (int t=0; t<n; t++) {
+        this.meanAutocovariance[t] /= nChain;
+      }
+      double grandMean = sumChainMean / nChain;
+      double pooledVariance = ((double) (n - 1)) / n * withinVariance
+          + (sumSquaresChainMean - nChain * grandMean * grandMean) / (nChain - 1);
+      if (!(pooledVariance > 0)) {
+        return Double.NaN;
+      }
+
+      //Geyer's initial positive sequence, sum pairs of autocorrelations while positive
+      Arrays.fill(this.rho, 0.0);
+      double rhoEven = 1.0;
+      double rhoOdd = 1.0 - (withinVariance - this.meanAutocovariance[1]) / pooledVariance;
+      this.rho[0] = rhoEven;
+      this.rho[1] = rhoOdd;
+      int t = 1;
+      while ((t < n - 4) && (rhoEven + rhoOdd > 0)) {
+        rhoEven = 1.0 - (withinVariance - this.meanAutocovariance[t+1]) / pooledVariance;
+        rhoOdd = 1.0 - (withinVariance - this.meanAutocovariance[t+2]) / pooledVariance;
+        if (rhoEven + rhoOdd >= 0) {
+          this.rho[t+1] = rhoEven;
+          this.rho[t+2] = rhoOdd;
+        }
+        t += 2;
+      }
+      int maxT = t;
+      //reduces the variance of the estimate for antithetic chains
+      if (rhoEven > 0) {
+        this.rho[maxT+1] = rhoEven;
+      }
+      //Geyer's initial monotone sequence
+      for (t=1; t<=maxT-3; t+=2) {
+        if (this.rho[t+1] + this.rho[t+2] > this.rho[t-1] + this.rho[t]) {
+          this.rho[t+1] = 0.5 * (this.rho[t-1] + this.rho[t]);
+          this.rho[t+2] = this.rho[t+1];
+        }
+      }
+      double nTotal = (double) (nChain * n);
+      double sumRho = 0;
+      for (t=0; t<maxT; t++) {
+        sumRho += this.rho[t];
+      }
+      double tau = -1.0 + 2.0 * sumRho + this.rho[maxT+1];
+      //the effective sample size is at most nTotal * log10(nTotal)
+      return nTotal / Math.max(tau, 1.0 / Math.log10(nTotal));
+    }
+
+    /**METHOD: GET MEAN
+     * @param values Samples of the split chains, one after another
+     * @param iChain Which split chain
+     * @return Mean of the split chain
+     */
+    protected double getMean(double [] values, int iChain) {
+      int n = MultiChainDiagnostics.this.nSplitSample;
+      double sum = 0;
+      for (int i=iChain*n; i<(iChain+1)*n; i++) {
+        sum += values[i];
+      }
+      return sum / n;
+    }
+
+    /**METHOD: GET SUM SQUARES
+     * @param values Samples of the split chains, one after another
+     * @param iChain Which split chain
+     * @param mean Mean of the split chain
+     * @return Sum of squares about the mean of the split chain
+     */
+    protected double getSumSquares(double [] values, int iChain, double mean) {
+      int n = MultiChainDiagnostics.this.nSplitSample;
+      double sumSquares = 0;
+      for (int i=iChain*n; i<(iChain+1)*n; i++) {
+        sumSquares += (values[i] - mean) * (values[i] - mean);
+      }
+      return sumSquares;
+    }
+  }
+
+}
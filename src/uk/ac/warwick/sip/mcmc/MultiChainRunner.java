@@ -0,0 +1,149 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**CLASS: MULTI CHAIN RUNNER
+ * Runs multiple chains concurrently, eg for the Gelman Rubin statistic, see GelmanRubinF and
+ * MultiChainDiagnostics
+ * The chains are instantiated using a ChainFactory. Each chain is given its own random number
+ * generator, a Philox4x32 keyed by a master seed using the index of the chain as the stream, so
+ * that the streams of the chains do not overlap and the chains are reproducible regardless of the
+ * order or the thread they are run on
+ *
+ * How to use: construct with a ChainFactory, the number of chains and a master seed. Optionally
+ * set the executor using the method setExecutor, otherwise a thread pool is used for each run.
+ * Call the method run to run all the chains and return them.
+ *
+ * The chains may share the target distribution, the target must then be safe to evaluate from
+ * multiple threads, eg NormalDistribution and UniformDistribution
+ */
+public class MultiChainRunner {
+
+  /**INTERFACE: CHAIN FACTORY
+   * Instantiate the chains to be run
+   */
+  public interface ChainFactory {
+    /**METHOD: NEW CHAIN
+     * Called on the thread running the chain
+     * @param iChain Index of the chain, 0, 1, 2, ..., nChain-1
+     * @param rng Random number generator to be used only by this chain
+     * @return Chain to be run, eg with its initial value set
+     */
+    public Mcmc newChain(int iChain, RandomGenerator rng);
+  }
+
+  protected ChainFactory chainFactory; //instantiate each chain
+  protected int nChain; //number of chains
+  protected int masterSeed; //seed used to seed each chain's random number generator
+  //executor to run the chains, if null, a thread pool is instantiated for each run
+  protected ExecutorService executor;
+
+  /**CONSTRUCTOR
+   * @param chainFactory Instantiate each chain
+   * @param nChain Number of chains
+   * @param masterSeed Seed used to seed each chain's random number generator
+   */
+  public MultiChainRunner(ChainFactory chainFactory, int nChain, int masterSeed) {
+    this.chainFactory = chainFactory;
+    this.nChain = nChain;
+    this.masterSeed = masterSeed;
+  }
+
+  /**METHOD: SET EXECUTOR
+   * Set the executor to run the chains, it is not shut down by this object
+   * @param executor Executor to run the chains, or null to use a thread pool for each run
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**METHOD: GET RNG
+   * Return the random number generator for a chain, keyed by the master seed, using the index of
+   * the chain as the stream, see Philox4x32
+   * @param masterSeed Seed used to seed each chain's random number generator
+   * @param iChain Index of the chain
+   * @return Random number generator for the chain
+   */
+  public static RandomGenerator getRng(int masterSeed, int iChain) {
+    return new Philox4x32(masterSeed, iChain);
+  }
+
+  /**METHOD: RUN
+   * Instantiate and run each chain concurrently
+   * @return Array of completed chains, in order of their index
+   * @throws InterruptedException If interrupted while waiting for the chains to finish
+   */
+  public Mcmc [] run() throws InterruptedException {
+    ExecutorService executor = this.executor;
+    boolean isOwnExecutor = executor == null;
+    if (isOwnExecutor) {
+      int nThread = Math.min(this.nChain, Runtime.getRuntime().availableProcessors());
+      executor = Executors.newFixedThreadPool(Math.max(nThread, 1));
+    }
+    try {
+      //submit each chain
+      ArrayList<Future<Mcmc>> futureList = new ArrayList<Future<Mcmc>>(this.nChain);
+      for (int iChain=0; iChain<this.nChain; iChain++) {
+        futureList.add(executor.submit(this.newTask(iChain)));
+      }
+      //wait for each chain to finish
+      Mcmc [] chainArray = new Mcmc[this.nChain];
+      for (int iChain=0; iChain<this.nChain; iChain++) {
+        try {
+          chainArray[iChain] = futureList.get(iChain).get();
+        } catch (ExecutionException exception) {
+          Throwable cause = exception.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+      return chainArray;
+    } finally {
+      if (isOwnExecutor) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**METHOD: NEW TASK
+   * @param iChain Index of the chain
+   * @return Task which instantiates, runs and returns a chain
+   */
+  protected Callable<Mcmc> newTask(final int iChain) {
+    return new Callable<Mcmc>() {
+      @Override
+      public Mcmc call() {
+        Mcmc chain = MultiChainRunner.this.chainFactory.newChain(iChain,
+            getRng(MultiChainRunner.this.masterSeed, iChain));
+        chain.run();
+        return chain;
+      }
+    };
+  }
+
+}
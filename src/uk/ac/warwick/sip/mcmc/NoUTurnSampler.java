@@ -16,10 +16,9 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.simple.SimpleMatrix;
 
 /**CLASS: NO U TURN SAMPLER
@@ -27,18 +26,31 @@ import org.ejml.simple.SimpleMatrix;
  * Reference: Hoffman, M.D., and Gelman, A., (2014)
  *  The No-U-Turn sampler: adaptively setting path lengths in Hamiltonian Monte Carlo,
  *  Journal of Machine Learning Research, 15(1), pp.1593-1623
+ * The tree is built recursively by default, instantiating a Tree object for every node. Calling
+ * setIsIterativeTree(true) builds the tree iteratively instead, using a stack of preallocated Tree
+ * objects indexed by depth, this gives the same samples for the same random number generator.
+ * The height of the tree is unbounded by default, it can be limited using the method
+ * setMaxTreeDepth, eg to RECOMMENDED_MAX_TREE_DEPTH
  */
 public class NoUTurnSampler extends HamiltonianMonteCarlo {
 
+  //maximum height of the tree suggested for use with setMaxTreeDepth
+  static public final int RECOMMENDED_MAX_TREE_DEPTH = 10;
+
   //after a leapfrog step, threshold of comparing the hamiltonian with the slice variable
   //used to determine if a u turn has been made
   protected double deltaMax;
-  //temporary variable for storing the slice variable
-  //a random double times the cannonical distribution
-  protected double sliceVariable;
-
-  //array of vectors containing position vector of each leapfrog step
-  protected ArrayList<SimpleMatrix> leapFrogPositions;
+  //temporary variable for storing the log of the slice variable
+  //the log of a random double times the cannonical distribution
+  protected double logSliceVariable;
+  //the tree stops growing when it reaches this height, unbounded by default
+  protected int maxTreeDepth = Integer.MAX_VALUE;
+  //true to build the tree iteratively, see the method iterativeStep
+  protected boolean isIterativeTree = false;
+  //preallocated trees used by the method iterativeStep, treeStack[0] is the main tree and
+  //treeStack[depth] is the subtree being built from the end of treeStack[depth-1], grown when
+  //the main tree gets taller
+  protected Tree [] treeStack;
 
   /**CONSTRUCTOR
    * Adaptive HMC which adapts the number of leap frog steps so that no u turns are made
@@ -50,13 +62,24 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
    * also used to further random number generation on the fly
    */
   public NoUTurnSampler(TargetDistribution target, int chainLength, SimpleMatrix massMatrix,
-      double sizeLeapFrog, MersenneTwister rng) {
+      double sizeLeapFrog, RandomGenerator rng) {
+    this(target, chainLength, KineticMetric.newMetric(massMatrix), sizeLeapFrog, rng);
+  }
+
+  /**CONSTRUCTOR
+   * Adaptive HMC which adapts the number of leap frog steps so that no u turns are made
+   * @param target Object which has a method to call the pdf
+   * @param chainLength Length of the chain to be obtained
+   * @param metric mass matrix, determines the variance of the momentum
+   * @param sizeLeapFrog size of the leap frog step
+   * @param rng Random number generator for all the random numbers
+   */
+  public NoUTurnSampler(TargetDistribution target, int chainLength, KineticMetric metric,
+      double sizeLeapFrog, RandomGenerator rng) {
     //set the number of leap frog steps to be one
     //this is so that calling the method leapFrog() will only take on leap frog step
-    super(target, chainLength, massMatrix, sizeLeapFrog, 1, rng);
+    super(target, chainLength, metric, sizeLeapFrog, 1, rng);
     this.deltaMax = 1000;
-    //delete the superclass version of leapFrogPositions
-    super.leapFrogPositions = null;
   }
 
   /**CONSTRUCTOR
@@ -70,10 +93,30 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
     //also shallow copy the chain's member variables
     super(chain, nMoreSteps);
     this.deltaMax = chain.deltaMax;
+    this.maxTreeDepth = chain.maxTreeDepth;
+    this.isIterativeTree = chain.isIterativeTree;
+  }
+
+  /**METHOD: SET IS ITERATIVE TREE
+   * Set if the tree is built iteratively using preallocated trees or recursively
+   * @param isIterativeTree true to build the tree iteratively
+   */
+  public void setIsIterativeTree(boolean isIterativeTree) {
+    this.isIterativeTree = isIterativeTree;
+  }
+
+  /**METHOD: SET MAX TREE DEPTH
+   * Set the maximum height of the tree, ie at most 2^maxTreeDepth leap frog steps per MCMC step
+   * The height is unbounded by default, limiting it changes the chain when a tree would have
+   * grown taller
+   * @param maxTreeDepth maximum height of the tree, eg RECOMMENDED_MAX_TREE_DEPTH
+   */
+  public void setMaxTreeDepth(int maxTreeDepth) {
+    this.maxTreeDepth = maxTreeDepth;
   }
 
   /**OVERRIDE: ADD TO LEAP FROG ARRAY
-   * Do nothing, this it to stop accessing the unused member variable super.leapFrogPositions
+   * Do nothing, the leap frog positions are recorded by the tree in time order instead
    */
   @Override
   protected void addToLeapFrogArray(int index, SimpleMatrix position) {
@@ -90,11 +133,19 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
   @Override
   public void step(SimpleMatrix position) {
 
+    if (this.isIterativeTree) {
+      this.iterativeStep(position);
+      return;
+    }
+
     //get the position vector from the chain array, and random momentum
     SimpleMatrix momentum = this.getMomentum();
 
+    //get the gradient and potential at the current position
+    this.cacheCurrentState(position);
+
     //sample the slice variable
-    this.sampleSliceVariable(this.getHamiltonian(position, momentum));
+    this.sampleSliceVariable(this.getKineticEnergy(momentum) + this.currentPotential);
 
     //instantiate a tree with the variables
     //backward position and momentum = position and momentum
@@ -102,20 +153,19 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
     //proposal position = position
     //nSliceAccept = 1 (referred to as n in the reference)
     //hasNoUTurn = true (referred to as s in the reference)
-    Tree tree = this.newTree(position, momentum);
+    Tree tree = this.newTree(position, momentum, this.currentGradient, this.currentPotential);
     tree.nSliceAccept++;
 
-    //instantiate array for storing all the leap frog steps and rejected steps
-    this.leapFrogPositions = new ArrayList<SimpleMatrix>();
-    //Initialise the arraylist
-    //afterwards, elements will be appended to this array by the object tree, see the subclass
-    this.leapFrogPositions.add(new SimpleMatrix(position));
+    //clear the leap frog steps recorded in the previous step and record the current position
+    //afterwards, positions will be added to the trajectory by the object tree, see the subclass
+    this.leapFrogPositions.clear();
+    this.leapFrogPositions.addLast(position);
 
     //declare variable for flagging if an acceptance step has been taken
     this.isAccepted = false;
 
     //while no u turn has been made
-    while (tree.hasNoUTurn) {
+    while (tree.hasNoUTurn && (tree.height < this.maxTreeDepth)) {
 
       //sample Uniform({-1,1}), this controls the direction of the tree growth
       boolean isNegative = this.rng.nextBoolean();
@@ -136,6 +186,8 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
             / ((double) tree.nSliceAccept);
         if (this.rng.nextDouble() < probAccept) {
           tree.positionProposal = subTree.positionProposal;
+          tree.gradientProposal = subTree.gradientProposal;
+          tree.potentialProposal = subTree.potentialProposal;
           this.isAccepted = true;
         }
       }
@@ -150,8 +202,9 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
       this.nAccept++;
     }
 
-    //copy the proposal position
+    //copy the proposal position, along with its gradient and potential
     position.set(tree.positionProposal);
+    this.setCurrentState(position, tree.gradientProposal, tree.potentialProposal);
 
     //update the statistics of itself
     this.updateStatistics(position);
@@ -162,16 +215,208 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
 
   }
 
+  /**METHOD: ITERATIVE STEP
+   * Does a step using the No U Turn Sampler, the same as the method step but the tree is built
+   * iteratively using the preallocated trees in treeStack, see the method buildTreeIteratively
+   * @param position Column vector of the current step of the MCMC, to be modified
+   */
+  protected void iterativeStep(SimpleMatrix position) {
+
+    //get random momentum
+    SimpleMatrix momentum = this.momentumWorkspace;
+    this.sampleMomentum(momentum);
+
+    //get the gradient and potential at the current position
+    this.cacheCurrentState(position);
+
+    //sample the slice variable
+    this.sampleSliceVariable(this.getKineticEnergy(momentum) + this.currentPotential);
+
+    //the main tree is of height 0 with the position and momentum
+    this.growTreeStack(2);
+    Tree tree = this.treeStack[0];
+    tree.reset();
+    tree.copySeed(position, momentum, this.currentGradient, this.currentPotential);
+    tree.nSliceAccept++;
+
+    //clear the leap frog steps recorded in the previous step and record the current position
+    this.leapFrogPositions.clear();
+    this.leapFrogPositions.addLast(position);
+
+    //declare variable for flagging if an acceptance step has been taken
+    this.isAccepted = false;
+
+    //while no u turn has been made
+    while (tree.hasNoUTurn && (tree.height < this.maxTreeDepth)) {
+
+      //sample Uniform({-1,1}), this controls the direction of the tree growth
+      boolean isNegative = this.rng.nextBoolean();
+
+      //build a subtree of the same height from the end of the tree in the direction of isNegative
+      //then replace the end of the tree with the end of the subtree
+      this.growTreeStack(tree.height + 2);
+      Tree subTree = this.buildTreeIteratively(isNegative);
+      tree.join(subTree, isNegative);
+
+      //if the subtree hasn't made a u turn
+      if (subTree.hasNoUTurn) {
+        //accept the proposal position with a probability
+        double probAccept = ((double) subTree.nSliceAccept)
+            / ((double) tree.nSliceAccept);
+        if (this.rng.nextDouble() < probAccept) {
+          tree.copyProposal(subTree);
+          this.isAccepted = true;
+        }
+      }
+
+      //adjust member variables of the main tree, this includes tree.hasNoUTurn
+      tree.bloom();
+
+    }
+
+    //if an acceptance step has been taken, increment the number of acceptance steps
+    if (this.isAccepted) {
+      this.nAccept++;
+    }
+
+    //copy the proposal position, along with its gradient and potential
+    position.set(tree.positionProposal);
+    this.setCurrentState(position, tree.gradientProposal, tree.potentialProposal);
+
+    //update the statistics of itself
+    this.updateStatistics(position);
+
+    //call the method adaptiveStep, the subtree of the main tree is treeStack[1]
+    this.adaptiveStep(tree);
+
+  }
+
+  /**METHOD: BUILD TREE ITERATIVELY
+   * Iterative version of the method Tree.buildTree, without instantiating any objects
+   * Builds a subtree in treeStack[1], of the same height as the main tree treeStack[0], growing
+   * from the end of the main tree in the direction of isNegative
+   * A tree of height h is a leaf joined with subtrees of height 0, 1, ..., h-1 in turn, each
+   * built from the end of the tree so far. The tree treeStack[depth] is built to the height of
+   * treeStack[depth-1]. When it is not yet of that height, treeStack[depth+1] is planted as a leaf
+   * and built, then joined to treeStack[depth].
+   * @param isNegative boolean, true if to run the HMC backwards in time
+   * @return treeStack[1], the built subtree
+   */
+  protected Tree buildTreeIteratively(boolean isNegative) {
+    int depth = 1;
+    this.plantLeaf(depth, isNegative);
+    while (true) {
+      Tree tree = this.treeStack[depth];
+      //the height this tree is to be built to
+      int height = this.treeStack[depth-1].height;
+      if (tree.hasNoUTurn && (tree.height < height)) {
+        //build a subtree of the same height from the end of this tree
+        depth++;
+        this.plantLeaf(depth, isNegative);
+      } else if (depth == 1) {
+        return tree;
+      } else {
+        //this tree is built, join it to the tree it grew from
+        depth--;
+        Tree parentTree = this.treeStack[depth];
+        parentTree.join(tree, isNegative);
+        //the subtree contains a new proposal
+        //accept the new proposal with a probability
+        double probAccept = ((double)(tree.nSliceAccept))
+            / ((double)(parentTree.nSliceAccept+tree.nSliceAccept));
+        if (this.rng.nextDouble() < probAccept) {
+          parentTree.copyProposal(tree);
+        }
+        //update the member variables of the parent tree
+        parentTree.bloom();
+      }
+    }
+  }
+
+  /**METHOD: PLANT LEAF
+   * Iterative version of the base case of the method Tree.buildTree
+   * Set treeStack[depth] to a tree of height 0, a leap frog step is taken from the end of
+   * treeStack[depth-1] in the direction of isNegative
+   * @param depth Index of treeStack to plant the leaf
+   * @param isNegative boolean, true if to run the HMC backwards in time
+   */
+  protected void plantLeaf(int depth, boolean isNegative) {
+    Tree parentTree = this.treeStack[depth-1];
+    Tree leaf = this.treeStack[depth];
+    leaf.reset();
+    //take a leap frog step, the backward position, momentum and gradient are used as the proposal
+    //change the sign if sizeLeapFrog if to go back in time
+    SimpleMatrix positionProposal = leaf.positionBackward;
+    SimpleMatrix momentumProposal = leaf.momentumBackward;
+    SimpleMatrix gradientProposal = leaf.gradientBackward;
+    if (isNegative) {
+      positionProposal.set(parentTree.positionBackward);
+      momentumProposal.set(parentTree.momentumBackward);
+      gradientProposal.set(parentTree.gradientBackward);
+      this.sizeLeapFrog *= -1.0;
+    } else {
+      positionProposal.set(parentTree.positionForward);
+      momentumProposal.set(parentTree.momentumForward);
+      gradientProposal.set(parentTree.gradientForward);
+    }
+    double potential = this.leapFrog(positionProposal, momentumProposal, gradientProposal);
+    if (isNegative) {
+      this.sizeLeapFrog *= -1.0;
+    }
+    leaf.copySeed(positionProposal, momentumProposal, gradientProposal, potential);
+
+    //get the hamiltonian to set variables such as nSliceAccept and hasNoUTurn
+    leaf.setUsingHamiltonian(this.getKineticEnergy(momentumProposal) + potential);
+
+    //if no u turn has been made and a slice accept has been made
+    //save the leap frog position
+    if ( (leaf.nSliceAccept==1) & (leaf.hasNoUTurn) ) {
+      if (isNegative) {
+        this.leapFrogPositions.addFirst(positionProposal);
+      } else {
+        this.leapFrogPositions.addLast(positionProposal);
+      }
+    }
+  }
+
+  /**METHOD: GROW TREE STACK
+   * Make sure there are at least nTree trees used by the method iterativeStep, each with its own
+   * vectors, the trees already instantiated are kept
+   * Building a subtree of height h needs the main tree and h+1 subtrees, ie nTree = h+2
+   * @param nTree Number of trees needed
+   */
+  protected void growTreeStack(int nTree) {
+    int nOld = this.treeStack == null ? 0 : this.treeStack.length;
+    if (nOld >= nTree) {
+      return;
+    }
+    int nDim = this.getNDim();
+    Tree [] treeStack = new Tree[nTree];
+    if (nOld > 0) {
+      System.arraycopy(this.treeStack, 0, treeStack, 0, nOld);
+    }
+    this.treeStack = treeStack;
+    for (int i=nOld; i<nTree; i++) {
+      Tree tree = this.newTree(new SimpleMatrix(nDim, 1), new SimpleMatrix(nDim, 1),
+          new SimpleMatrix(nDim, 1), 0.0);
+      tree.positionForward = new SimpleMatrix(nDim, 1);
+      tree.momentumForward = new SimpleMatrix(nDim, 1);
+      tree.positionProposal = new SimpleMatrix(nDim, 1);
+      tree.gradientForward = new SimpleMatrix(nDim, 1);
+      tree.gradientProposal = new SimpleMatrix(nDim, 1);
+      this.treeStack[i] = tree;
+    }
+  }
+
   /**METHOD: SAMPLE SLICE VARIABLE
-   * Set the member variable sliceVariable given the current hamiltonian
+   * Set the member variable logSliceVariable given the current hamiltonian
    * The slice varaible is a random number Uniform(0,Math.exp(-hamiltonian))
-   * The uniform random number is obtained from the array this.random01Array
+   * It is kept on the log scale so that it does not underflow
    * @parm hamiltonian The hamiltonian at the current position-momentum state
    */
   protected void sampleSliceVariable(double hamiltonian) {
     //sample the slice variable
-    this.sliceVariable = this.rng.nextDouble();
-    this.sliceVariable *= Math.exp(-hamiltonian);
+    this.logSliceVariable = Math.log(this.rng.nextDouble()) - hamiltonian;
   }
 
   /**METHOD: ADAPTIVE STEP
@@ -184,6 +429,7 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
 
   /**METHOD: GET LEAP FROG POSITIONS
    * Return an iterator which iterates all the leap frog positions in the latest HMC step
+   * Requires the recording policy FULL or BOUNDED, see the method setRecordingPolicy
    * @return iterator which iterates all the leap frog positions
    */
   public Iterator<SimpleMatrix> getLeapFrogPositionIterator(){
@@ -197,6 +443,14 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
     return this.new Tree(position, momentum);
   }
 
+  /**METHOD: NEW TREE
+   * See constructor in subclass Tree
+   */
+  protected Tree newTree (SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+      double potential) {
+    return this.new Tree(position, momentum, gradient, potential);
+  }
+
   /**METHOD: NEW TREE
    * See constructor in subclass Tree
    */
@@ -205,6 +459,14 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
     return this.new Tree(position, momentum, isNegative, treeHeight);
   }
 
+  /**METHOD: NEW TREE
+   * See constructor in subclass Tree
+   */
+  protected Tree newTree (SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+      boolean isNegative, int treeHeight) {
+    return this.new Tree(position, momentum, gradient, isNegative, treeHeight);
+  }
+
   /**INNER CLASS: TREE
    * Stores the position/momentum backward/forward column vectors
    * Stores the proposed position column vector
@@ -223,6 +485,11 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
    * position-momentum pair. This is different from the Tree(SimpleMatrix position,
    * SimpleMatrix momentum) constructor.
    *
+   * The gradient of the potential at the backward, forward and proposed positions, and the
+   * potential at the proposed position, are stored too so that they are evaluated once for each
+   * leap frog step. Each constructor has a version which is given the gradient (and potential) at
+   * the given position, otherwise they are evaluated.
+   *
    * Source code makes use of inner classes, instances are owned by (and can access)
    * the parent NoUTurnSampler object
    */
@@ -233,6 +500,10 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
     protected SimpleMatrix positionForward; //column vector, position forwards in time
     protected SimpleMatrix momentumForward; //column vector, momentum forwards in time
     protected SimpleMatrix positionProposal; //column vector, proposed position
+    protected SimpleMatrix gradientBackward; //column vector, gradient at positionBackward
+    protected SimpleMatrix gradientForward; //column vector, gradient at positionForward
+    protected SimpleMatrix gradientProposal; //column vector, gradient at positionProposal
+    protected double potentialProposal; //potential at positionProposal
     //number of times slice variable (u) < exp(-H) (n in the reference)
     protected int nSliceAccept = 0;
     //determines if this sampler has not made a u turn
@@ -249,7 +520,22 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
      * @param momentum Column vector, momentum vector to grow from
      */
     public Tree(SimpleMatrix position, SimpleMatrix momentum) {
-      this.plantSeed(position, momentum);
+      SimpleMatrix gradient = new SimpleMatrix(position.numRows(), 1);
+      double potential = NoUTurnSampler.this.evaluatePotential(position, gradient);
+      this.plantSeed(position, momentum, gradient, potential);
+    }
+
+    /**CONSTRUCTOR
+     * Instantiate a tree of height 0, no leap frog step taken and grows from the given
+     * position and momentum pair, the gradient and potential at the position are given
+     * @param position Column vector, position vector to grow from
+     * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param potential Potential at position
+     */
+    public Tree(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        double potential) {
+      this.plantSeed(position, momentum, gradient, potential);
     }
 
     /**CONSTRUCTOR
@@ -264,7 +550,24 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
      */
     public Tree(SimpleMatrix position, SimpleMatrix momentum,
         boolean isNegative, int treeHeight) {
-      this.buildTree(position, momentum, isNegative, treeHeight);
+      SimpleMatrix gradient = new SimpleMatrix(position.numRows(), 1);
+      NoUTurnSampler.this.evaluatePotential(position, gradient);
+      this.buildTree(position, momentum, gradient, isNegative, treeHeight);
+    }
+
+    /**CONSTRUCTOR
+     * Instantiate a tree of height treeHeight, each node correspond to a leap frog step
+     * The tree grows from the given position and momentum pair, the gradient at the position
+     * is given
+     * @param position Column vector, position vector to grow from
+     * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param isNegative Direction to grow the tree
+     * @param treeHeight Requested instantiated tree height
+     */
+    public Tree(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        boolean isNegative, int treeHeight) {
+      this.buildTree(position, momentum, gradient, isNegative, treeHeight);
     }
 
     /**METHOD: PLANT SEED
@@ -272,13 +575,20 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
      * This assign the member variables given the starting point of the sampler
      * @param position Column vector, position vector to grow from
      * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param potential Potential at position
      */
-    private void plantSeed(SimpleMatrix position, SimpleMatrix momentum) {
+    private void plantSeed(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        double potential) {
       this.positionBackward = position;
       this.momentumBackward = momentum;
       this.positionForward = position;
       this.momentumForward = momentum;
       this.positionProposal = position;
+      this.gradientBackward = gradient;
+      this.gradientForward = gradient;
+      this.gradientProposal = gradient;
+      this.potentialProposal = potential;
     }
 
     /**METHOD: BUILD TREE
@@ -288,34 +598,36 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
      * Each node (or height) correspond to a leap frog step
      * @param position Column vector, position vector to grow from
      * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
      * @param isNegative boolean, true if to run the HMC backwards in time
      * @param treeHeight the height of the tree requested
      */
-    private void buildTree(SimpleMatrix position, SimpleMatrix momentum,
+    private void buildTree(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
         boolean isNegative, int treeHeight) {
       //if the tree height is 0, this is the base case
       //take one leapfrog step in corresponding direction indiciated by isNegative
       if (treeHeight == 0) {
-        //copy the position and momentum vector
+        //copy the position, momentum and gradient vector
         //change the sign if sizeLeapFrog if to go back in time
         //it shall be changed back to how it was after the leap frog step
         SimpleMatrix positionProposal = new SimpleMatrix(position);
         SimpleMatrix momentumProposal = new SimpleMatrix(momentum);
+        SimpleMatrix gradientProposal = new SimpleMatrix(gradient);
         if (isNegative) {
           NoUTurnSampler.this.sizeLeapFrog *= -1.0;
         }
-        //method leapFrog modifies positionProposal and momentumProposal
-        NoUTurnSampler.this.leapFrog(positionProposal, momentumProposal);
+        //method leapFrog modifies positionProposal, momentumProposal and gradientProposal
+        double potential = NoUTurnSampler.this.leapFrog(positionProposal, momentumProposal,
+            gradientProposal);
         if (isNegative) {
           NoUTurnSampler.this.sizeLeapFrog *= -1.0;
         }
 
         //prepare variables of the new instantiated Tree object
-        this.plantSeed(positionProposal, momentumProposal);
+        this.plantSeed(positionProposal, momentumProposal, gradientProposal, potential);
 
         //get the hamiltonian to set variables such as nSliceAccept and hasNoUTurn
-        double hamiltonian = NoUTurnSampler.this.getHamiltonian(positionProposal,
-            momentumProposal);
+        double hamiltonian = NoUTurnSampler.this.getKineticEnergy(momentumProposal) + potential;
         this.setUsingHamiltonian(hamiltonian);
 
         //if no u turn has been made and a slice accept has been made
@@ -323,9 +635,9 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
         if ( (this.nSliceAccept==1) & (this.hasNoUTurn) ) {
           //if going in reverse time, prepend
           if (isNegative) {
-            NoUTurnSampler.this.leapFrogPositions.add(0,positionProposal);
+            NoUTurnSampler.this.leapFrogPositions.addFirst(positionProposal);
           } else { //else going forward in time, append
-            NoUTurnSampler.this.leapFrogPositions.add(positionProposal);
+            NoUTurnSampler.this.leapFrogPositions.addLast(positionProposal);
           }
         }
 
@@ -336,7 +648,7 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
         //then treeHeight will increment for each removal from the stack
         //it should be noted that this.treeHeight is set to 0 in the base case
         //this.treeHeight increments everytime this.grow and this.bloom is called
-        this.buildTree(position, momentum, isNegative, treeHeight-1);
+        this.buildTree(position, momentum, gradient, isNegative, treeHeight-1);
 
         //if no u turn has been made
         if (this.hasNoUTurn) {
@@ -352,6 +664,8 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
               / ((double)(this.nSliceAccept+this.subTree.nSliceAccept));
           if (NoUTurnSampler.this.rng.nextDouble() < probAccept) {
             this.positionProposal = this.subTree.positionProposal;
+            this.gradientProposal = this.subTree.gradientProposal;
+            this.potentialProposal = this.subTree.potentialProposal;
           }
 
           //update the member variables of the main tree
@@ -362,6 +676,77 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
 
     }
 
+    /**METHOD: RESET
+     * Used by the iterative tree builder, reset the member variables to that of a newly
+     * instantiated tree so that this tree can be reused
+     */
+    protected void reset() {
+      this.nSliceAccept = 0;
+      this.hasNoUTurn = true;
+      this.height = 0;
+    }
+
+    /**METHOD: COPY SEED
+     * Used by the iterative tree builder, the same as plantSeed but the values are copied to this
+     * tree's own vectors rather than sharing the given vectors
+     * @param position Column vector, position vector to grow from
+     * @param momentum Column vector, momentum vector to grow from
+     * @param gradient Column vector, gradient of the potential at position
+     * @param potential Potential at position
+     */
+    protected void copySeed(SimpleMatrix position, SimpleMatrix momentum, SimpleMatrix gradient,
+        double potential) {
+      this.positionBackward.set(position);
+      this.momentumBackward.set(momentum);
+      this.positionForward.set(position);
+      this.momentumForward.set(momentum);
+      this.positionProposal.set(position);
+      this.gradientBackward.set(gradient);
+      this.gradientForward.set(gradient);
+      this.gradientProposal.set(gradient);
+      this.potentialProposal = potential;
+    }
+
+    /**METHOD: COPY PROPOSAL
+     * Used by the iterative tree builder, copy the proposed position of the subtree, along with
+     * its gradient and potential
+     * @param subTree Subtree grown from the end of this tree
+     */
+    protected void copyProposal(Tree subTree) {
+      this.positionProposal.set(subTree.positionProposal);
+      this.gradientProposal.set(subTree.gradientProposal);
+      this.potentialProposal = subTree.potentialProposal;
+    }
+
+    /**METHOD: JOIN
+     * Used by the iterative tree builder, the equivalent of the method grow() but the subtree
+     * has already been built. The backward or forward position and momentum are copied from the
+     * subtree and the subtree is saved in the member variable subTree
+     * The method bloom() should be called after this
+     * @param subTree Subtree grown from the end of this tree
+     * @param isNegative boolean, true of going back in time, otherwise forward
+     */
+    protected void join(Tree subTree, boolean isNegative) {
+      if (isNegative) {
+        this.positionBackward.set(subTree.positionBackward);
+        this.momentumBackward.set(subTree.momentumBackward);
+        this.gradientBackward.set(subTree.gradientBackward);
+      } else {
+        this.positionForward.set(subTree.positionForward);
+        this.momentumForward.set(subTree.momentumForward);
+        this.gradientForward.set(subTree.gradientForward);
+      }
+      this.setSubTree(subTree);
+    }
+
+    /**METHOD: SET SUB TREE
+     * Save the subtree, to be used by the method bloom()
+     * @param subTree Subtree grown from the end of this tree
+     */
+    protected void setSubTree(Tree subTree) {
+      this.subTree = subTree;
+    }
+
     /**METHOD: SET USING HAMILTONIAN
      * Given the hamiltonian of the proposal, set the member variables nSliceAccept and
      * hasNoUTurn
@@ -370,12 +755,12 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
      */
     protected void setUsingHamiltonian(double hamiltonian) {
       //the slice variable is referred to as u in the reference
-      if (NoUTurnSampler.this.sliceVariable < Math.exp(-hamiltonian)) {
+      if (NoUTurnSampler.this.logSliceVariable < -hamiltonian) {
         this.nSliceAccept++;
       }
 
       //determine if a u turn has been made or not
-      if (-hamiltonian <= (Math.log(NoUTurnSampler.this.sliceVariable)
+      if (-hamiltonian <= (NoUTurnSampler.this.logSliceVariable
           -NoUTurnSampler.this.deltaMax)) {
         this.hasNoUTurn = false;
       }
@@ -398,21 +783,23 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
         //grow the subtree from the most backward state
         //replace all the backward member variables in the main tree
         subTree = NoUTurnSampler.this.newTree(this.positionBackward, this.momentumBackward,
-            isNegative, this.height);
+            this.gradientBackward, isNegative, this.height);
         this.momentumBackward = subTree.momentumBackward;
         this.positionBackward = subTree.positionBackward;
+        this.gradientBackward = subTree.gradientBackward;
       } else {
         //else going forward in time
         //build a subtree of the same height
         //grow the subtree from the most forward state
         //replace all the forward member variables in the main tree
         subTree = NoUTurnSampler.this.newTree(this.positionForward, this.momentumForward,
-            isNegative, this.height);
+            this.gradientForward, isNegative, this.height);
         this.momentumForward = subTree.momentumForward;
         this.positionForward = subTree.positionForward;
+        this.gradientForward = subTree.gradientForward;
       }
       //save the sub tree
-      this.subTree = subTree;
+      this.setSubTree(subTree);
     }
 
     /**METHOD: BLOOM
@@ -435,14 +822,24 @@ public class NoUTurnSampler extends HamiltonianMonteCarlo {
       boolean hasNoBackwardUTurn = false;
       boolean hasNoForwardUTurn = false;
 
-      //instantiate a column vector, difference in the position vectors
-      SimpleMatrix positionDifference = this.positionForward.minus(this.positionBackward);
+      //dot the difference in the position vectors with the forward and backward momentum
+      double [] positionForward = this.positionForward.getDDRM().getData();
+      double [] positionBackward = this.positionBackward.getDDRM().getData();
+      double [] momentumBackward = this.momentumBackward.getDDRM().getData();
+      double [] momentumForward = this.momentumForward.getDDRM().getData();
+      double backwardDot = 0;
+      double forwardDot = 0;
+      for (int i=0; i<positionForward.length; i++) {
+        double positionDifference = positionForward[i] - positionBackward[i];
+        backwardDot += positionDifference * momentumBackward[i];
+        forwardDot += positionDifference * momentumForward[i];
+      }
 
       //check for u turns using the forward and backward momentum
-      if (positionDifference.dot(this.momentumBackward) >= 0) {
+      if (backwardDot >= 0) {
         hasNoBackwardUTurn = true;
       }
-      if (positionDifference.dot(this.momentumForward) >= 0) {
+      if (forwardDot >= 0) {
         hasNoForwardUTurn = true;
       }
 
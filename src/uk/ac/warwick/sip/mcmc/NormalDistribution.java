@@ -18,7 +18,7 @@ package uk.ac.warwick.sip.mcmc;
 
 import java.lang.Math;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.dense.row.decomposition.TriangularSolver_DDRM;
 import org.ejml.simple.SimpleMatrix;
@@ -27,6 +27,10 @@ import org.ejml.simple.SimpleMatrix;
  * Evaluates the multivariate Normal distribution pdf (up to a constant).
  * The covariance is provided via the constructor.
  * Use the method getPdf to evaluate the pdf.
+ * The cholesky decomposition and the precision matrix are worked out once in the constructor.
+ * The potential is the quadratic form of the precision matrix, worked out without allocating
+ * memory, and the gradient multiplies by the precision matrix. No member variables are modified
+ * after construction so the same object can be used by chains running in parallel.
  *
  */
 public class NormalDistribution extends TargetDistribution{
@@ -35,6 +39,8 @@ public class NormalDistribution extends TargetDistribution{
   protected SimpleMatrix mean;
   //cholesky decomposition of the covariance matrix as a lower triangle matrix
   protected SimpleMatrix covarianceChol;
+  //inverse of the covariance matrix
+  protected SimpleMatrix precision;
 
   /**CONSTRUCTOR
    * Stores the covariance of the Normal random variable with mean 0
@@ -58,6 +64,11 @@ public class NormalDistribution extends TargetDistribution{
     super(nDim);
     this.mean = mean;
     this.covarianceChol = Global.cholesky(covariance);
+    //work out the precision matrix L^(T-1) * L^(-1) using the inverse of the cholesky
+    SimpleMatrix covarianceCholInverse = new SimpleMatrix(this.covarianceChol);
+    TriangularSolver_DDRM.invertLower(covarianceCholInverse.getDDRM().getData(), nDim);
+    this.precision = new SimpleMatrix(nDim, nDim);
+    CommonOps_DDRM.multInner(covarianceCholInverse.getDDRM(), this.precision.getDDRM());
   }
 
   /**IMPLEMENT: GET PDF
@@ -80,8 +91,7 @@ public class NormalDistribution extends TargetDistribution{
    */
   @Override
   public double getPotential(SimpleMatrix x) {
-    SimpleMatrix z = this.covarianceChol.solve(x.minus(this.mean));
-    return 0.5 * z.dot(z);
+    return this.getPotential(x.getDDRM().getData());
   }
 
   /**METHOD: GET D POTENTIAL
@@ -91,25 +101,110 @@ public class NormalDistribution extends TargetDistribution{
    */
   @Override
   public SimpleMatrix getDPotential(SimpleMatrix x) {
-    //copy the memory in this,covarianceChol to covarianceCholInverse
-    SimpleMatrix covarianceCholInverse = new SimpleMatrix(this.covarianceChol);
-    //inverse covarianceCholInverse
-    TriangularSolver_DDRM.invertLower(covarianceCholInverse.getDDRM().data, this.getNDim());
-    //do the operation L^(T-1) * L^(-1) * x
-    SimpleMatrix covariance = new SimpleMatrix(this.nDim, this.nDim);
-    CommonOps_DDRM.multInner(covarianceCholInverse.getDDRM(), covariance.getDDRM());
-    return covariance.mult(x.minus(this.mean));
+    SimpleMatrix dPotential = new SimpleMatrix(this.nDim, 1);
+    this.getDPotential(x, dPotential);
+    return dPotential;
+  }
+
+  /**METHOD: GET D POTENTIAL
+   * Evaluate the differential of -ln pdf in place, this is precision * (x - mean)
+   * @param x Where to evaluate the potential gradient, not modified
+   * @param dPotential Column vector, overwritten with the potential gradient at x
+   */
+  public void getDPotential(SimpleMatrix x, SimpleMatrix dPotential) {
+    this.getDPotential(x.getDDRM().getData(), dPotential.getDDRM().getData());
+  }
+
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * Evaluate the potential and its gradient at x in one call
+   * @param x Where to evaluate the potential and its gradient, not modified
+   * @param dPotential Column vector, overwritten with the potential gradient at x
+   * @return The evaluation of the potential at x + some constant
+   */
+  @Override
+  public double getPotentialAndDPotential(SimpleMatrix x, SimpleMatrix dPotential) {
+    return this.getPotentialAndDPotential(x.getDDRM().getData(), dPotential.getDDRM().getData());
+  }
+
+  /**OVERRIDE: GET PDF
+   * See ArrayTarget.getPdf
+   */
+  @Override
+  public double getPdf(double [] x) {
+    return Math.exp(-this.getPotential(x));
+  }
+
+  /**OVERRIDE: GET POTENTIAL
+   * See ArrayTarget.getPotential
+   * The potential is 0.5 * (x - mean)^T * precision * (x - mean), the differences are worked out
+   * on the fly and only the lower triangle of the symmetric precision is read, so no memory is
+   * allocated
+   */
+  @Override
+  public double getPotential(double [] x) {
+    double [] meanArray = this.mean.getDDRM().getData();
+    double [] precision = this.precision.getDDRM().getData();
+    double potential = 0.0;
+    for (int i=0; i<this.nDim; i++) {
+      double differenceI = x[i] - meanArray[i];
+      int offset = i*this.nDim;
+      //off diagonal terms appear twice
+      double sum = 0.0;
+      for (int j=0; j<i; j++) {
+        sum += precision[offset+j] * (x[j] - meanArray[j]);
+      }
+      potential += differenceI * (2.0 * sum + precision[offset+i] * differenceI);
+    }
+    return 0.5 * potential;
+  }
+
+  /**OVERRIDE: GET D POTENTIAL
+   * See ArrayTarget.getDPotential, the gradient is precision * (x - mean)
+   */
+  @Override
+  public void getDPotential(double [] x, double [] dPotential) {
+    double [] meanArray = this.mean.getDDRM().getData();
+    double [] precision = this.precision.getDDRM().getData();
+    for (int i=0; i<this.nDim; i++) {
+      double sum = 0.0;
+      int offset = i*this.nDim;
+      for (int j=0; j<this.nDim; j++) {
+        sum += precision[offset+j] * (x[j] - meanArray[j]);
+      }
+      dPotential[i] = sum;
+    }
+  }
+
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * See ArrayTarget.getPotentialAndDPotential
+   * z = L^(-1) * (x - mean) is shared, the potential is 0.5 * z^T * z and the gradient is
+   * L^(T-1) * z, both are worked out in place using forward and back substitution
+   */
+  @Override
+  public double getPotentialAndDPotential(double [] x, double [] dPotential) {
+    double [] z = dPotential;
+    double [] meanArray = this.mean.getDDRM().getData();
+    for (int i=0; i<this.nDim; i++) {
+      z[i] = x[i] - meanArray[i];
+    }
+    double [] covarianceChol = this.covarianceChol.getDDRM().getData();
+    TriangularSolver_DDRM.solveL(covarianceChol, z, this.nDim);
+    double potential = 0.0;
+    for (int i=0; i<this.nDim; i++) {
+      potential += z[i] * z[i];
+    }
+    TriangularSolver_DDRM.solveTranL(covarianceChol, z, this.nDim);
+    return 0.5 * potential;
   }
 
   /**METHOD: SAMPLE
    * Sample a Gaussian distribution with a mean and covariance
+   * @param rng Random number generator
    * @return vector, sample from Gaussian distribution
    */
-  public SimpleMatrix sample(MersenneTwister rng) {
+  public SimpleMatrix sample(RandomGenerator rng) {
     double [] xArray = new double[this.nDim];
-    for (int i=0; i<this.nDim; i++){
-      xArray[i] = rng.nextGaussian();
-    }
+    ZigguratGaussian.nextGaussian(rng, xArray);
     SimpleMatrix x = new SimpleMatrix(this.nDim, 1, true, xArray);
     return this.covarianceChol.mult(x).plus(this.mean);
   }
@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**CLASS: PHILOX 4X32
+ * Philox4x32-10 counter based random number generator, see Salmon et al. (2011) Parallel random
+ * numbers: as easy as 1, 2, 3
+ * The random numbers are a bijection, 10 rounds of multiplications and xors, of a 128 bit counter
+ * keyed by a 64 bit seed. Each evaluation gives 4 ints
+ *
+ * The counter is split into a 64 bit stream index and a 64 bit block index. Streams with
+ * different indices never overlap, each stream is of length 2^64 blocks, ie 2^66 ints
+ * The stream of a chain can be chosen directly using the constructor, eg the index of the chain,
+ * without generating or jumping through any other stream
+ */
+public class Philox4x32 extends AbstractSplittableRandomGenerator {
+
+  //multipliers and key increments (Weyl sequence) of each round
+  static private final long M0 = 0xD2511F53L;
+  static private final long M1 = 0xCD9E8D57L;
+  static private final int W0 = 0x9E3779B9;
+  static private final int W1 = 0xBB67AE85;
+  static private final int N_ROUND = 10;
+
+  protected int key0; //lower 32 bits of the seed
+  protected int key1; //upper 32 bits of the seed
+  protected long stream; //upper 64 bits of the counter
+  protected long block; //lower 64 bits of the counter, incremented for each evaluation
+  protected int [] buffer = new int[4]; //ints of the last evaluation
+  protected int bufferIndex = 4; //index of the next int in the buffer, 4 if all used
+
+  /**CONSTRUCTOR
+   * Use stream 0
+   * @param seed Seed for the generator, used as the key
+   */
+  public Philox4x32(long seed) {
+    this(seed, 0);
+  }
+
+  /**CONSTRUCTOR
+   * @param seed Seed for the generator, used as the key
+   * @param stream Index of the stream
+   */
+  public Philox4x32(long seed, long stream) {
+    this.setSeed(seed);
+    this.stream = stream;
+  }
+
+  /**CONSTRUCTOR
+   * Copy the state of another generator
+   * @param rng Generator to copy
+   */
+  public Philox4x32(Philox4x32 rng) {
+    this.key0 = rng.key0;
+    this.key1 = rng.key1;
+    this.stream = rng.stream;
+    this.block = rng.block;
+    this.buffer = rng.buffer.clone();
+    this.bufferIndex = rng.bufferIndex;
+  }
+
+  /**IMPLEMENTED: SET SEED
+   * Set the key using the seed and go to the start of stream 0
+   */
+  @Override
+  public void setSeed(long seed) {
+    this.key0 = (int) seed;
+    this.key1 = (int) (seed >>> 32);
+    this.stream = 0;
+    this.block = 0;
+    this.bufferIndex = 4;
+    this.clearGaussian();
+  }
+
+  /**OVERRIDE: NEXT INT
+   */
+  @Override
+  public int nextInt() {
+    if (this.bufferIndex == 4) {
+      this.evaluate();
+    }
+    return this.buffer[this.bufferIndex++];
+  }
+
+  /**IMPLEMENTED: NEXT LONG
+   */
+  @Override
+  public long nextLong() {
+    long upper = ((long) this.nextInt()) << 32;
+    return upper | (this.nextInt() & 0xffffffffL);
+  }
+
+  /**IMPLEMENTED: SPLIT
+   * The returned generator continues this stream, this generator goes to the start of the next
+   * stream
+   */
+  @Override
+  public Philox4x32 split() {
+    Philox4x32 rng = new Philox4x32(this);
+    this.stream++;
+    this.block = 0;
+    this.bufferIndex = 4;
+    this.clearGaussian();
+    return rng;
+  }
+
+  /**METHOD: EVALUATE
+   * Fill the buffer with the evaluation at the current counter, then increment the block
+   */
+  protected void evaluate() {
+    int c0 = (int) this.block;
+    int c1 = (int) (this.block >>> 32);
+    int c2 = (int) this.stream;
+    int c3 = (int) (this.stream >>> 32);
+    int k0 = this.key0;
+    int k1 = this.key1;
+    for (int i=0; i<N_ROUND; i++) {
+      if (i > 0) {
+        k0 += W0;
+        k1 += W1;
+      }
+      long product0 = M0 * (c0 & 0xffffffffL);
+      long product1 = M1 * (c2 & 0xffffffffL);
+      c0 = ((int) (product1 >>> 32)) ^ c1 ^ k0;
+      c1 = (int) product1;
+      c2 = ((int) (product0 >>> 32)) ^ c3 ^ k1;
+      c3 = (int) product0;
+    }
+    this.buffer[0] = c0;
+    this.buffer[1] = c1;
+    this.buffer[2] = c2;
+    this.buffer[3] = c3;
+    this.bufferIndex = 0;
+    this.block++;
+  }
+
+}
@@ -16,7 +16,7 @@
 
 package uk.ac.warwick.sip.mcmc;
 
-import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.simple.SimpleMatrix;
 
@@ -39,7 +39,7 @@ public class RandomWalkMetropolisHastings extends Mcmc{
    * @param rng Random number generator all the random numbers
    */
   public RandomWalkMetropolisHastings(TargetDistribution target, int chainLength,
-      SimpleMatrix proposalCovariance, MersenneTwister rng){
+      SimpleMatrix proposalCovariance, RandomGenerator rng){
     //assign member variables
     super(target, chainLength, rng);
     this.proposalCovarianceChol = Global.cholesky(proposalCovariance);
@@ -78,18 +78,21 @@ public class RandomWalkMetropolisHastings extends Mcmc{
 
     //instantiate vector of N(0,1) using rng
     SimpleMatrix z = new SimpleMatrix(this.getNDim(), 1);
-    for (int i=0; i<this.getNDim(); i++) {
-      z.set(i, this.rng.nextGaussian());
-    }
+    ZigguratGaussian.nextGaussian(this.rng, z.getDDRM().getData());
 
     //transform z using proposalCovarianceChol and x, assign it to y, y is a proposal
     SimpleMatrix y = this.proposalCovarianceChol.mult(z);
     CommonOps_DDRM.addEquals(y.getDDRM(), x.getDDRM());
 
-    //declare variable for the acceptance probability, work it out using the ratio of target pdf
-    //if it larger than one, then an acceptance step will always be taken
-    double acceptProb = (this.target.getPdf(y)) / (this.target.getPdf(x));
-    this.acceptStep(acceptProb, x, y); //x can be modified here
+    //work out the log acceptance probability using the ratio of target pdf, this is the
+    //difference in potential, the potential at x is cached from when it was accepted
+    //if it larger than zero, then an acceptance step will always be taken
+    this.cacheCurrentState(x);
+    double potentialProposal = this.target.getPotential(y.getDDRM().getData());
+    this.logAcceptStep(this.currentPotential - potentialProposal, x, y); //x can be modified here
+    if (this.isAccepted) {
+      this.setCurrentState(x, potentialProposal);
+    }
   }
 
   /**METHOD: SET PROPOSAL COVARIANCE
@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**INTERFACE: SPLITTABLE RANDOM GENERATOR
+ * Random number generator which can be split into streams which do not overlap, eg one stream for
+ * each chain or worker thread
+ * The streams split from the same generator are disjoint, provided each stream uses fewer random
+ * numbers than the length of a stream, see the implementations for the lengths
+ *
+ * Implementations:
+ *   -Xoshiro256StarStar: small state, splits by jumping ahead 2^128 steps
+ *   -Philox4x32: counter based, splits by moving to the next stream of the counter
+ *
+ * MersenneTwister does not implement this interface but can still be given to the samplers as a
+ * RandomGenerator, eg to reproduce chains from a given seed
+ */
+public interface SplittableRandomGenerator extends RandomGenerator {
+
+  /**METHOD: SPLIT
+   * Return a new generator which continues this generator's stream, this generator is then moved
+   * to a stream which does not overlap with the returned stream or any previously returned stream
+   * Streams should be split from one generator only, a stream split from a returned generator may
+   * overlap with a stream split from this generator
+   * @return Generator for a stream disjoint from this generator and previously split streams
+   */
+  public SplittableRandomGenerator split();
+
+}
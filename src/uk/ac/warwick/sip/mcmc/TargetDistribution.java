@@ -16,12 +16,16 @@
 
 package uk.ac.warwick.sip.mcmc;
 
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.simple.SimpleMatrix;
 
 /**CLASS: TARGET DISTRIBUTION
  * Evaluates the target distribution pdf
+ * The double [] methods of the interface ArrayTarget are used by the samplers. By default, they
+ * wrap the double [] as column vectors and call the SimpleMatrix methods. Subclasses may override
+ * them to evaluate the target directly on the double [] without instantiating any objects
  */
-public abstract class TargetDistribution {
+public abstract class TargetDistribution implements ArrayTarget {
 
   protected int nDim; //number of dimensions of the target distribution
 
@@ -56,9 +60,65 @@ public abstract class TargetDistribution {
    */
   public abstract SimpleMatrix getDPotential(SimpleMatrix x);
 
-  /**GET N DIM
+  /**METHOD: GET POTENTIAL AND D POTENTIAL
+   * Evaluate the potential and its gradient at x in one call, used by the gradient based samplers
+   * By default, this calls getDPotential and getPotential. Subclasses may override this when work
+   * can be shared between the potential and its gradient
+   * @param x Where to evaluate the potential and its gradient, not modified
+   * @param dPotential Column vector, overwritten with the potential gradient at x
+   * @return The evaluation of the potential at x + some constant
+   */
+  public double getPotentialAndDPotential(SimpleMatrix x, SimpleMatrix dPotential) {
+    dPotential.set(this.getDPotential(x));
+    return this.getPotential(x);
+  }
+
+  /**IMPLEMENTED: GET PDF
+   * See ArrayTarget.getPdf, calls getPdf(SimpleMatrix) by default
+   */
+  @Override
+  public double getPdf(double [] x) {
+    return this.getPdf(this.wrap(x));
+  }
+
+  /**IMPLEMENTED: GET POTENTIAL
+   * See ArrayTarget.getPotential, calls getPotential(SimpleMatrix) by default
+   */
+  @Override
+  public double getPotential(double [] x) {
+    return this.getPotential(this.wrap(x));
+  }
+
+  /**IMPLEMENTED: GET D POTENTIAL
+   * See ArrayTarget.getDPotential, calls getDPotential(SimpleMatrix) by default
+   */
+  @Override
+  public void getDPotential(double [] x, double [] dPotential) {
+    System.arraycopy(this.getDPotential(this.wrap(x)).getDDRM().getData(), 0, dPotential, 0,
+        this.nDim);
+  }
+
+  /**IMPLEMENTED: GET POTENTIAL AND D POTENTIAL
+   * See ArrayTarget.getPotentialAndDPotential, calls getPotentialAndDPotential(SimpleMatrix,
+   * SimpleMatrix) by default
+   */
+  @Override
+  public double getPotentialAndDPotential(double [] x, double [] dPotential) {
+    return this.getPotentialAndDPotential(this.wrap(x), this.wrap(dPotential));
+  }
+
+  /**METHOD: WRAP
+   * @param x double [] of length nDim
+   * @return Column vector which uses x as its data, modifying one modifies the other
+   */
+  protected SimpleMatrix wrap(double [] x) {
+    return SimpleMatrix.wrap(DMatrixRMaj.wrap(this.nDim, 1, x));
+  }
+
+  /**IMPLEMENTED: GET N DIM
    * @return The number of dimensions this target has
    */
+  @Override
   public int getNDim() {
     return this.nDim;
   }
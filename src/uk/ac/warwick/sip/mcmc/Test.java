@@ -16,10 +16,19 @@
 
 package uk.ac.warwick.sip.mcmc;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.random.MersenneTwister;
-import org.ejml.dense.row.CommonOps_DDRM;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.stat.inference.OneWayAnova;
 import org.ejml.simple.SimpleMatrix;
 
 import uk.ac.warwick.sip.mcmc.NoUTurnSampler.Tree;
@@ -36,6 +45,7 @@ public class Test {
       testChain(10, 1000, 100, 1964976895, "Test 1.2");
       testChain(10, 1000, 999, 1964976895, "Test 1.3");
       testChain(100, 1000, 999, 2021180607, "Test 1.4");
+      testStatisticsPolicy(10, 1000, -1764339127, "Test 1.5");
       testCholesky(20, -1470540617, "Test 2");
       testAcceptStep(10, 100, 1963517091, "Test 3");
       testCopyExtendConstructor(32, 100, 20, -62811111, "Test 4.1");
@@ -46,6 +56,8 @@ public class Test {
       testThin(32, 100, 10, 1289694793, "Test 5.2");
       testThin(32, 1000, 10, 1289694793, "Test 5.3");
       testThin(32, 1000, 50, 1289694793, "Test 5.4");
+      testChainSink(32, 1000, -1059470127, "Test 5.5");
+      testChainStore(32, 1000, 1370449526, "Test 5.6");
       testAdaptive(32, 1000, -1538086464, "Test 6.1");
       testAdaptive(32, 1000, -1538086464, "Test 6.2");
       testAdaptive(32, 1000, -1538086464, "Test 6.3");
@@ -53,12 +65,40 @@ public class Test {
       testHmc(32, 1742863098, "Test 7.2");
       testHmc(64, 1742863098, "Test 7.3");
       testHmc(128, 1742863098, "Test 7.4");
+      testRecordingPolicy(16, 100, -409874335, "Test 7.5");
       testTree(32, 1, -1602079425, "Test 8.1");
       testTree(32, 2, 1775435783, "Test 8.2");
       testTree(32, 3, 568478633, "Test 8.3");
       testTree(32, 4, -1728550799, "Test 8.4");
       testTree(32, 5, -951342906, "Test 8.5");
       testTree(32, 6, 201354591, "Test 8.6");
+      testIterativeTree(16, 100, -851316042, "Test 8.7");
+      testIterativeTree(64, 100, -851316042, "Test 8.8");
+      testUnboundedTree(2, 20, 1E-3, 1458221339, "Test 8.9");
+      testPotentialAndDPotential(8, 1294051187, "Test 9.1");
+      testPotentialAndDPotential(64, 1294051187, "Test 9.2");
+      testArrayTarget(8, 100, -1866460227, "Test 9.3");
+      testArrayTarget(32, 100, -1866460227, "Test 9.4");
+      testCachedPotential(8, 1000, 1720375393, "Test 9.5");
+      testMultiChainRunner(8, 1000, 4, -1173962385, "Test 10.1");
+      testMultiChainRunner(32, 100, 8, -1173962385, "Test 10.2");
+      testRandomGenerator(100000, 1330571546L, "Test 11.1");
+      testZigguratGaussian(1000000, 7, -532099113, "Test 11.2");
+      testCholeskyRankOneUpdate(8, 1000, 1931250877, "Test 12.1");
+      testCholeskyRankOneUpdate(64, 1000, 1931250877, "Test 12.2");
+      testAdaptationSchedule(8, 1000, -2007460941, "Test 12.3");
+      testLowRankAdaptive(32, 50000, 1000, 836352370, "Test 12.4");
+      testLowRankAdaptive(64, 50000, 1000, 836352370, "Test 12.5");
+      testKineticMetric(8, 100000, 1149612025, "Test 13.1");
+      testKineticMetric(32, 100000, 1149612025, "Test 13.2");
+      testWindowedWarmUp(10, 1000, 1000, -1463218727, "Test 13.3");
+      testGelmanRubinF(3, 2000, 4, 500, 1613826101, "Test 14.1");
+      testMultiChainDiagnostics(20, 2000, 4, 0.5, -797561244, "Test 14.2");
+      testMultiChainDiagnostics(500, 1001, 8, 0.5, -797561244, "Test 14.3");
+      testBatchMeans(10, 100000, 0.5, 472090623, "Test 15.1");
+      testPosteriorMoments(3, 1000, 100, 1716213470, "Test 15.2");
+      testPosteriorMoments(50, 20000, 1234, 1716213470, "Test 15.3");
+      testBlockedChainStore(5, 1000, 64, 200, 1307457310, "Test 16.1");
       printWriter.flush();
       printWriter.close();
     } catch (Exception expection) {
@@ -71,16 +111,33 @@ public class Test {
    * @param iChain Integer pointing to which mcmc to instantiate
    * @param nDim Number of dimensions
    * @param chainLength Length of the chain
-   * @param rng MersenneTwister to give to the mcmc object
+   * @param rng Random number generator to give to the mcmc object
    * @return Instantiate chain
    */
   static public Mcmc getChain(int iChain, int nDim, int chainLength, MersenneTwister rng) {
     //simple Normal target with identity covariance
     SimpleMatrix targetCovariance = SimpleMatrix.identity(nDim);
     TargetDistribution target = new NormalDistribution(nDim, targetCovariance);
+    return getChain(iChain, target, chainLength, rng);
+  }
+
+  /**FUNCTION: GET CHAIN
+   * Return one implementation of a MCMC, the parameters are tuned for a standard Normal target
+   * @param iChain Integer pointing to which mcmc to instantiate
+   * @param target Target distribution
+   * @param chainLength Length of the chain
+   * @param rng Random number generator to give to the mcmc object
+   * @return Instantiate chain
+   */
+  static public Mcmc getChain(int iChain, TargetDistribution target, int chainLength,
+      RandomGenerator rng) {
+    int nDim = target.getNDim();
 
     //rwmh parameters
-    SimpleMatrix proposalCovariance = targetCovariance.scale( Math.pow(2.38,2) / ((double)nDim) );
+    SimpleMatrix proposalCovariance = SimpleMatrix.identity(nDim).scale(
+        Math.pow(2.38,2) / ((double)nDim) );
+    double [] proposalVariance = new double[nDim];
+    Arrays.fill(proposalVariance, Math.pow(2.38,2) / ((double)nDim));
 
     //hmc parameters
     SimpleMatrix massMatrix = SimpleMatrix.identity(nDim);
@@ -110,6 +167,10 @@ public class Test {
       case 5:
         chain = new DualAveragingNuts(target, chainLength, massMatrix, nAdaptive, rng);
         break;
+      case 6:
+        chain = new LowRankAdaptiveRwmh(target, chainLength, proposalVariance,
+            Math.min(2, nDim), rng);
+        break;
       default:
         break;
     }
@@ -144,6 +205,9 @@ public class Test {
       case 5:
         chain = new DualAveragingNuts((DualAveragingNuts)chain, nMoreSteps);
         break;
+      case 6:
+        chain = new LowRankAdaptiveRwmh((LowRankAdaptiveRwmh)chain, nMoreSteps);
+        break;
       default:
         break;
     }
@@ -186,8 +250,7 @@ public class Test {
       chain.setInitialValue(initial);
 
       //instantiate column vector for the current value of the chain
-      SimpleMatrix x = chain.chainArray.extractVector(true, 0);
-      CommonOps_DDRM.transpose(x.getDDRM());
+      SimpleMatrix x = new SimpleMatrix(chain.currentPosition);
 
       //run the chain for nStep
       for (int i=0; i<nStep; i++) {
@@ -244,6 +307,7 @@ public class Test {
       squaredErrorArray[0] = squaredError.elementSum();
 
       //work out the sample covariance, get and save the squared error
+      chain.updateChainCovariance();
       SimpleMatrix sampleCovariance = getSampleCovariance(designMatrix, sampleMean);
       squaredError = (chain.chainCovariance.minus(sampleCovariance)).elementPower(2);
       squaredErrorArray[1] = squaredError.elementSum();
@@ -259,6 +323,75 @@ public class Test {
     }
   }
 
+  /**FUNCTION: TEST STATISTICS POLICY
+   * Test if the chain mean with the statistics policy MEAN is the same as with COVARIANCE
+   * Test if the chain covariance is not available with the statistics policy MEAN or NONE
+   * Test if the adaptive rwmh family rejects the policies which do not update the statistics they
+   * need
+   * @param nDim Number of dimensions
+   * @param chainLength Length of chain
+   * @param seed Seed for rng
+   * @param name Name of the test
+   */
+  static void testStatisticsPolicy(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //run the same chain with each statistics policy
+    Mcmc.StatisticsPolicy [] policyArray = Mcmc.StatisticsPolicy.values();
+    Mcmc [] chainArray = new Mcmc[policyArray.length];
+    for (int iPolicy=0; iPolicy<policyArray.length; iPolicy++) {
+      chainArray[iPolicy] = getChain(0, nDim, chainLength, new MersenneTwister(seed));
+      chainArray[iPolicy].setStatisticsPolicy(policyArray[iPolicy]);
+      chainArray[iPolicy].run();
+    }
+    Mcmc covarianceChain = chainArray[Mcmc.StatisticsPolicy.COVARIANCE.ordinal()];
+    boolean isMeanSame = Arrays.equals(
+        chainArray[Mcmc.StatisticsPolicy.MEAN.ordinal()].getChainMean(),
+        covarianceChain.getChainMean());
+
+    //only the policy COVARIANCE gives the chain covariance
+    boolean isGuarded = covarianceChain.getChainCovariance() != null;
+    for (int iPolicy=0; iPolicy<policyArray.length; iPolicy++) {
+      if (policyArray[iPolicy] != Mcmc.StatisticsPolicy.COVARIANCE) {
+        try {
+          chainArray[iPolicy].getChainCovariance();
+          isGuarded = false;
+        } catch (IllegalStateException exception) {
+          //expected
+        }
+      }
+    }
+
+    //AdaptiveRwmh and MixtureAdaptiveRwmh need COVARIANCE, LowRankAdaptiveRwmh needs MEAN
+    boolean isRejected = true;
+    for (int iChain=1; iChain<3; iChain++) {
+      Mcmc chain = getChain(iChain, nDim, chainLength, new MersenneTwister(seed));
+      chain.setStatisticsPolicy(Mcmc.StatisticsPolicy.COVARIANCE);
+      for (int iPolicy=0; iPolicy<policyArray.length; iPolicy++) {
+        if (policyArray[iPolicy] != Mcmc.StatisticsPolicy.COVARIANCE) {
+          try {
+            chain.setStatisticsPolicy(policyArray[iPolicy]);
+            isRejected = false;
+          } catch (IllegalArgumentException exception) {
+            //expected
+          }
+        }
+      }
+    }
+    try {
+      getChain(6, nDim, chainLength, new MersenneTwister(seed))
+          .setStatisticsPolicy(Mcmc.StatisticsPolicy.NONE);
+      isRejected = false;
+    } catch (IllegalArgumentException exception) {
+      //expected
+    }
+
+    printWriter.println("pass isMeanSame test = "+isMeanSame);
+    printWriter.println("pass isGuarded test = "+isGuarded);
+    printWriter.println("pass isRejected test = "+isRejected);
+  }
+
   /**FUNCTION: GET SAMPLE MEAN
    * Returns the unbiased estimator of the mean
    * @param designMatrix Collection of data, rows represent each data
@@ -562,6 +695,137 @@ public class Test {
     }
   }
 
+  /**FUNCTION: TEST CHAIN SINK
+   * Test streaming the samples to a ChainSink
+   * Checks if the streamed samples are the same as the samples saved in chainArray
+   * Checks if the running statistics are the same when streaming
+   * @param nDim Number of dimensions
+   * @param chainLength Length of chain
+   * @param seed Seed for rng
+   * @param name Name of the test
+   */
+  static void testChainSink(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    for (int iChain=0; iChain<6; iChain++) {
+      //boolean for the tests
+      boolean isSame = true;
+      boolean isMean = true;
+
+      //run a chain which saves the samples in chainArray
+      MersenneTwister rng = new MersenneTwister(seed);
+      Mcmc chain = getChain(iChain, nDim, chainLength, rng);
+      chain.run();
+
+      //run the same chain which streams the samples, start with a small capacity to test growing
+      rng = new MersenneTwister(seed);
+      Mcmc chainStream = getChain(iChain, nDim, chainLength, rng);
+      InMemoryChainSink chainSink = new InMemoryChainSink(nDim, 1);
+      chainStream.setChainSink(chainSink);
+      chainStream.run();
+
+      if (chainSink.getNSample() != chainLength) {
+        isSame = false;
+      } else if (!Arrays.equals(chain.getChain(), chainSink.getChain())) {
+        isSame = false;
+      }
+      if (!Arrays.equals(chain.getChainMean(), chainStream.getChainMean())) {
+        isMean = false;
+      }
+
+      printWriter.println(chain.getClass().getName());
+      printWriter.println("pass isSame test = "+isSame);
+      printWriter.println("pass chainMean test = "+isMean);
+    }
+  }
+
+  /**FUNCTION: TEST CHAIN STORE
+   * Test keeping the samples in a MappedChainSink, using direct buffers and a memory-mapped file
+   * Checks if the samples read back using getChain are the same as the samples saved in chainArray
+   * Checks if a chain kept in a MappedChainSink can be extended using the copy and extend
+   * constructor, the capacity of the MappedChainSink is then increased
+   * @param nDim Number of dimensions
+   * @param chainLength Length of chain
+   * @param seed Seed for rng
+   * @param name Name of the test
+   * @throws IOException If the temporary file cannot be created
+   */
+  static void testChainStore(int nDim, int chainLength, int seed, String name)
+      throws IOException {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    for (int iChain=0; iChain<6; iChain++) {
+      //boolean for the tests
+      boolean isDirectSame = true;
+      boolean isFileSame = true;
+
+      //run a chain which saves the samples in chainArray
+      MersenneTwister rng = new MersenneTwister(seed);
+      Mcmc chain = getChain(iChain, nDim, chainLength, rng);
+      chain.run();
+
+      //run the same chain which keeps the samples in direct buffers
+      rng = new MersenneTwister(seed);
+      Mcmc chainDirect = getChain(iChain, nDim, chainLength, rng);
+      MappedChainSink directStore = new MappedChainSink(nDim, chainLength);
+      chainDirect.setChainStore(directStore);
+      chainDirect.run();
+
+      //run the same chain which keeps the samples in a memory-mapped file
+      rng = new MersenneTwister(seed);
+      Mcmc chainFile = getChain(iChain, nDim, chainLength, rng);
+      File file = File.createTempFile("chain", ".bin");
+      file.deleteOnExit();
+      MappedChainSink fileStore = new MappedChainSink(file, nDim, chainLength);
+      chainFile.setChainStore(fileStore);
+      chainFile.run();
+
+      if (!Arrays.equals(chain.getChain(), chainDirect.getChain())) {
+        isDirectSame = false;
+      } else if (!Arrays.equals(chain.getChain(nDim-1), chainDirect.getChain(nDim-1))) {
+        isDirectSame = false;
+      } else if (!Arrays.equals(chain.getEndOfChain(), directStore.getEndOfChain())) {
+        isDirectSame = false;
+      }
+      if (!Arrays.equals(chain.getChain(), chainFile.getChain())) {
+        isFileSame = false;
+      } else if (!Arrays.equals(chain.getChain(0), chainFile.getChain(0))) {
+        isFileSame = false;
+      }
+      fileStore.close();
+
+      //run half of the same chain, in direct buffers and in a file, then extend it
+      boolean isExtendedSame = true;
+      for (int iStore=0; iStore<2; iStore++) {
+        rng = new MersenneTwister(seed);
+        Mcmc chainExtended = getChain(iChain, nDim, chainLength/2, rng);
+        MappedChainSink extendedStore;
+        if (iStore == 0) {
+          extendedStore = new MappedChainSink(nDim, chainLength/2);
+        } else {
+          file = File.createTempFile("chain", ".bin");
+          file.deleteOnExit();
+          extendedStore = new MappedChainSink(file, nDim, chainLength/2);
+        }
+        chainExtended.setChainStore(extendedStore);
+        chainExtended.run();
+        chainExtended = copyConstructor(iChain, chainExtended, chainLength - chainLength/2);
+        chainExtended.run();
+        if (!Arrays.equals(chain.getChain(), chainExtended.getChain())) {
+          isExtendedSame = false;
+        }
+        extendedStore.close();
+      }
+
+      printWriter.println(chain.getClass().getName());
+      printWriter.println("pass isDirectSame test = "+isDirectSame);
+      printWriter.println("pass isFileSame test = "+isFileSame);
+      printWriter.println("pass isExtendedSame test = "+isExtendedSame);
+    }
+  }
+
   /**FUNCTION: TEST ADAPTIVE
    * Tests for AdaptiveRwmh and MixtureAdaptiveRwmh
    * Tests if the chain only adapts after nStepTillAdaptive steps
@@ -595,8 +859,7 @@ public class Test {
       SimpleMatrix proposalCovarianceChol = new SimpleMatrix(chain.proposalCovarianceChol);
 
       //instantiate column vector for the current value of the chain
-      SimpleMatrix x = chain.chainArray.extractVector(true, 0);
-      CommonOps_DDRM.transpose(x.getDDRM());
+      SimpleMatrix x = new SimpleMatrix(chain.currentPosition);
 
       //run the chain for nStep
       for (int i=0; i<(chainLength-1); i++) {
@@ -664,8 +927,7 @@ public class Test {
       HamiltonianMonteCarlo chain = (HamiltonianMonteCarlo) getChain(iMcmc, nDim, 100, rng);
 
       //instantiate column vector for the current value of the chain
-      SimpleMatrix x = chain.chainArray.extractVector(true, 0);
-      CommonOps_DDRM.transpose(x.getDDRM());
+      SimpleMatrix x = new SimpleMatrix(chain.currentPosition);
 
       //instantiate random position and random momentum
       SimpleMatrix position = getRandomVector(nDim, rng);
@@ -725,6 +987,1489 @@ public class Test {
     }
   }
 
+  /**FUNCTION: TEST RECORDING POLICY
+   * Test the recording policies of the leap frog positions for HMC and NUTS
+   * Checks the samples are the same whatever the recording policy
+   * Checks nothing is recorded with the policy NONE
+   * Checks the policy BOUNDED keeps the end of the trajectory recorded by the policy FULL (HMC)
+   * or at most capacity positions (NUTS)
+   * @param nDim Number of dimensions
+   * @param chainLength Length of chain
+   * @param seed Seed for rng
+   * @param name Name of the test
+   */
+  static void testRecordingPolicy(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    int capacity = 5;
+    for (int iMcmc=3; iMcmc<6; iMcmc++) {
+      //boolean for the tests
+      boolean isSame = true;
+      boolean isNone = true;
+      boolean isBounded = true;
+
+      //run the same chain with each recording policy
+      HamiltonianMonteCarlo [] chainArray = new HamiltonianMonteCarlo[3];
+      Trajectory.RecordingPolicy [] policyArray = Trajectory.RecordingPolicy.values();
+      for (int iPolicy=0; iPolicy<3; iPolicy++) {
+        MersenneTwister rng = new MersenneTwister(seed);
+        chainArray[iPolicy] = (HamiltonianMonteCarlo) getChain(iMcmc, nDim, chainLength, rng);
+        chainArray[iPolicy].setRecordingPolicy(policyArray[iPolicy], capacity);
+      }
+
+      for (int i=0; i<(chainLength-1); i++) {
+        for (int iPolicy=0; iPolicy<3; iPolicy++) {
+          chainArray[iPolicy].step();
+        }
+        Trajectory none = chainArray[0].leapFrogPositions;
+        Trajectory full = chainArray[1].leapFrogPositions;
+        Trajectory bounded = chainArray[2].leapFrogPositions;
+        if (none.size() != 0) {
+          isNone = false;
+        }
+        if (bounded.size() != Math.min(full.size(), capacity)) {
+          isBounded = false;
+        } else if (iMcmc == 3) {
+          //HMC only appends, so the bounded trajectory is the end of the full trajectory
+          int offset = full.size() - bounded.size();
+          for (int j=0; j<bounded.size(); j++) {
+            if (!bounded.get(j).isIdentical(full.get(offset+j), 0)) {
+              isBounded = false;
+            }
+          }
+        }
+      }
+      for (int iPolicy=1; iPolicy<3; iPolicy++) {
+        if (!Arrays.equals(chainArray[0].getChain(), chainArray[iPolicy].getChain())) {
+          isSame = false;
+        }
+      }
+
+      printWriter.println(chainArray[0].getClass().getName());
+      printWriter.println("pass isSame test = "+isSame);
+      printWriter.println("pass isNone test = "+isNone);
+      printWriter.println("pass isBounded test = "+isBounded);
+    }
+  }
+
+  /**FUNCTION: TEST ITERATIVE TREE
+   * Test if building the tree iteratively gives the same chain as building it recursively, using
+   * the same seed. For the DualAveragingNuts, the leap frog step size should be the same too.
+   * Test if the number of leap frog positions is bounded by the maximum tree depth
+   * @param nDim Number of dimensions the target has
+   * @param chainLength The length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testIterativeTree(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    for (int iMcmc=4; iMcmc<6; iMcmc++) {
+      boolean isSame = true;
+      boolean isMaxTreeDepth = true;
+
+      //run the same chain recursively and iteratively
+      MersenneTwister rng = new MersenneTwister(seed);
+      NoUTurnSampler recursiveChain = (NoUTurnSampler) getChain(iMcmc, nDim, chainLength, rng);
+      rng = new MersenneTwister(seed);
+      NoUTurnSampler iterativeChain = (NoUTurnSampler) getChain(iMcmc, nDim, chainLength, rng);
+      iterativeChain.setIsIterativeTree(true);
+      recursiveChain.run();
+      iterativeChain.run();
+      if (!Arrays.equals(recursiveChain.getChain(), iterativeChain.getChain())) {
+        isSame = false;
+      }
+      if (!Arrays.equals(recursiveChain.getAcceptanceRate(),
+          iterativeChain.getAcceptanceRate())) {
+        isSame = false;
+      }
+      if (recursiveChain.sizeLeapFrog != iterativeChain.sizeLeapFrog) {
+        isSame = false;
+      }
+
+      //a tree of height maxTreeDepth has at most 2^maxTreeDepth + 1 positions
+      int maxTreeDepth = 2;
+      rng = new MersenneTwister(seed);
+      iterativeChain = (NoUTurnSampler) getChain(iMcmc, nDim, chainLength, rng);
+      iterativeChain.setIsIterativeTree(true);
+      iterativeChain.setMaxTreeDepth(maxTreeDepth);
+      iterativeChain.setRecordingPolicy(Trajectory.RecordingPolicy.FULL, 0);
+      for (int i=0; i<(chainLength-1); i++) {
+        iterativeChain.step();
+        if (iterativeChain.leapFrogPositions.size() > ((1 << maxTreeDepth) + 1)) {
+          isMaxTreeDepth = false;
+        }
+      }
+
+      printWriter.println(recursiveChain.getClass().getName());
+      printWriter.println("pass isSame test = "+isSame);
+      printWriter.println("pass isMaxTreeDepth test = "+isMaxTreeDepth);
+    }
+  }
+
+  /**FUNCTION: TEST UNBOUNDED TREE
+   * Test if the height of the tree is unbounded by default, as it was before the maximum tree
+   * depth was added, using a small leap frog step so that the trees grow taller than
+   * RECOMMENDED_MAX_TREE_DEPTH
+   * Test if building the tree iteratively still gives the same chain as building it recursively
+   * Test if limiting the height using setMaxTreeDepth changes the chain and bounds the number of
+   * leap frog positions
+   * @param nDim Number of dimensions the target has
+   * @param chainLength The length of the chain
+   * @param sizeLeapFrog Size of the leap frog step
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testUnboundedTree(int nDim, int chainLength, double sizeLeapFrog, int seed,
+      String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    TargetDistribution target = new NormalDistribution(nDim, SimpleMatrix.identity(nDim));
+    SimpleMatrix massMatrix = SimpleMatrix.identity(nDim);
+    int maxTreeDepth = NoUTurnSampler.RECOMMENDED_MAX_TREE_DEPTH;
+    int maxNPosition = (1 << maxTreeDepth) + 1;
+    NoUTurnSampler [] chainArray = new NoUTurnSampler[3];
+    boolean isDeep = false;
+    boolean isBounded = true;
+    for (int iChain=0; iChain<3; iChain++) {
+      //default recursive, default iterative, recursive with the maximum tree depth
+      chainArray[iChain] = new NoUTurnSampler(target, chainLength, massMatrix, sizeLeapFrog,
+          new MersenneTwister(seed));
+      chainArray[iChain].setIsIterativeTree(iChain == 1);
+      if (iChain == 2) {
+        chainArray[iChain].setMaxTreeDepth(maxTreeDepth);
+      }
+      chainArray[iChain].setRecordingPolicy(Trajectory.RecordingPolicy.FULL, 0);
+      for (int i=0; i<(chainLength-1); i++) {
+        chainArray[iChain].step();
+        int nPosition = chainArray[iChain].leapFrogPositions.size();
+        if (iChain == 0 && nPosition > maxNPosition) {
+          isDeep = true;
+        } else if (iChain == 2 && nPosition > maxNPosition) {
+          isBounded = false;
+        }
+      }
+    }
+    boolean isSame = Arrays.equals(chainArray[0].getChain(), chainArray[1].getChain());
+    boolean isCapped = isBounded
+        && !Arrays.equals(chainArray[0].getChain(), chainArray[2].getChain());
+
+    printWriter.println("pass isDeep test = "+isDeep);
+    printWriter.println("pass isSame test = "+isSame);
+    printWriter.println("pass isCapped test = "+isCapped);
+  }
+
+  /**FUNCTION: TEST POTENTIAL AND D POTENTIAL
+   * Test if the method getPotentialAndDPotential agrees with the methods getPotential and
+   * getDPotential, for the Normal and uniform distributions
+   * Test if getDPotential agrees with the finite difference of getPotential
+   * Test if the position is left unmodified
+   * @param nDim Number of dimensions the target has
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testPotentialAndDPotential(int nDim, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    int nTest = 10; // number of tests
+    MersenneTwister rng = new MersenneTwister(seed);
+    boolean isPotentialSame = true;
+    boolean isDPotentialSame = true;
+    boolean isNotModify = true;
+    boolean isGradient = true;
+    double h = 1E-5; //finite difference step
+    for (int iTest=0; iTest<nTest; iTest++) {
+      TargetDistribution [] targetArray = new TargetDistribution[2];
+      targetArray[0] = new NormalDistribution(nDim, getRandomVector(nDim, rng),
+          Global.getRandomCovariance(nDim, rng));
+      targetArray[1] = new UniformDistribution(nDim);
+      for (TargetDistribution target : targetArray) {
+        SimpleMatrix x = getRandomVector(nDim, rng);
+        SimpleMatrix xCopy = new SimpleMatrix(x);
+        SimpleMatrix dPotential = new SimpleMatrix(nDim, 1);
+        double potential = target.getPotentialAndDPotential(x, dPotential);
+        if (Math.abs(potential - target.getPotential(x)) > 1E-8 * (1.0 + Math.abs(potential))) {
+          isPotentialSame = false;
+        }
+        SimpleMatrix expectedDPotential = target.getDPotential(x);
+        if (dPotential.minus(expectedDPotential).normF()
+            > 1E-8 * (1.0 + expectedDPotential.normF())) {
+          isDPotentialSame = false;
+        }
+        if (!x.isIdentical(xCopy, 0)) {
+          isNotModify = false;
+        }
+        //central finite difference of the potential
+        SimpleMatrix finiteDifference = new SimpleMatrix(nDim, 1);
+        for (int iDim=0; iDim<nDim; iDim++) {
+          SimpleMatrix xForward = new SimpleMatrix(x);
+          SimpleMatrix xBackward = new SimpleMatrix(x);
+          xForward.set(iDim, x.get(iDim) + h);
+          xBackward.set(iDim, x.get(iDim) - h);
+          finiteDifference.set(iDim,
+              (target.getPotential(xForward) - target.getPotential(xBackward)) / (2*h));
+        }
+        if (finiteDifference.minus(expectedDPotential).normF()
+            > 1E-4 * (1.0 + expectedDPotential.normF())) {
+          isGradient = false;
+        }
+      }
+    }
+    printWriter.println("pass potential test = "+isPotentialSame);
+    printWriter.println("pass dPotential test = "+isDPotentialSame);
+    printWriter.println("pass gradient test = "+isGradient);
+    printWriter.println("pass modify test = "+isNotModify);
+  }
+
+  /**FUNCTION: TEST ARRAY TARGET
+   * Test if the double [] methods agree with the SimpleMatrix methods for: NormalDistribution,
+   * a TargetDistribution which only implements the SimpleMatrix methods and an
+   * ArrayTargetDistribution wrapping a NormalDistribution
+   * Test if the gradient based samplers give the same chain when the target is wrapped
+   * @param nDim Number of dimensions the target has
+   * @param chainLength The length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testArrayTarget(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    MersenneTwister rng = new MersenneTwister(seed);
+    final NormalDistribution normal = new NormalDistribution(nDim, getRandomVector(nDim, rng),
+        Global.getRandomCovariance(nDim, rng));
+    //only implements the SimpleMatrix methods, the double [] methods wrap
+    TargetDistribution matrixTarget = new TargetDistribution(nDim) {
+      @Override
+      public double getPdf(SimpleMatrix x) {
+        return normal.getPdf(x);
+      }
+      @Override
+      public double getPotential(SimpleMatrix x) {
+        return normal.getPotential(x);
+      }
+      @Override
+      public SimpleMatrix getDPotential(SimpleMatrix x) {
+        return normal.getDPotential(x);
+      }
+    };
+    TargetDistribution [] targetArray = new TargetDistribution[3];
+    targetArray[0] = normal;
+    targetArray[1] = matrixTarget;
+    targetArray[2] = new ArrayTargetDistribution(normal);
+
+    boolean isSame = true;
+    for (int iTest=0; iTest<10; iTest++) {
+      SimpleMatrix x = getRandomVector(nDim, rng);
+      double potential = normal.getPotential(x);
+      SimpleMatrix dPotential = normal.getDPotential(x);
+      for (TargetDistribution target : targetArray) {
+        double [] xArray = x.getDDRM().getData();
+        double [] dPotentialArray = new double[nDim];
+        double [] fusedDPotentialArray = new double[nDim];
+        target.getDPotential(xArray, dPotentialArray);
+        double fusedPotential = target.getPotentialAndDPotential(xArray, fusedDPotentialArray);
+        double tolerance = 1E-8 * (1.0 + Math.abs(potential));
+        if (Math.abs(target.getPotential(xArray) - potential) > tolerance) {
+          isSame = false;
+        }
+        if (Math.abs(fusedPotential - potential) > tolerance) {
+          isSame = false;
+        }
+        if (Math.abs(target.getPdf(xArray) - normal.getPdf(x)) > 1E-8) {
+          isSame = false;
+        }
+        tolerance = 1E-8 * (1.0 + dPotential.normF());
+        for (int iDim=0; iDim<nDim; iDim++) {
+          if (Math.abs(dPotentialArray[iDim] - dPotential.get(iDim)) > tolerance) {
+            isSame = false;
+          }
+          if (Math.abs(fusedDPotentialArray[iDim] - dPotential.get(iDim)) > tolerance) {
+            isSame = false;
+          }
+        }
+      }
+    }
+    printWriter.println("pass isSame test = "+isSame);
+
+    //the chain using the wrapped target should be the same
+    boolean isSameChain = true;
+    SimpleMatrix massMatrix = SimpleMatrix.identity(nDim);
+    Mcmc [] chainArray = new Mcmc[2];
+    for (int iTarget=0; iTarget<2; iTarget++) {
+      TargetDistribution target = iTarget == 0 ? normal : targetArray[2];
+      chainArray[iTarget] = new NoUTurnSampler(target, chainLength, massMatrix, 0.5,
+          new MersenneTwister(seed));
+      chainArray[iTarget].run();
+    }
+    if (!Arrays.equals(chainArray[0].getChain(), chainArray[1].getChain())) {
+      isSameChain = false;
+    }
+    printWriter.println("pass isSameChain test = "+isSameChain);
+  }
+
+  /**FUNCTION: TEST CACHED POTENTIAL
+   * Test if RWMH, the adaptive RWMH and HMC evaluate the potential once for each step, that is the
+   * potential at the current state is cached
+   * Test if the chains still accept proposals when the pdf underflows, the potential is shifted
+   * by a large constant so that exp(-potential) is zero
+   * @param nDim Number of dimensions the target has
+   * @param chainLength The length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testCachedPotential(final int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //standard Normal target with a shifted potential, which counts the number of evaluations
+    final NormalDistribution normal = new NormalDistribution(nDim, SimpleMatrix.identity(nDim));
+    final double shift = 1E4;
+    final int [] nEvaluation = new int[1];
+    ArrayTarget countingTarget = new ArrayTarget() {
+      @Override
+      public int getNDim() {
+        return nDim;
+      }
+      @Override
+      public double getPotential(double [] x) {
+        nEvaluation[0]++;
+        return normal.getPotential(x) + shift;
+      }
+      @Override
+      public void getDPotential(double [] x, double [] dPotential) {
+        normal.getDPotential(x, dPotential);
+      }
+      @Override
+      public double getPotentialAndDPotential(double [] x, double [] dPotential) {
+        nEvaluation[0]++;
+        return normal.getPotentialAndDPotential(x, dPotential) + shift;
+      }
+    };
+    TargetDistribution target = new ArrayTargetDistribution(countingTarget);
+
+    for (int iMcmc=0; iMcmc<4; iMcmc++) {
+      nEvaluation[0] = 0;
+      Mcmc chain = getChain(iMcmc, target, chainLength, new MersenneTwister(seed));
+      chain.run();
+      //one evaluation for the initial value and one for each proposal
+      boolean isNEvaluation = nEvaluation[0] == chainLength;
+      boolean isAccept = chain.getAcceptanceRate()[chainLength-2] > 0;
+      printWriter.println(chain.getClass().getName());
+      printWriter.println("pass nEvaluation test = "+isNEvaluation);
+      printWriter.println("pass accept test = "+isAccept);
+    }
+  }
+
+  /**FUNCTION: TEST MULTI CHAIN RUNNER
+   * Test if the multi chain runner returns all the chains completed, if the chains are
+   * reproducible when run concurrently or on a single thread, if the chains are different to each
+   * other and if the chains can be used for the Gelman Rubin statistic
+   * @param nDim Number of dimensions
+   * @param chainLength Length of the chain
+   * @param nChain Number of chains
+   * @param seed Master seed for the MultiChainRunner
+   * @param name Name of the test, this will be printed
+   */
+  static void testMultiChainRunner(int nDim, final int chainLength, int nChain, int seed,
+      String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    final TargetDistribution target = new NormalDistribution(nDim, SimpleMatrix.identity(nDim));
+
+    for (int iMcmc=0; iMcmc<6; iMcmc++) {
+      final int iMcmcFinal = iMcmc;
+      MultiChainRunner.ChainFactory chainFactory = new MultiChainRunner.ChainFactory() {
+        @Override
+        public Mcmc newChain(int iChain, RandomGenerator rng) {
+          return getChain(iMcmcFinal, target, chainLength, rng);
+        }
+      };
+      MultiChainRunner runner = new MultiChainRunner(chainFactory, nChain, seed);
+
+      Mcmc [] chainArray;
+      Mcmc [] chainArrayRepeat;
+      try {
+        chainArray = runner.run();
+        //run again on a single thread
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        runner.setExecutor(executor);
+        chainArrayRepeat = runner.run();
+        executor.shutdown();
+      } catch (InterruptedException exception) {
+        exception.printStackTrace();
+        return;
+      }
+
+      //test all chains are completed and reproducible
+      boolean isComplete = chainArray.length == nChain;
+      boolean isReproducible = true;
+      for (int iChain=0; iChain<chainArray.length; iChain++) {
+        //the initial value is not a step
+        isComplete &= chainArray[iChain].getNStep() == chainLength-1;
+        isReproducible &= Arrays.equals(chainArray[iChain].getChain(),
+            chainArrayRepeat[iChain].getChain());
+      }
+      //test the chains are different to each other
+      boolean isDifferent = true;
+      for (int iChain=1; iChain<chainArray.length; iChain++) {
+        isDifferent &= !Arrays.equals(chainArray[0].getChain(), chainArray[iChain].getChain());
+      }
+      //test the F statistic, using the second half of the chains, is finite
+      GelmanRubinF fStat = new GelmanRubinF(chainArray);
+      double f = fStat.getGelmanRubinF(0, chainLength/2);
+      boolean isFinite = !Double.isNaN(f) && !Double.isInfinite(f);
+
+      printWriter.println(chainArray[0].getClass().getName());
+      printWriter.println("pass complete test = "+isComplete);
+      printWriter.println("pass reproducible test = "+isReproducible);
+      printWriter.println("pass different test = "+isDifferent);
+      printWriter.println("pass F statistic test = "+isFinite);
+    }
+  }
+
+  /**FUNCTION: TEST RANDOM GENERATOR
+   * Test the splittable random number generators against known answers, test that jumping ahead
+   * commutes with stepping, that split streams continue the original stream and that the
+   * Philox4x32 stream constructor agrees with splitting
+   * Test the moments of uniform and Gaussian random numbers
+   * @param nSample Number of random numbers for the moments
+   * @param seed Seed for the generators
+   * @param name Name of the test, this will be printed
+   */
+  static void testRandomGenerator(int nSample, long seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //known answers, reference implementations of xoshiro256** and Random123
+    Xoshiro256StarStar xoshiro = new Xoshiro256StarStar(new long[] {1, 2, 3, 4});
+    long [] xoshiroAnswer = {11520L, 0L, 1509978240L, 1215971899390074240L};
+    boolean isXoshiroKnown = true;
+    for (int i=0; i<xoshiroAnswer.length; i++) {
+      isXoshiroKnown &= xoshiro.nextLong() == xoshiroAnswer[i];
+    }
+    Philox4x32 philox = new Philox4x32(0L);
+    int [] philoxAnswer = {0x6627e8d5, 0xe169c58d, 0xbc57ac4c, 0x9b00dbd8};
+    boolean isPhiloxKnown = true;
+    for (int i=0; i<philoxAnswer.length; i++) {
+      isPhiloxKnown &= philox.nextInt() == philoxAnswer[i];
+    }
+    philox = new Philox4x32(-1L, -1L);
+    philox.block = -1L;
+    philoxAnswer = new int[] {0x408f276d, 0x41c83b0e, 0xa20bc7c6, 0x6d5451fd};
+    for (int i=0; i<philoxAnswer.length; i++) {
+      isPhiloxKnown &= philox.nextInt() == philoxAnswer[i];
+    }
+
+    //jumping then stepping should be the same as stepping then jumping
+    Xoshiro256StarStar jumpFirst = new Xoshiro256StarStar(seed);
+    Xoshiro256StarStar jumpLast = new Xoshiro256StarStar(seed);
+    jumpFirst.jump();
+    for (int i=0; i<10; i++) {
+      jumpFirst.nextLong();
+      jumpLast.nextLong();
+    }
+    jumpLast.jump();
+    boolean isJumpCommute = true;
+    for (int i=0; i<10; i++) {
+      isJumpCommute &= jumpFirst.nextLong() == jumpLast.nextLong();
+    }
+
+    //a split stream continues the original stream, the original moves to a different stream
+    SplittableRandomGenerator [] rootArray = {new Xoshiro256StarStar(seed),
+        new Philox4x32(seed)};
+    boolean isSplitContinue = true;
+    boolean isSplitDifferent = true;
+    for (SplittableRandomGenerator root : rootArray) {
+      root.nextInt();
+      SplittableRandomGenerator copy = root.split();
+      SplittableRandomGenerator stream = root.split();
+      //stream was split from root after copy, splitting copy should move it to where stream starts
+      copy.split();
+      boolean isDifferent = false;
+      for (int i=0; i<10; i++) {
+        long value = stream.nextLong();
+        isSplitContinue &= copy.nextLong() == value;
+        isDifferent |= root.nextLong() != value;
+      }
+      isSplitDifferent &= isDifferent;
+    }
+
+    //the stream constructor should agree with splitting from stream 0
+    Philox4x32 philoxRoot = new Philox4x32(seed);
+    for (int i=0; i<3; i++) {
+      philoxRoot.split();
+    }
+    Philox4x32 philoxStream = new Philox4x32(seed, 3);
+    boolean isStreamAgree = true;
+    for (int i=0; i<10; i++) {
+      isStreamAgree &= philoxRoot.nextLong() == philoxStream.nextLong();
+    }
+
+    //moments of the uniform and Gaussian random numbers
+    rootArray = new SplittableRandomGenerator[] {new Xoshiro256StarStar(seed),
+        new Philox4x32(seed)};
+    boolean isUniformMoment = true;
+    boolean isGaussianMoment = true;
+    for (SplittableRandomGenerator rng : rootArray) {
+      double uniformSum = 0;
+      double gaussianSum = 0;
+      double gaussianSumSquare = 0;
+      for (int i=0; i<nSample; i++) {
+        double uniform = rng.nextDouble();
+        isUniformMoment &= (uniform >= 0) && (uniform < 1);
+        uniformSum += uniform;
+        double gaussian = rng.nextGaussian();
+        gaussianSum += gaussian;
+        gaussianSumSquare += gaussian * gaussian;
+      }
+      double tolerance = 5 / Math.sqrt(nSample);
+      isUniformMoment &= Math.abs(uniformSum / nSample - 0.5) < tolerance;
+      isGaussianMoment &= Math.abs(gaussianSum / nSample) < tolerance;
+      isGaussianMoment &= Math.abs(gaussianSumSquare / nSample - 1) < 2 * tolerance;
+    }
+
+    printWriter.println("pass xoshiro known answer test = "+isXoshiroKnown);
+    printWriter.println("pass philox known answer test = "+isPhiloxKnown);
+    printWriter.println("pass jump commute test = "+isJumpCommute);
+    printWriter.println("pass split continue test = "+isSplitContinue);
+    printWriter.println("pass split different test = "+isSplitDifferent);
+    printWriter.println("pass stream agree test = "+isStreamAgree);
+    printWriter.println("pass uniform moment test = "+isUniformMoment);
+    printWriter.println("pass gaussian moment test = "+isGaussianMoment);
+  }
+
+  /**FUNCTION: TEST ZIGGURAT GAUSSIAN
+   * Test if filling an array gives the same random variables as sampling one at a time
+   * Test the moments and the empirical distribution function of the ziggurat Gaussian, including
+   * the tail
+   * @param nSample Number of random variables
+   * @param nArray Length of the array to fill
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testZigguratGaussian(int nSample, int nArray, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //filling an array should be the same as one at a time
+    MersenneTwister rng = new MersenneTwister(seed);
+    MersenneTwister rngCopy = new MersenneTwister(seed);
+    double [] z = new double[nArray];
+    ZigguratGaussian.nextGaussian(rng, z);
+    boolean isArraySame = true;
+    for (int i=0; i<nArray; i++) {
+      isArraySame &= z[i] == ZigguratGaussian.nextGaussian(rngCopy);
+    }
+
+    //standard Normal distribution function at some points, 3.5 is in the tail
+    double [] point = {-3.5, -1.5, 0.0, 1.0, 2.0, 3.5};
+    double [] cdf = {2.326290790E-4, 0.0668072013, 0.5, 0.8413447461, 0.9772498681,
+        0.9997673709};
+    int [] count = new int[point.length];
+    double sum = 0;
+    double sumSquare = 0;
+    double sumFourth = 0;
+    for (int i=0; i<nSample; i++) {
+      double x = ZigguratGaussian.nextGaussian(rng);
+      sum += x;
+      sumSquare += x * x;
+      sumFourth += x * x * x * x;
+      for (int j=0; j<point.length; j++) {
+        if (x <= point[j]) {
+          count[j]++;
+        }
+      }
+    }
+    double tolerance = 5 / Math.sqrt(nSample);
+    boolean isMoment = Math.abs(sum / nSample) < tolerance;
+    isMoment &= Math.abs(sumSquare / nSample - 1) < 2 * tolerance;
+    isMoment &= Math.abs(sumFourth / nSample - 3) < 10 * tolerance;
+    boolean isCdf = true;
+    for (int j=0; j<point.length; j++) {
+      double p = cdf[j];
+      isCdf &= Math.abs(((double) count[j]) / nSample - p) < 5 * Math.sqrt(p * (1-p) / nSample);
+    }
+
+    printWriter.println("pass array test = "+isArraySame);
+    printWriter.println("pass moment test = "+isMoment);
+    printWriter.println("pass cdf test = "+isCdf);
+  }
+
+  /**FUNCTION: TEST CHOLESKY RANK ONE UPDATE
+   * Test if a rank one update followed by a downdate of a cholesky factor is correct, and if a
+   * downdate which is not positive definite fails
+   * Test if the cholesky of the adaptive proposal covariance, kept up to date with rank one
+   * updates, agrees with the scaled chain covariance for the adaptive rwmh chains
+   * Test if running a copied and extended adaptive chain leaves the cholesky of the original chain
+   * unmodified
+   * @param nDim Number of dimensions
+   * @param chainLength Length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testCholeskyRankOneUpdate(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    MersenneTwister rng = new MersenneTwister(seed);
+    SimpleMatrix covariance = Global.getRandomCovariance(nDim, rng);
+    SimpleMatrix x = new SimpleMatrix(nDim, 1);
+    for (int i=0; i<nDim; i++) {
+      x.set(i, rng.nextGaussian());
+    }
+    double alpha = 0.7;
+    double tolerance = 1E-8 * covariance.elementMaxAbs();
+
+    //update
+    SimpleMatrix chol = Global.cholesky(covariance);
+    double [] work = x.getDDRM().getData().clone();
+    boolean isUpdate = Global.choleskyRankOneUpdate(chol, alpha, work);
+    SimpleMatrix expected = covariance.plus(x.mult(x.transpose()).scale(alpha));
+    isUpdate &= chol.mult(chol.transpose()).isIdentical(expected, tolerance);
+    //downdate back to the original
+    work = x.getDDRM().getData().clone();
+    boolean isDowndate = Global.choleskyRankOneUpdate(chol, -alpha, work);
+    isDowndate &= chol.mult(chol.transpose()).isIdentical(covariance, tolerance);
+    //downdate too much, covariance - x*x^T/(x^T*covariance^-1*x) is singular
+    work = x.getDDRM().getData().clone();
+    double tooMuch = 2 / x.transpose().mult(covariance.invert()).mult(x).get(0);
+    boolean isDowndateFail = !Global.choleskyRankOneUpdate(chol, -tooMuch, work);
+
+    printWriter.println("pass update test = "+isUpdate);
+    printWriter.println("pass downdate test = "+isDowndate);
+    printWriter.println("pass downdate fail test = "+isDowndateFail);
+
+    //adaptive chains, the cholesky should agree with the scaled chain covariance
+    for (int iMcmc=1; iMcmc<3; iMcmc++) {
+      AdaptiveRwmh chain = (AdaptiveRwmh) getChain(iMcmc, nDim, chainLength, rng);
+      chain.run();
+      chain.updateChainCovariance();
+      SimpleMatrix proposalCovariance = chain.chainCovariance.scale(chain.getAdaptiveScale());
+      SimpleMatrix adaptiveCovariance = chain.adaptiveProposalChol.mult(
+          chain.adaptiveProposalChol.transpose());
+      boolean isAdaptive = adaptiveCovariance.isIdentical(proposalCovariance,
+          1E-8 * proposalCovariance.elementMaxAbs());
+      //extend the chain and run it, the original cholesky should be left unmodified
+      SimpleMatrix originalChol = new SimpleMatrix(chain.adaptiveProposalChol);
+      AdaptiveRwmh extendedChain = (AdaptiveRwmh) copyConstructor(iMcmc, chain, chainLength);
+      extendedChain.run();
+      boolean isCopied = chain.adaptiveProposalChol.isIdentical(originalChol, 0)
+          && !extendedChain.adaptiveProposalChol.isIdentical(originalChol, 0);
+      printWriter.println(chain.getClass().getName());
+      printWriter.println("pass adaptive chol test = "+isAdaptive);
+      printWriter.println("pass copied chol test = "+isCopied);
+    }
+  }
+
+  /**FUNCTION: TEST ADAPTATION SCHEDULE
+   * Test if the adaptive proposal covariance is decomposed in full the correct number of times for
+   * each adaptation schedule
+   * Test if the proposal is fixed after the adaptation is stopped
+   * Test if the mixture adaptive rwmh keeps the previous proposal, or uses the safety proposal,
+   * when a scheduled decomposition fails
+   * @param nDim Number of dimensions, the adaptation starts at step 2*nDim-1
+   * @param chainLength Length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testAdaptationSchedule(int nDim, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    MersenneTwister rng = new MersenneTwister(seed);
+    TargetDistribution target = new NormalDistribution(nDim, SimpleMatrix.identity(nDim));
+    SimpleMatrix proposalCovariance = SimpleMatrix.identity(nDim).scale(
+        Math.pow(2.38,2) / ((double)nDim) );
+    final int [] nDecompose = new int[1];
+
+    //count the number of decompositions for each schedule
+    AdaptiveRwmh.AdaptationSchedule [] scheduleArray = AdaptiveRwmh.AdaptationSchedule.values();
+    int nAdaptiveStep = chainLength - 2*nDim; //steps 2*nDim-1, ..., chainLength-2
+    int nGeometric = 1; //0, 1, 2, 4, 8, ... steps after adapting began
+    for (int gap=1; gap<nAdaptiveStep; gap*=2) {
+      nGeometric++;
+    }
+    int [] expectedNDecompose = {1, (nAdaptiveStep + 99) / 100, nGeometric};
+    boolean isNDecompose = true;
+    for (int i=0; i<scheduleArray.length; i++) {
+      AdaptiveRwmh chain = new AdaptiveRwmh(target, chainLength, proposalCovariance, rng) {
+        @Override
+        protected SimpleMatrix getAdaptiveProposalChol() {
+          nDecompose[0]++;
+          return super.getAdaptiveProposalChol();
+        }
+      };
+      chain.setAdaptationSchedule(scheduleArray[i]);
+      nDecompose[0] = 0;
+      chain.run();
+      isNDecompose &= nDecompose[0] == expectedNDecompose[i];
+    }
+
+    //stop the adaptation half way, extending the chain should not change the proposal
+    AdaptiveRwmh chain = new AdaptiveRwmh(target, chainLength/2, proposalCovariance, rng);
+    chain.setNStepStopAdaptive(chainLength/2 - 1);
+    chain.run();
+    SimpleMatrix stoppedChol = new SimpleMatrix(chain.adaptiveProposalChol);
+    chain = new AdaptiveRwmh(chain, chainLength/2);
+    chain.run();
+    boolean isStop = chain.adaptiveProposalChol.isIdentical(stoppedChol, 0.0);
+
+    //mixture, scheduled decompositions after the first fail, the first one should be kept
+    final SimpleMatrix [] firstChol = new SimpleMatrix[1];
+    MixtureAdaptiveRwmh mixture = new MixtureAdaptiveRwmh(target, chainLength,
+        proposalCovariance, rng) {
+      @Override
+      protected SimpleMatrix getAdaptiveProposalChol() {
+        if (firstChol[0] == null) {
+          firstChol[0] = super.getAdaptiveProposalChol();
+          return firstChol[0];
+        }
+        return null;
+      }
+    };
+    mixture.setAdaptationSchedule(AdaptiveRwmh.AdaptationSchedule.PERIODIC);
+    mixture.setAdaptationPeriod(10);
+    mixture.run();
+    boolean isMixtureKeep = mixture.adaptiveProposalChol == firstChol[0];
+    //all decompositions fail, the safety proposal should be used
+    mixture = new MixtureAdaptiveRwmh(target, chainLength, proposalCovariance, rng) {
+      @Override
+      protected SimpleMatrix getAdaptiveProposalChol() {
+        return null;
+      }
+    };
+    mixture.run();
+    boolean isMixtureSafety = mixture.adaptiveProposalChol == null;
+    isMixtureSafety &= mixture.getAcceptanceRate()[chainLength-2] > 0;
+
+    printWriter.println("pass number of decompositions test = "+isNDecompose);
+    printWriter.println("pass stop adaptive test = "+isStop);
+    printWriter.println("pass mixture keep test = "+isMixtureKeep);
+    printWriter.println("pass mixture safety test = "+isMixtureSafety);
+  }
+
+  /**FUNCTION: TEST LOW RANK ADAPTIVE
+   * Target a Normal with two large principal directions, test if the low rank adaptive rwmh finds
+   * the principal directions and the variance of each dimension, and if the chain covariance is
+   * not used
+   * Test if extending the chain using the copy and extend constructor gives the same chain
+   * @param nDim Number of dimensions
+   * @param chainLength Length of the chain
+   * @param subChainLength Length of the chain before calling the copy and extend constructor
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testLowRankAdaptive(int nDim, int chainLength, int subChainLength, int seed,
+      String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //covariance = I + 25*w1*w1^T + 9*w2*w2^T, w1 and w2 orthonormal
+    MersenneTwister rng = new MersenneTwister(seed);
+    SimpleMatrix w1 = new SimpleMatrix(nDim, 1);
+    SimpleMatrix w2 = new SimpleMatrix(nDim, 1);
+    for (int i=0; i<nDim; i++) {
+      w1.set(i, rng.nextGaussian());
+      w2.set(i, rng.nextGaussian());
+    }
+    w1 = w1.divide(w1.normF());
+    w2 = w2.minus(w1.scale(w1.dot(w2)));
+    w2 = w2.divide(w2.normF());
+    SimpleMatrix covariance = SimpleMatrix.identity(nDim).plus(w1.mult(w1.transpose()).scale(25))
+        .plus(w2.mult(w2.transpose()).scale(9));
+    TargetDistribution target = new NormalDistribution(nDim, covariance);
+
+    LowRankAdaptiveRwmh chain = (LowRankAdaptiveRwmh) getChain(6, target, chainLength, rng);
+    chain.run();
+
+    //each principal direction should be found by one of the components
+    SimpleMatrix [] directionArray = {w1, w2};
+    double [] varianceArray = {26, 10};
+    boolean isDirection = true;
+    boolean isDirectionVariance = true;
+    for (int k=0; k<directionArray.length; k++) {
+      double maxCos = 0;
+      double variance = 0;
+      for (int j=0; j<2; j++) {
+        double cos = 0;
+        double [] component = chain.getComponent(j);
+        for (int i=0; i<nDim; i++) {
+          cos += component[i] * directionArray[k].get(i);
+        }
+        if (Math.abs(cos) > maxCos) {
+          maxCos = Math.abs(cos);
+          variance = chain.getComponentVariance(j);
+        }
+      }
+      isDirection &= maxCos > 0.9;
+      isDirectionVariance &= Math.abs(variance / varianceArray[k] - 1) < 0.4;
+    }
+    //variance of each dimension
+    double [] chainVariance = chain.getChainVariance();
+    double meanRelativeError = 0;
+    for (int i=0; i<nDim; i++) {
+      meanRelativeError += Math.abs(chainVariance[i] / covariance.get(i, i) - 1) / nDim;
+    }
+    boolean isVariance = meanRelativeError < 0.25;
+    boolean isNoCovariance = chain.chainSumSquares == null;
+
+    //copy and extend
+    rng = new MersenneTwister(seed);
+    Mcmc chainFull = getChain(6, nDim, chainLength, rng);
+    chainFull.run();
+    rng = new MersenneTwister(seed);
+    Mcmc chainExtend = getChain(6, nDim, subChainLength, rng);
+    chainExtend.run();
+    chainExtend = copyConstructor(6, chainExtend, chainLength - subChainLength);
+    chainExtend.run();
+    boolean isSame = chainFull.chainArray.isIdentical(chainExtend.chainArray, 0);
+
+    printWriter.println("pass principal direction test = "+isDirection);
+    printWriter.println("pass principal variance test = "+isDirectionVariance);
+    printWriter.println("pass variance test = "+isVariance);
+    printWriter.println("pass no covariance test = "+isNoCovariance);
+    printWriter.println("pass isSame test = "+isSame);
+  }
+
+  /**FUNCTION: TEST KINETIC METRIC
+   * Test if KineticMetric.newMetric picks the cheapest metric for identity, diagonal and dense mass
+   * matrices
+   * Test if the identity and diagonal metrics agree with the dense metric for the same mass matrix
+   * Test if the sample covariance of the dense metric momentum is the mass matrix
+   * @param nDim Number of dimensions
+   * @param nSample Number of momentums to sample
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testKineticMetric(int nDim, int nSample, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    MersenneTwister rng = new MersenneTwister(seed);
+    SimpleMatrix identity = SimpleMatrix.identity(nDim);
+    SimpleMatrix diagonalVector = new SimpleMatrix(nDim, 1);
+    for (int i=0; i<nDim; i++) {
+      diagonalVector.set(i, 0.5 + rng.nextDouble());
+    }
+    SimpleMatrix diagonal = SimpleMatrix.diag(diagonalVector.getDDRM().getData());
+    SimpleMatrix dense = Global.getRandomCovariance(nDim, rng).plus(identity);
+
+    //newMetric picks the cheapest metric
+    boolean isNewMetric = KineticMetric.newMetric(identity) instanceof IdentityMetric;
+    isNewMetric &= KineticMetric.newMetric(diagonal) instanceof DiagonalMetric;
+    isNewMetric &= KineticMetric.newMetric(diagonalVector) instanceof DiagonalMetric;
+    isNewMetric &= KineticMetric.newMetric(dense) instanceof DenseMetric;
+
+    //identity and diagonal metrics should agree with the dense metric
+    KineticMetric [] metricArray = {new IdentityMetric(nDim),
+        new DiagonalMetric(diagonalVector.getDDRM().getData())};
+    KineticMetric [] denseArray = {new DenseMetric(identity), new DenseMetric(diagonal)};
+    double [] momentum = new double[nDim];
+    double [] momentumDense = new double[nDim];
+    double [] velocity = new double[nDim];
+    double [] velocityDense = new double[nDim];
+    boolean isAgree = true;
+    for (int iMetric=0; iMetric<metricArray.length; iMetric++) {
+      metricArray[iMetric].sampleMomentum(new MersenneTwister(seed), momentum);
+      denseArray[iMetric].sampleMomentum(new MersenneTwister(seed), momentumDense);
+      metricArray[iMetric].getVelocity(momentum, velocity);
+      denseArray[iMetric].getVelocity(momentum, velocityDense);
+      for (int i=0; i<nDim; i++) {
+        isAgree &= Math.abs(momentum[i] - momentumDense[i]) < 1E-12;
+        isAgree &= Math.abs(velocity[i] - velocityDense[i]) < 1E-12;
+      }
+      isAgree &= Math.abs(metricArray[iMetric].getKineticEnergy(momentum)
+          - denseArray[iMetric].getKineticEnergy(momentum)) < 1E-10;
+    }
+
+    //dense metric, the kinetic energy is 0.5 * p^T * M^(-1) * p and the momentum covariance is M
+    KineticMetric denseMetric = KineticMetric.newMetric(dense);
+    denseMetric.sampleMomentum(rng, momentum);
+    SimpleMatrix p = new SimpleMatrix(nDim, 1, true, momentum);
+    double kineticEnergy = 0.5 * p.transpose().mult(dense.invert()).mult(p).get(0);
+    boolean isKineticEnergy = Math.abs(denseMetric.getKineticEnergy(momentum) - kineticEnergy)
+        < 1E-8 * Math.abs(kineticEnergy);
+    denseMetric.getVelocity(momentum, velocity);
+    boolean isVelocity = dense.mult(new SimpleMatrix(nDim, 1, true, velocity))
+        .isIdentical(p, 1E-8 * p.elementMaxAbs());
+    SimpleMatrix sumSquares = new SimpleMatrix(nDim, nDim);
+    for (int iSample=0; iSample<nSample; iSample++) {
+      denseMetric.sampleMomentum(rng, momentum);
+      for (int i=0; i<nDim; i++) {
+        for (int j=0; j<nDim; j++) {
+          sumSquares.set(i, j, sumSquares.get(i, j) + momentum[i] * momentum[j]);
+        }
+      }
+    }
+    SimpleMatrix covarianceError = sumSquares.divide(nSample).minus(dense);
+    //standard error of each covariance element is sqrt((M_ii*M_jj + M_ij^2) / nSample)
+    boolean isCovariance = true;
+    for (int i=0; i<nDim; i++) {
+      for (int j=0; j<nDim; j++) {
+        double standardError = Math.sqrt((dense.get(i, i) * dense.get(j, j)
+            + dense.get(i, j) * dense.get(i, j)) / nSample);
+        isCovariance &= Math.abs(covarianceError.get(i, j)) < 6 * standardError;
+      }
+    }
+
+    printWriter.println("pass new metric test = "+isNewMetric);
+    printWriter.println("pass agree test = "+isAgree);
+    printWriter.println("pass kinetic energy test = "+isKineticEnergy);
+    printWriter.println("pass velocity test = "+isVelocity);
+    printWriter.println("pass covariance test = "+isCovariance);
+  }
+
+  /**FUNCTION: TEST WINDOWED WARM UP
+   * Test the windowed warm up of DualAveragingNuts on a badly scaled Normal distribution
+   * Test if the warm up steps are not kept in the chain
+   * Test if the adapted diagonal mass matrix is about the inverse of the variance
+   * Test if adapting the mass matrix gives a much larger step size than adapting the step size only
+   * Test if the chain variance is correct with a dense mass matrix and a correlated target
+   * @param nDim Number of dimensions
+   * @param nWarmUp Number of warm up steps
+   * @param chainLength Length of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testWindowedWarmUp(int nDim, int nWarmUp, int chainLength, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //the standard deviations range from 0.01 to 100
+    double [] standardDeviation = new double[nDim];
+    for (int i=0; i<nDim; i++) {
+      standardDeviation[i] = Math.pow(10.0, -2.0 + 4.0 * i / (nDim - 1));
+    }
+    SimpleMatrix covariance = new SimpleMatrix(nDim, nDim);
+    for (int i=0; i<nDim; i++) {
+      covariance.set(i, i, standardDeviation[i] * standardDeviation[i]);
+    }
+    TargetDistribution target = new NormalDistribution(nDim, covariance);
+
+    //diagonal mass matrix
+    MersenneTwister rng = new MersenneTwister(seed);
+    DualAveragingNuts chain = new DualAveragingNuts(target, chainLength,
+        SimpleMatrix.identity(nDim), nWarmUp, rng);
+    chain.setWarmUp(DualAveragingNuts.MetricAdaptation.DIAGONAL);
+    chain.run();
+    boolean isNotKept = (chain.chainArray.numRows() == chainLength)
+        && (chain.getNStep() == chainLength - 1) && (chain.chainArray.get(0, nDim-1) != 0.0);
+    double [] mass = ((DiagonalMetric) chain.getMetric()).getMass();
+    boolean isMass = true;
+    for (int i=0; i<nDim; i++) {
+      double ratio = mass[i] * covariance.get(i, i);
+      isMass &= (ratio > 0.5) && (ratio < 2.0);
+    }
+
+    //adapt the step size only
+    rng = new MersenneTwister(seed);
+    DualAveragingNuts chainStepSize = new DualAveragingNuts(target, chainLength,
+        SimpleMatrix.identity(nDim), nWarmUp, rng);
+    chainStepSize.setWarmUp(DualAveragingNuts.MetricAdaptation.NONE);
+    chainStepSize.run();
+    boolean isStepSize = chain.getSizeLeapFrog() > 10 * chainStepSize.getSizeLeapFrog();
+
+    //dense mass matrix, correlated target
+    SimpleMatrix randomCovariance = Global.getRandomCovariance(nDim, rng)
+        .plus(SimpleMatrix.identity(nDim));
+    covariance = new SimpleMatrix(nDim, nDim);
+    for (int i=0; i<nDim; i++) {
+      for (int j=0; j<nDim; j++) {
+        double correlation = randomCovariance.get(i, j)
+            / Math.sqrt(randomCovariance.get(i, i) * randomCovariance.get(j, j));
+        covariance.set(i, j, standardDeviation[i] * standardDeviation[j] * correlation);
+      }
+    }
+    target = new NormalDistribution(nDim, covariance);
+    DualAveragingNuts chainDense = new DualAveragingNuts(target, chainLength,
+        SimpleMatrix.identity(nDim), nWarmUp, rng);
+    chainDense.setWarmUp(DualAveragingNuts.MetricAdaptation.DENSE);
+    chainDense.run();
+    double [] chainCovariance = chainDense.getChainCovariance();
+    boolean isDense = chainDense.getMetric() instanceof DenseMetric;
+    for (int i=0; i<nDim; i++) {
+      isDense &= Math.abs(chainCovariance[i*nDim+i] / covariance.get(i, i) - 1) < 0.3;
+    }
+
+    printWriter.println("pass not kept test = "+isNotKept);
+    printWriter.println("pass mass test = "+isMass);
+    printWriter.println("pass step size test = "+isStepSize);
+    printWriter.println("pass dense test = "+isDense);
+  }
+
+  /**FUNCTION: TEST GELMAN RUBIN F
+   * Test if the F statistics from the prefix sums agree with a one way ANOVA of the samples, for
+   * chains which start far away from the mean of the target
+   * Test if the F statistics take into account the samples added after a previous call
+   * @param nDim Number of dimensions
+   * @param chainLength Length of each chain
+   * @param nChain Number of chains
+   * @param maxNBurnIn Maximum burn in for the F statistic curve
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testGelmanRubinF(int nDim, int chainLength, int nChain, int maxNBurnIn, int seed,
+      String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //the chains start at random positions near the origin, the mean is far away
+    MersenneTwister rng = new MersenneTwister(seed);
+    SimpleMatrix mean = new SimpleMatrix(nDim, 1);
+    mean.set(100.0);
+    TargetDistribution target = new NormalDistribution(nDim, mean, SimpleMatrix.identity(nDim));
+    Mcmc [] chainArray = new Mcmc[nChain];
+    for (int iChain=0; iChain<nChain; iChain++) {
+      chainArray[iChain] = getChain(3, target, chainLength, rng);
+      double [] initialValue = new double[nDim];
+      for (int i=0; i<nDim; i++) {
+        initialValue[i] = rng.nextGaussian();
+      }
+      chainArray[iChain].setInitialValue(initialValue);
+      chainArray[iChain].run();
+    }
+
+    //compare with the one way anova for each burn in and each dimension
+    GelmanRubinF fStat = new GelmanRubinF(chainArray);
+    OneWayAnova anova = new OneWayAnova();
+    boolean isAgree = true;
+    for (int iDim=0; iDim<nDim; iDim++) {
+      double [] fArray = fStat.getGelmanRubinFArray(iDim, maxNBurnIn);
+      for (int nBurnIn=2; nBurnIn<=maxNBurnIn; nBurnIn++) {
+        ArrayList<double []> chainList = new ArrayList<double []>();
+        for (int iChain=0; iChain<nChain; iChain++) {
+          chainList.add(Arrays.copyOfRange(chainArray[iChain].getChain(iDim), nBurnIn,
+              2*nBurnIn));
+        }
+        double f = anova.anovaFValue(chainList);
+        isAgree &= Math.abs(fArray[nBurnIn-2] - f) <= 1E-6 * Math.abs(f);
+      }
+    }
+    //the F statistic of a single burn in uses the same prefix sums
+    isAgree &= fStat.getGelmanRubinF(0, maxNBurnIn) == fStat.getGelmanRubinFArray(0,
+        maxNBurnIn)[maxNBurnIn-2];
+    //the chains have converged by the end
+    boolean isConverged = fStat.getGelmanRubinF(0, chainLength/2) < 10;
+
+    //work out the curve half way through the chains, then again after they are continued
+    Mcmc [] continuedArray = new Mcmc[nChain];
+    for (int iChain=0; iChain<nChain; iChain++) {
+      continuedArray[iChain] = getChain(3, target, chainLength, rng);
+      for (int i=0; i<chainLength/2; i++) {
+        continuedArray[iChain].step();
+      }
+    }
+    GelmanRubinF continuedFStat = new GelmanRubinF(continuedArray);
+    continuedFStat.getGelmanRubinFArray(0, chainLength/4);
+    for (int iChain=0; iChain<nChain; iChain++) {
+      for (int i=chainLength/2; i<(chainLength-1); i++) {
+        continuedArray[iChain].step();
+      }
+    }
+    boolean isContinued = Arrays.equals(continuedFStat.getGelmanRubinFArray(0, chainLength/2),
+        new GelmanRubinF(continuedArray).getGelmanRubinFArray(0, chainLength/2));
+
+    printWriter.println("pass agree test = "+isAgree);
+    printWriter.println("pass converged test = "+isConverged);
+    printWriter.println("pass continued test = "+isContinued);
+  }
+
+  /**FUNCTION: TEST MULTI CHAIN DIAGNOSTICS
+   * The chains are filled with independent AR(1) processes with unit variance, the bulk effective
+   * sample size of each dimension is nChain*chainLength*(1-phi)/(1+phi), the tail effective sample
+   * size is larger as the quantile indicators are less correlated
+   * Test if the R hats are close to 1 and the effective sample sizes are close to the true value
+   * Test if the R hats detect a chain which has a different mean to the others
+   * Test if the diagnostics are the same when worked out on a single thread
+   * Test if the diagnostics are the same when the chains keep their samples in a ChainStore
+   * @param nDim Number of dimensions
+   * @param chainLength Length of each chain
+   * @param nChain Number of chains
+   * @param phi Autoregressive parameter
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testMultiChainDiagnostics(int nDim, int chainLength, int nChain, double phi,
+      int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    MersenneTwister rng = new MersenneTwister(seed);
+    TargetDistribution target = new NormalDistribution(nDim, SimpleMatrix.identity(nDim));
+    Mcmc [] chainArray = new Mcmc[nChain];
+    double innovationScale = Math.sqrt(1 - phi*phi);
+    for (int iChain=0; iChain<nChain; iChain++) {
+      chainArray[iChain] = getChain(0, target, chainLength, rng);
+      double [] chain = chainArray[iChain].getChainArray().getDDRM().getData();
+      for (int i=0; i<nDim; i++) {
+        chain[i] = rng.nextGaussian();
+      }
+      for (int iRow=1; iRow<chainLength; iRow++) {
+        for (int i=0; i<nDim; i++) {
+          chain[iRow*nDim + i] = phi * chain[(iRow-1)*nDim + i]
+              + innovationScale * rng.nextGaussian();
+        }
+      }
+    }
+
+    MultiChainDiagnostics diagnostics = new MultiChainDiagnostics(chainArray);
+    diagnostics.calculate(0);
+    //the middle sample is dropped for odd lengths
+    double ess = nChain * (chainLength - chainLength % 2) * (1 - phi) / (1 + phi);
+    boolean isRhat = true;
+    boolean isEss = true;
+    for (int i=0; i<nDim; i++) {
+      isRhat &= diagnostics.getSplitRhat()[i] < 1.05;
+      isRhat &= diagnostics.getRankNormalisedRhat()[i] < 1.05;
+      isEss &= Math.abs(diagnostics.getBulkEss()[i] / ess - 1) < 0.3;
+      isEss &= diagnostics.getTailEss()[i] > 0.7 * ess;
+      isEss &= diagnostics.getTailEss()[i] < 1.3 * nChain * chainLength;
+    }
+
+    //the same on a single thread
+    MultiChainDiagnostics diagnosticsSingle = new MultiChainDiagnostics(chainArray);
+    ForkJoinPool pool = new ForkJoinPool(1);
+    diagnosticsSingle.setPool(pool);
+    diagnosticsSingle.calculate(0);
+    pool.shutdown();
+    boolean isSame = Arrays.equals(diagnostics.getSplitRhat(), diagnosticsSingle.getSplitRhat())
+        && Arrays.equals(diagnostics.getRankNormalisedRhat(),
+            diagnosticsSingle.getRankNormalisedRhat())
+        && Arrays.equals(diagnostics.getBulkEss(), diagnosticsSingle.getBulkEss())
+        && Arrays.equals(diagnostics.getTailEss(), diagnosticsSingle.getTailEss());
+
+    //the same with the samples kept in an InMemoryChainSink or a MappedChainSink
+    Mcmc [] storedArray = new Mcmc[nChain];
+    for (int iChain=0; iChain<nChain; iChain++) {
+      storedArray[iChain] = getChain(0, target, chainLength, rng);
+      ChainStore store = iChain % 2 == 0 ? new InMemoryChainSink(nDim, 1)
+          : new MappedChainSink(nDim, chainLength);
+      storedArray[iChain].setChainStore(store);
+      double [] chain = chainArray[iChain].getChainArray().getDDRM().getData();
+      for (int iRow=0; iRow<chainLength; iRow++) {
+        store.addSample(Arrays.copyOfRange(chain, iRow*nDim, (iRow+1)*nDim));
+      }
+    }
+    MultiChainDiagnostics diagnosticsStored = new MultiChainDiagnostics(storedArray);
+    diagnosticsStored.calculate(0);
+    boolean isStoredSame = Arrays.equals(diagnostics.getSplitRhat(),
+        diagnosticsStored.getSplitRhat())
+        && Arrays.equals(diagnostics.getRankNormalisedRhat(),
+            diagnosticsStored.getRankNormalisedRhat())
+        && Arrays.equals(diagnostics.getBulkEss(), diagnosticsStored.getBulkEss())
+        && Arrays.equals(diagnostics.getTailEss(), diagnosticsStored.getTailEss());
+
+    //shift the first chain, after a burn in of 1
+    double [] chain = chainArray[0].getChainArray().getDDRM().getData();
+    for (int i=0; i<chain.length; i++) {
+      chain[i] += 3.0;
+    }
+    diagnostics.calculate(1);
+    boolean isNotConverged = true;
+    for (int i=0; i<nDim; i++) {
+      isNotConverged &= diagnostics.getSplitRhat()[i] > 1.1;
+      isNotConverged &= diagnostics.getRankNormalisedRhat()[i] > 1.1;
+    }
+
+    printWriter.println("pass R hat test = "+isRhat);
+    printWriter.println("pass ESS test = "+isEss);
+    printWriter.println("pass same test = "+isSame);
+    printWriter.println("pass stored same test = "+isStoredSame);
+    printWriter.println("pass not converged test = "+isNotConverged);
+  }
+
+  /**FUNCTION: TEST BATCH MEANS
+   * Test if the online batch means agree with batch means worked out from the whole chain
+   * Test if the number of batches stays bounded
+   * Test if the monte carlo error of independent AR(1) processes with unit variance is close to
+   * sqrt((1+phi)/((1-phi)n))
+   * Test if a chain streaming to a bounded ChainSink gives the log precision, close to the value
+   * from the posterior statistics of the same chain stored in full
+   * @param nDim Number of dimensions
+   * @param chainLength Length of the chains
+   * @param phi Autoregressive parameter
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testBatchMeans(int nDim, int chainLength, double phi, int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //AR(1) processes
+    MersenneTwister rng = new MersenneTwister(seed);
+    int nBatch = 2 * (int) Math.round(Math.sqrt(chainLength));
+    BatchMeans batchMeans = new BatchMeans(nDim, nBatch);
+    double [] chain = new double[chainLength * nDim];
+    double innovationScale = Math.sqrt(1 - phi*phi);
+    boolean isBounded = true;
+    for (int iStep=0; iStep<chainLength; iStep++) {
+      for (int i=0; i<nDim; i++) {
+        double previous = (iStep == 0) ? rng.nextGaussian() / innovationScale
+            : chain[(iStep-1)*nDim + i];
+        chain[iStep*nDim + i] = phi * previous + innovationScale * rng.nextGaussian();
+      }
+      batchMeans.add(Arrays.copyOfRange(chain, iStep*nDim, (iStep+1)*nDim));
+      isBounded &= batchMeans.getNFullBatch() <= nBatch;
+    }
+    isBounded &= batchMeans.getNFullBatch() >= nBatch / 2;
+
+    //batch means from the whole chain, the batch being filled is not used
+    int nFullBatch = batchMeans.getNFullBatch();
+    int batchSize = batchMeans.getBatchSize();
+    double [] monteCarloError = batchMeans.getMonteCarloError();
+    boolean isAgree = true;
+    boolean isError = true;
+    double expectedError = Math.sqrt((1 + phi) / ((1 - phi) * chainLength));
+    for (int i=0; i<nDim; i++) {
+      double [] batch = new double[nFullBatch];
+      double mean = 0;
+      for (int iStep=0; iStep<nFullBatch*batchSize; iStep++) {
+        batch[iStep / batchSize] += chain[iStep*nDim + i] / batchSize;
+        mean += chain[iStep*nDim + i] / (nFullBatch*batchSize);
+      }
+      double sumSquares = 0;
+      for (int iBatch=0; iBatch<nFullBatch; iBatch++) {
+        sumSquares += (batch[iBatch] - mean) * (batch[iBatch] - mean);
+      }
+      double error = Math.sqrt(sumSquares) / nFullBatch;
+      isAgree &= Math.abs(monteCarloError[i] - error) < 1E-10 * error;
+      isError &= Math.abs(monteCarloError[i] / expectedError - 1) < 0.3;
+    }
+
+    //streaming chain against a stored chain
+    rng = new MersenneTwister(seed);
+    Mcmc chainStream = getChain(0, nDim, chainLength, rng);
+    chainStream.setChainSink(new BoundedChainSink(nDim, 10));
+    chainStream.run();
+    double [] differenceLnError = chainStream.getDifferenceLnError();
+    rng = new MersenneTwister(seed);
+    Mcmc chainStored = getChain(0, nDim, chainLength, rng);
+    chainStored.run();
+    chainStored.calculatePosteriorStatistics(0);
+    double [] differenceLnErrorStored = chainStored.getDifferenceLnError();
+    boolean isStream = true;
+    for (int i=0; i<nDim; i++) {
+      isStream &= Math.abs(differenceLnError[i] - differenceLnErrorStored[i]) < 0.3;
+    }
+
+    printWriter.println("pass bounded test = "+isBounded);
+    printWriter.println("pass agree test = "+isAgree);
+    printWriter.println("pass error test = "+isError);
+    printWriter.println("pass stream test = "+isStream);
+  }
+
+  /**FUNCTION: TEST POSTERIOR MOMENTS
+   * Test if the posterior expectation and covariance, worked out in blocks and in parallel, agree
+   * with working them out row by row
+   * Test if the moments worked out on a single thread agree with the parallel ones
+   * @param nDim Number of dimensions
+   * @param chainLength Length of the chain
+   * @param nBurnIn Number of samples to be ignored at the start of the chain
+   * @param seed Random seed for the MersenneTwister
+   * @param name Name of the test, this will be printed
+   */
+  static void testPosteriorMoments(int nDim, int chainLength, int nBurnIn, int seed,
+      String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    //the chain has a large mean compared to its standard deviation
+    MersenneTwister rng = new MersenneTwister(seed);
+    SimpleMatrix mean = new SimpleMatrix(nDim, 1);
+    mean.set(1000.0);
+    SimpleMatrix covariance = Global.getRandomCovariance(nDim, rng)
+        .plus(SimpleMatrix.identity(nDim));
+    TargetDistribution target = new NormalDistribution(nDim, mean, covariance);
+    Mcmc chain = getChain(0, target, chainLength, rng);
+    chain.setInitialValue(mean.getDDRM().getData());
+    chain.run();
+    chain.calculatePosteriorStatistics(nBurnIn);
+
+    //row by row
+    SimpleMatrix chainArray = chain.chainArray;
+    int n = chainLength - nBurnIn;
+    SimpleMatrix expectation = new SimpleMatrix(nDim, 1);
+    for (int iRow=nBurnIn; iRow<chainLength; iRow++) {
+      for (int i=0; i<nDim; i++) {
+        expectation.set(i, expectation.get(i) + chainArray.get(iRow, i) / n);
+      }
+    }
+    SimpleMatrix posteriorCovariance = new SimpleMatrix(nDim, nDim);
+    for (int iRow=nBurnIn; iRow<chainLength; iRow++) {
+      for (int i=0; i<nDim; i++) {
+        for (int j=0; j<nDim; j++) {
+          posteriorCovariance.set(i, j, posteriorCovariance.get(i, j)
+              + (chainArray.get(iRow, i) - expectation.get(i))
+              * (chainArray.get(iRow, j) - expectation.get(j)) / (n - 1));
+        }
+      }
+    }
+    double [] chainExpectation = chain.getPosteriorExpectation();
+    double [] chainCovariance = chain.getPosteriorCovariance();
+    boolean isExpectation = true;
+    for (int i=0; i<nDim; i++) {
+      isExpectation &= Math.abs(chainExpectation[i] - expectation.get(i))
+          < 1E-12 * Math.abs(expectation.get(i));
+    }
+    boolean isCovariance = true;
+    for (int i=0; i<nDim; i++) {
+      for (int j=0; j<nDim; j++) {
+        double scale = Math.sqrt(posteriorCovariance.get(i, i) * posteriorCovariance.get(j, j));
+        isCovariance &= Math.abs(chainCovariance[i*nDim+j] - posteriorCovariance.get(i, j))
+            < 1E-9 * scale;
+      }
+    }
+
+    //single thread
+    ForkJoinPool pool = new ForkJoinPool(1);
+    MomentAccumulator moments = MomentAccumulator.calculate(chainArray.getDDRM().getData(), nDim,
+        nBurnIn, chainLength, pool);
+    pool.shutdown();
+    SimpleMatrix singleCovariance = moments.getCovariance();
+    boolean isSingle = moments.getN() == n;
+    for (int i=0; i<nDim; i++) {
+      isSingle &= Math.abs(moments.getMean()[i] - chainExpectation[i])
+          < 1E-12 * Math.abs(chainExpectation[i]);
+      for (int j=0; j<nDim; j++) {
+        double scale = Math.sqrt(chainCovariance[i*nDim+i] * chainCovariance[j*nDim+j]);
+        isSingle &= Math.abs(singleCovariance.get(i, j) - chainCovariance[i*nDim+j])
+            < 1E-9 * scale;
+      }
+    }
+
+    printWriter.println("pass expectation test = "+isExpectation);
+    printWriter.println("pass covariance test = "+isCovariance);
+    printWriter.println("pass single thread test = "+isSingle);
+  }
+
+  /**FUNCTION: TEST BLOCKED CHAIN STORE
+   * Test keeping the samples in a BlockedChainStore, with a capacity smaller than the chain length
+   * so that the columns are grown
+   * Checks if the samples read back using getChain and getColumn, the acf, the efficiency, the
+   * posterior statistics, the Gelman Rubin F curve and the multi chain diagnostics are the same as
+   * those of the same chains which save the samples in chainArray
+   * Test the multi chain diagnostics, on a pool of several threads, of chains which are stepped
+   * without being flushed, so that the last block is not sealed
+   * @param nDim Number of dimensions
+   * @param chainLength Length of chain
+   * @param nBlockSample Number of samples in a block
+   * @param nBurnIn Number of samples to be ignored for the posterior statistics
+   * @param seed Seed for rng
+   * @param name Name of the test
+   */
+  static void testBlockedChainStore(int nDim, int chainLength, int nBlockSample, int nBurnIn,
+      int seed, String name) {
+    printWriter.println("==========");
+    printWriter.println(name);
+
+    int nChain = 6;
+    Mcmc [] chainArray = new Mcmc[nChain];
+    Mcmc [] blockedArray = new Mcmc[nChain];
+    for (int iChain=0; iChain<nChain; iChain++) {
+      //boolean for the tests
+      boolean isChainSame = true;
+      boolean isColumnSame = true;
+      boolean isAcfSame = true;
+      boolean isPosteriorSame = true;
+
+      //run a chain which saves the samples in chainArray
+      MersenneTwister rng = new MersenneTwister(seed);
+      Mcmc chain = getChain(iChain, nDim, chainLength, rng);
+      chain.run();
+      chain.calculatePosteriorStatistics(nBurnIn);
+      chainArray[iChain] = chain;
+
+      //run the same chain which keeps the samples in blocks
+      rng = new MersenneTwister(seed);
+      Mcmc chainBlocked = getChain(iChain, nDim, chainLength, rng);
+      BlockedChainStore store = new BlockedChainStore(nDim, chainLength / 3, nBlockSample);
+      chainBlocked.setChainStore(store);
+      chainBlocked.run();
+      chainBlocked.calculatePosteriorStatistics(nBurnIn);
+      blockedArray[iChain] = chainBlocked;
+
+      isChainSame &= store.getNSample() == chainLength;
+      isChainSame &= Arrays.equals(chain.getChain(), chainBlocked.getChain());
+      for (int i=0; i<nDim; i++) {
+        double [] column = chain.getChain(i);
+        isChainSame &= Arrays.equals(column, chainBlocked.getChain(i));
+        DoubleBuffer buffer = store.getColumn(i);
+        isColumnSame &= buffer.remaining() == chainLength;
+        for (int iSample=0; iSample<chainLength; iSample++) {
+          isColumnSame &= buffer.get(iSample) == column[iSample];
+          isColumnSame &= store.getColumnArray()[store.getColumnOffset(i) + iSample]
+              == column[iSample];
+        }
+        isAcfSame &= Arrays.equals(chain.getAcf(i, 50), chainBlocked.getAcf(i, 50));
+      }
+      isAcfSame &= Arrays.equals(chain.getEfficiency(), chainBlocked.getEfficiency());
+
+      isPosteriorSame &= Arrays.equals(chain.getPosteriorExpectation(),
+          chainBlocked.getPosteriorExpectation());
+      isPosteriorSame &= Arrays.equals(chain.getPosteriorCovariance(),
+          chainBlocked.getPosteriorCovariance());
+      isPosteriorSame &= Arrays.equals(chain.getMonteCarloError(),
+          chainBlocked.getMonteCarloError());
+      isPosteriorSame &= Arrays.equals(chain.getBatchAcf(10), chainBlocked.getBatchAcf(10));
+
+      printWriter.println(chain.getClass().getName());
+      printWriter.println("pass isChainSame test = "+isChainSame);
+      printWriter.println("pass isColumnSame test = "+isColumnSame);
+      printWriter.println("pass isAcfSame test = "+isAcfSame);
+      printWriter.println("pass isPosteriorSame test = "+isPosteriorSame);
+    }
+
+    //diagnostics over all the chains
+    boolean isGelmanRubinSame = true;
+    GelmanRubinF fStat = new GelmanRubinF(chainArray);
+    GelmanRubinF fStatBlocked = new GelmanRubinF(blockedArray);
+    for (int i=0; i<nDim; i++) {
+      isGelmanRubinSame &= Arrays.equals(fStat.getGelmanRubinFArray(i, nBurnIn),
+          fStatBlocked.getGelmanRubinFArray(i, nBurnIn));
+    }
+    MultiChainDiagnostics diagnostics = new MultiChainDiagnostics(chainArray);
+    diagnostics.calculate(nBurnIn);
+    MultiChainDiagnostics diagnosticsBlocked = new MultiChainDiagnostics(blockedArray);
+    diagnosticsBlocked.calculate(nBurnIn);
+    boolean isDiagnosticsSame = Arrays.equals(diagnostics.getSplitRhat(),
+        diagnosticsBlocked.getSplitRhat());
+    isDiagnosticsSame &= Arrays.equals(diagnostics.getRankNormalisedRhat(),
+        diagnosticsBlocked.getRankNormalisedRhat());
+    isDiagnosticsSame &= Arrays.equals(diagnostics.getBulkEss(), diagnosticsBlocked.getBulkEss());
+    isDiagnosticsSame &= Arrays.equals(diagnostics.getTailEss(), diagnosticsBlocked.getTailEss());
+
+    //step the same chains without flushing, the last block is sealed when the diagnostics start
+    Mcmc [] steppedArray = new Mcmc[nChain];
+    for (int iChain=0; iChain<nChain; iChain++) {
+      MersenneTwister rng = new MersenneTwister(seed);
+      steppedArray[iChain] = getChain(iChain, nDim, chainLength, rng);
+      steppedArray[iChain].setChainStore(
+          new BlockedChainStore(nDim, chainLength / 3, nBlockSample));
+      for (int i=0; i<(chainLength-1); i++) {
+        steppedArray[iChain].step();
+      }
+    }
+    MultiChainDiagnostics diagnosticsStepped = new MultiChainDiagnostics(steppedArray);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    diagnosticsStepped.setPool(pool);
+    diagnosticsStepped.calculate(nBurnIn);
+    pool.shutdown();
+    boolean isSteppedSame = Arrays.equals(diagnostics.getSplitRhat(),
+        diagnosticsStepped.getSplitRhat());
+    isSteppedSame &= Arrays.equals(diagnostics.getBulkEss(), diagnosticsStepped.getBulkEss());
+    isSteppedSame &= Arrays.equals(diagnostics.getTailEss(), diagnosticsStepped.getTailEss());
+
+    printWriter.println("pass isGelmanRubinSame test = "+isGelmanRubinSame);
+    printWriter.println("pass isDiagnosticsSame test = "+isDiagnosticsSame);
+    printWriter.println("pass isSteppedSame test = "+isSteppedSame);
+  }
+
   /**FUNCTION: TEST TREE
    * Test if the parameters of constructing new trees are left unmodified
    * Test if the height of tree instantiated from a seed, growing and building is correct
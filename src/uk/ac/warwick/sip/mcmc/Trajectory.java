@@ -0,0 +1,222 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**CLASS: TRAJECTORY
+ * Records the intermediate positions of a sampler within a MCMC step, eg the leap frog positions
+ * of HMC and NUTS or the points looked at on the ellipse in elliptical slice sampling. These are
+ * only used for visualisation, eg the Processing applets.
+ * What is recorded depends on the recording policy, see the enum RecordingPolicy
+ * Positions are copied into slots which are reused after calling clear, so that no memory is
+ * allocated once the slots have been instantiated
+ * Positions can be added to either end, eg NUTS prepends positions going back in time
+ */
+public class Trajectory implements Iterable<SimpleMatrix> {
+
+  /**ENUM: RECORDING POLICY
+   * Which positions are recorded
+   *   -NONE: nothing is recorded, nothing is allocated
+   *   -FULL: every position is recorded, the slots grow as needed
+   *   -BOUNDED: at most capacity positions are kept, adding to a full trajectory drops the
+   *   position at the opposite end
+   */
+  public enum RecordingPolicy {
+    NONE, FULL, BOUNDED
+  }
+
+  static public final int INITIAL_CAPACITY = 16; //initial number of slots for the policy FULL
+
+  protected int nDim; //number of dimensions of each position
+  protected RecordingPolicy recordingPolicy = RecordingPolicy.NONE;
+  protected int capacity = 0; //maximum number of positions for the policy BOUNDED
+  //ring buffer of column vectors, a slot is null until it is first used
+  protected SimpleMatrix [] slotArray = new SimpleMatrix[0];
+  protected int head = 0; //index of the first position in slotArray
+  protected int size = 0; //number of positions recorded
+
+  /**CONSTRUCTOR
+   * Nothing is recorded until a recording policy is set
+   * @param nDim number of dimensions of each position
+   */
+  public Trajectory(int nDim) {
+    this.nDim = nDim;
+  }
+
+  /**CONSTRUCTOR
+   * Copy the recording policy, but not the positions, of the provided trajectory
+   * @param trajectory Trajectory to copy the recording policy from
+   */
+  public Trajectory(Trajectory trajectory) {
+    this(trajectory.nDim);
+    this.setRecordingPolicy(trajectory.recordingPolicy, trajectory.capacity);
+  }
+
+  /**METHOD: SET RECORDING POLICY
+   * Set which positions are recorded, the recorded positions are cleared
+   * @param recordingPolicy Which positions to record
+   * @param capacity Maximum number of positions to keep, only used for the policy BOUNDED
+   */
+  public void setRecordingPolicy(RecordingPolicy recordingPolicy, int capacity) {
+    this.recordingPolicy = recordingPolicy;
+    this.capacity = capacity;
+    switch (recordingPolicy) {
+      case FULL:
+        this.slotArray = new SimpleMatrix[INITIAL_CAPACITY];
+        break;
+      case BOUNDED:
+        if (capacity < 1) {
+          throw new IllegalArgumentException("The capacity must be at least 1");
+        }
+        this.slotArray = new SimpleMatrix[capacity];
+        break;
+      default:
+        this.slotArray = new SimpleMatrix[0];
+        break;
+    }
+    this.clear();
+  }
+
+  /**METHOD: GET RECORDING POLICY
+   * @return The recording policy
+   */
+  public RecordingPolicy getRecordingPolicy() {
+    return this.recordingPolicy;
+  }
+
+  /**METHOD: CLEAR
+   * Remove all recorded positions, the slots are kept to be reused
+   */
+  public void clear() {
+    this.head = 0;
+    this.size = 0;
+  }
+
+  /**METHOD: ADD LAST
+   * Record a copy of the position at the end of the trajectory
+   * @param position Column vector, not modified
+   */
+  public void addLast(SimpleMatrix position) {
+    if (this.recordingPolicy == RecordingPolicy.NONE) {
+      return;
+    }
+    if (this.size == this.slotArray.length) {
+      if (this.recordingPolicy == RecordingPolicy.FULL) {
+        this.grow();
+      } else {
+        //drop the first position
+        this.head = (this.head + 1) % this.slotArray.length;
+        this.size--;
+      }
+    }
+    this.copyToSlot((this.head + this.size) % this.slotArray.length, position);
+    this.size++;
+  }
+
+  /**METHOD: ADD FIRST
+   * Record a copy of the position at the start of the trajectory
+   * @param position Column vector, not modified
+   */
+  public void addFirst(SimpleMatrix position) {
+    if (this.recordingPolicy == RecordingPolicy.NONE) {
+      return;
+    }
+    if (this.size == this.slotArray.length) {
+      if (this.recordingPolicy == RecordingPolicy.FULL) {
+        this.grow();
+      } else {
+        //drop the last position
+        this.size--;
+      }
+    }
+    this.head = (this.head - 1 + this.slotArray.length) % this.slotArray.length;
+    this.copyToSlot(this.head, position);
+    this.size++;
+  }
+
+  /**METHOD: COPY TO SLOT
+   * Copy the position to a slot, instantiating the slot if it has not been used before
+   * @param index Index of the slot in slotArray
+   * @param position Column vector, not modified
+   */
+  protected void copyToSlot(int index, SimpleMatrix position) {
+    if (this.slotArray[index] == null) {
+      this.slotArray[index] = new SimpleMatrix(position);
+    } else {
+      this.slotArray[index].set(position);
+    }
+  }
+
+  /**METHOD: GROW
+   * Double the number of slots, the positions are moved to the start of the new slotArray
+   */
+  protected void grow() {
+    SimpleMatrix [] slotArray = new SimpleMatrix[2*this.slotArray.length];
+    for (int i=0; i<this.size; i++) {
+      slotArray[i] = this.slotArray[(this.head + i) % this.slotArray.length];
+    }
+    this.slotArray = slotArray;
+    this.head = 0;
+  }
+
+  /**METHOD: SIZE
+   * @return Number of positions recorded
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**METHOD: GET
+   * The returned vector is reused after calling clear, it should not be kept
+   * @param index Which position, 0 is the start of the trajectory
+   * @return Column vector of the position
+   */
+  public SimpleMatrix get(int index) {
+    if (index < 0 || index >= this.size) {
+      throw new IndexOutOfBoundsException("Index "+index+" with "+this.size+" positions recorded");
+    }
+    return this.slotArray[(this.head + index) % this.slotArray.length];
+  }
+
+  /**IMPLEMENTED: ITERATOR
+   * @return Iterator which iterates the positions from the start to the end of the trajectory
+   */
+  @Override
+  public Iterator<SimpleMatrix> iterator() {
+    return new Iterator<SimpleMatrix>() {
+      private int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        return this.index < Trajectory.this.size;
+      }
+
+      @Override
+      public SimpleMatrix next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return Trajectory.this.get(this.index++);
+      }
+    };
+  }
+
+}
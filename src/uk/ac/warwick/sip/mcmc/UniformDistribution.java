@@ -16,6 +16,8 @@
 
 package uk.ac.warwick.sip.mcmc;
 
+import java.util.Arrays;
+
 import org.ejml.simple.SimpleMatrix;
 
 /**CLASS: UNIFORM DISTRIBUTION
@@ -67,4 +69,49 @@ public class UniformDistribution extends TargetDistribution{
 
   }
 
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * Evaluate the potential and its gradient at x in one call, both are zero
+   * @param x Where to evaluate the potential and its gradient, not modified
+   * @param dPotential Column vector, overwritten with zeros
+   * @return 0.0
+   */
+  @Override
+  public double getPotentialAndDPotential(SimpleMatrix x, SimpleMatrix dPotential) {
+    dPotential.zero();
+    return 0.0;
+  }
+
+  /**OVERRIDE: GET PDF
+   * See ArrayTarget.getPdf
+   */
+  @Override
+  public double getPdf(double [] x) {
+    return 1.0;
+  }
+
+  /**OVERRIDE: GET POTENTIAL
+   * See ArrayTarget.getPotential
+   */
+  @Override
+  public double getPotential(double [] x) {
+    return 0.0;
+  }
+
+  /**OVERRIDE: GET D POTENTIAL
+   * See ArrayTarget.getDPotential, the gradient is zero
+   */
+  @Override
+  public void getDPotential(double [] x, double [] dPotential) {
+    Arrays.fill(dPotential, 0, this.nDim, 0.0);
+  }
+
+  /**OVERRIDE: GET POTENTIAL AND D POTENTIAL
+   * See ArrayTarget.getPotentialAndDPotential, both are zero
+   */
+  @Override
+  public double getPotentialAndDPotential(double [] x, double [] dPotential) {
+    Arrays.fill(dPotential, 0, this.nDim, 0.0);
+    return 0.0;
+  }
+
 }
@@ -0,0 +1,158 @@
+/*
+ *    Copyright 2018-2020 Sherman Lo
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package uk.ac.warwick.sip.mcmc;
+
+/**CLASS: XOSHIRO 256 STAR STAR
+ * xoshiro256** random number generator, see Blackman and Vigna (2021) Scrambled linear
+ * pseudorandom number generators
+ * The state is 4 longs and the period is 2^256-1
+ *
+ * Streams which do not overlap are obtained by jumping ahead:
+ *   -jump(): jumps ahead 2^128 steps, used by split(), giving 2^128 streams of length 2^128
+ *   -longJump(): jumps ahead 2^192 steps, giving 2^64 blocks of length 2^192 which can each be
+ *       split further using jump(), eg one block for each worker thread
+ */
+public class Xoshiro256StarStar extends AbstractSplittableRandomGenerator {
+
+  //polynomials for jumping ahead 2^128 and 2^192 steps
+  static private final long [] JUMP = {0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL,
+      0xa9582618e03fc9aaL, 0x39abdc4529b1661cL};
+  static private final long [] LONG_JUMP = {0x76e15d3efefdcbbfL, 0xc5004e441c522fb3L,
+      0x77710069854ee241L, 0x39109bb02acbe635L};
+
+  //state of the generator, must not be all zero
+  protected long s0;
+  protected long s1;
+  protected long s2;
+  protected long s3;
+
+  /**CONSTRUCTOR
+   * The state is expanded from the seed using SplitMix64
+   * @param seed Seed for the generator
+   */
+  public Xoshiro256StarStar(long seed) {
+    this.setSeed(seed);
+  }
+
+  /**CONSTRUCTOR
+   * @param state Array of 4 longs, not all zero, to be used as the state
+   */
+  public Xoshiro256StarStar(long [] state) {
+    if (state.length != 4) {
+      throw new IllegalArgumentException("state must be of length 4");
+    }
+    if ((state[0] | state[1] | state[2] | state[3]) == 0) {
+      throw new IllegalArgumentException("state must not be all zero");
+    }
+    this.s0 = state[0];
+    this.s1 = state[1];
+    this.s2 = state[2];
+    this.s3 = state[3];
+  }
+
+  /**CONSTRUCTOR
+   * Copy the state of another generator
+   * @param rng Generator to copy
+   */
+  public Xoshiro256StarStar(Xoshiro256StarStar rng) {
+    this.s0 = rng.s0;
+    this.s1 = rng.s1;
+    this.s2 = rng.s2;
+    this.s3 = rng.s3;
+  }
+
+  /**IMPLEMENTED: SET SEED
+   * The state is expanded from the seed using SplitMix64
+   */
+  @Override
+  public void setSeed(long seed) {
+    long x = seed;
+    this.s0 = mix64(x += GOLDEN_GAMMA);
+    this.s1 = mix64(x += GOLDEN_GAMMA);
+    this.s2 = mix64(x += GOLDEN_GAMMA);
+    this.s3 = mix64(x += GOLDEN_GAMMA);
+    //SplitMix64 is a bijection of x, the four outputs cannot all be zero
+    this.clearGaussian();
+  }
+
+  /**IMPLEMENTED: NEXT LONG
+   */
+  @Override
+  public long nextLong() {
+    long result = Long.rotateLeft(this.s1 * 5, 7) * 9;
+    long t = this.s1 << 17;
+    this.s2 ^= this.s0;
+    this.s3 ^= this.s1;
+    this.s1 ^= this.s2;
+    this.s0 ^= this.s3;
+    this.s2 ^= t;
+    this.s3 = Long.rotateLeft(this.s3, 45);
+    return result;
+  }
+
+  /**IMPLEMENTED: SPLIT
+   * The returned generator continues this stream, this generator jumps ahead 2^128 steps
+   */
+  @Override
+  public Xoshiro256StarStar split() {
+    Xoshiro256StarStar stream = new Xoshiro256StarStar(this);
+    this.jump();
+    return stream;
+  }
+
+  /**METHOD: JUMP
+   * Jump ahead 2^128 steps
+   */
+  public void jump() {
+    this.jump(JUMP);
+  }
+
+  /**METHOD: LONG JUMP
+   * Jump ahead 2^192 steps
+   */
+  public void longJump() {
+    this.jump(LONG_JUMP);
+  }
+
+  /**METHOD: JUMP
+   * Jump ahead by evaluating the jump polynomial at the state transition
+   * @param polynomial Coefficients of the jump polynomial
+   */
+  protected void jump(long [] polynomial) {
+    long t0 = 0;
+    long t1 = 0;
+    long t2 = 0;
+    long t3 = 0;
+    for (int i=0; i<polynomial.length; i++) {
+      for (int b=0; b<64; b++) {
+        if ((polynomial[i] & (1L << b)) != 0) {
+          t0 ^= this.s0;
+          t1 ^= this.s1;
+          t2 ^= this.s2;
+          t3 ^= this.s3;
+        }
+        this.nextLong();
+      }
+    }
+    this.s0 = t0;
+    this.s1 = t1;
+    this.s2 = t2;
+    this.s3 = t3;
+    this.clearGaussian();
+  }
+
+}
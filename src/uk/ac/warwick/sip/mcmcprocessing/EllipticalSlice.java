@@ -8,6 +8,7 @@ import org.ejml.simple.SimpleMatrix;
 import processing.core.PApplet;
 import uk.ac.warwick.sip.mcmc.NormalDistribution;
 import uk.ac.warwick.sip.mcmc.TargetDistribution;
+import uk.ac.warwick.sip.mcmc.Trajectory;
 
 /**CLASS: ELLIPTICAL SLICE SAMPLING
  * Simulation for elliptical slice sampling, click to add a chain
@@ -117,6 +118,8 @@ public class EllipticalSlice extends McmcApplet {
         MersenneTwister rng = new MersenneTwister(this.millis());
         this.chain = new uk.ac.warwick.sip.mcmc.EllipticalSlice(this.target, this.likelihood,
             this.prior, CHAIN_LENGTH, rng);
+        //record every intermediate position so that they can be drawn
+        this.chain.setRecordingPolicy(Trajectory.RecordingPolicy.FULL, 0);
         this.chain.setInitialValue(mousePosition);
         super.chain = this.chain; //save copy to the superclass
         this.isInit = true;
@@ -25,6 +25,7 @@ import g4p_controls.GSlider;
 import g4p_controls.GValueControl;
 import processing.core.PApplet;
 import uk.ac.warwick.sip.mcmc.TargetDistribution;
+import uk.ac.warwick.sip.mcmc.Trajectory;
 
 /**CLASS: HAMILTONIAN MONTE CARLO
  * Simulation for HMC, click to add a chain
@@ -134,6 +135,8 @@ public class HamiltonianMonteCarlo extends McmcApplet{
         this.chain = new uk.ac.warwick.sip.mcmc.HamiltonianMonteCarlo(this.target
             , CHAIN_LENGTH, SimpleMatrix.identity(2).scale(MASS_HMC), SIZE_LEAP_FROG
             , this.nLeapFrogSlider.getValueI(), rng);
+        //record every intermediate position so that they can be drawn
+        this.chain.setRecordingPolicy(Trajectory.RecordingPolicy.FULL, 0);
         this.chain.setInitialValue(mousePosition);
         //save a copy of the pointer to the superclass
         super.chain = this.chain;
@@ -22,6 +22,7 @@ import org.apache.commons.math3.random.MersenneTwister;
 import org.ejml.simple.SimpleMatrix;
 import processing.core.PApplet;
 import uk.ac.warwick.sip.mcmc.TargetDistribution;
+import uk.ac.warwick.sip.mcmc.Trajectory;
 
 /**CLASS: NO U TURN SAMPLER
  * Simulation for NUTS, click to start a chain
@@ -106,6 +107,8 @@ public class NoUTurnSampler extends McmcApplet{
         this.chain = new uk.ac.warwick.sip.mcmc.NoUTurnSampler(this.target
             , CHAIN_LENGTH, SimpleMatrix.identity(2).scale(MASS_HMC), SIZE_LEAP_FROG
             , rng);
+        //record every intermediate position so that they can be drawn
+        this.chain.setRecordingPolicy(Trajectory.RecordingPolicy.FULL, 0);
         this.chain.setInitialValue(mousePosition);
         super.chain = this.chain; //save copy to the superclass
         this.isInit = true;